@@ -12,6 +12,7 @@ import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.bukkit.portal.storage.IPortalStorage;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapUpdateExecutor;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.tasks.MainUpdate;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
@@ -36,6 +37,7 @@ public class BetterPortals extends JavaPlugin {
     @Inject private IPortalClient portalClient;
     @Inject private MainUpdate mainUpdate;
     @Inject private BlockUpdateFinisher blockUpdateFinisher;
+    @Inject private BlockMapUpdateExecutor blockMapUpdateExecutor;
     @Inject private IPortalManager portalManager;
     @Inject private IEventRegistrar eventRegistrar;
     @Inject private API apiImplementation;
@@ -150,6 +152,7 @@ public class BetterPortals extends JavaPlugin {
         }
 
         blockUpdateFinisher.stop();
+        blockMapUpdateExecutor.stop();
 
         try {
             portalStorage.savePortals();
@@ -0,0 +1,79 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * An axis aligned box of blocks, used to find the area covered by one end of a block map.
+ * Both corners are inclusive.
+ */
+@Getter
+public class BlockMapBounds {
+    private final IntVector min;
+    private final IntVector max;
+
+    public BlockMapBounds(@NotNull IntVector min, @NotNull IntVector max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Finds the area covered by one end of a block map.
+     * The area is padded by one block, since the block map rounds the destination position based on its direction.
+     * @param renderConfig Config to get the size of the portal effect from
+     * @param center Center of this end of the portal
+     * @param rotation Rotation from the origin of the portal to this end
+     * @return The bounds of this end of the block map
+     */
+    public static @NotNull BlockMapBounds around(@NotNull RenderConfig renderConfig, @NotNull IntVector center, @NotNull Matrix rotation) {
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+
+        // Rotate each corner of the area, since the destination may be rotated relative to the origin
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxYPos = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for(int x = -maxXZ; x <= maxXZ; x += maxXZ * 2) {
+            for(int y = -maxY; y <= maxY; y += maxY * 2) {
+                for(int z = -maxXZ; z <= maxXZ; z += maxXZ * 2) {
+                    IntVector corner = rotation.transform(x, y, z);
+                    minX = Math.min(minX, corner.getX());
+                    minY = Math.min(minY, corner.getY());
+                    minZ = Math.min(minZ, corner.getZ());
+                    maxX = Math.max(maxX, corner.getX());
+                    maxYPos = Math.max(maxYPos, corner.getY());
+                    maxZ = Math.max(maxZ, corner.getZ());
+                }
+            }
+        }
+
+        return new BlockMapBounds(
+                center.add(minX - 1, minY - 1, minZ - 1),
+                center.add(maxX + 1, maxYPos + 1, maxZ + 1)
+        );
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return x >= min.getX() && x <= max.getX()
+                && y >= min.getY() && y <= max.getY()
+                && z >= min.getZ() && z <= max.getZ();
+    }
+
+    public int getMinChunkX() {
+        return min.getX() >> 4;
+    }
+
+    public int getMinChunkZ() {
+        return min.getZ() >> 4;
+    }
+
+    public int getMaxChunkX() {
+        return max.getX() >> 4;
+    }
+
+    public int getMaxChunkZ() {
+        return max.getZ() >> 4;
+    }
+}
@@ -0,0 +1,110 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the block maps of recently deactivated portals, so that a player moving in and out of the activation distance doesn't cause another initial flood fill each time.
+ * Cached maps are revalidated with {@link IBlockMap#revalidate()} when their portal is reactivated.
+ * The least recently deactivated maps are reset once the total state count of the cached maps goes over {@link RenderConfig#getBlockMapCacheSize()}.
+ * Must only be used on the main thread.
+ */
+@Singleton
+public class BlockMapCache {
+    private final Logger logger;
+    private final RenderConfig renderConfig;
+
+    // Insertion order is the order that the maps were deactivated in
+    private final Map<IBlockMap, Integer> cachedMaps = new LinkedHashMap<>();
+    private long cachedStateCount = 0;
+
+    @Inject
+    public BlockMapCache(Logger logger, RenderConfig renderConfig) {
+        this.logger = logger;
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * Adds the map of a deactivated portal to the cache, or resets it if caching is disabled or it is too big to fit.
+     * @param blockMap The map to cache
+     */
+    public void onDeactivate(@NotNull IBlockMap blockMap) {
+        // Maps which haven't finished their first update aren't worth keeping
+        int stateCount = blockMap.getStateCount();
+        if(stateCount == 0 || stateCount > renderConfig.getBlockMapCacheSize()) {
+            blockMap.reset();
+            return;
+        }
+
+        blockMap.onCached();
+        cachedMaps.put(blockMap, stateCount);
+        cachedStateCount += stateCount;
+        logger.finer("Cached block map. Cached maps: %d, cached states: %d", cachedMaps.size(), cachedStateCount);
+
+        // Reset the least recently deactivated maps until we're within the budget
+        Iterator<Map.Entry<IBlockMap, Integer>> iterator = cachedMaps.entrySet().iterator();
+        while(cachedStateCount > renderConfig.getBlockMapCacheSize() && iterator.hasNext()) {
+            Map.Entry<IBlockMap, Integer> eldest = iterator.next();
+            iterator.remove();
+            cachedStateCount -= eldest.getValue();
+            eldest.getKey().reset();
+            logger.finer("Evicted block map from cache");
+        }
+    }
+
+    /**
+     * Removes the map of a reactivated portal from the cache, revalidating it if it was cached.
+     * @param blockMap The map of the reactivated portal
+     */
+    public void onActivate(@NotNull IBlockMap blockMap) {
+        Integer stateCount = cachedMaps.remove(blockMap);
+        if(stateCount == null) {return;}
+
+        cachedStateCount -= stateCount;
+        logger.finer("Reusing cached block map");
+        blockMap.revalidate();
+    }
+
+    /**
+     * Removes <code>blockMap</code> from the cache and resets it, for instance since its portal was removed.
+     * @param blockMap The map to remove
+     */
+    public void evict(@NotNull IBlockMap blockMap) {
+        Integer stateCount = cachedMaps.remove(blockMap);
+        if(stateCount == null) {return;}
+
+        cachedStateCount -= stateCount;
+        blockMap.reset();
+    }
+
+    /**
+     * Resets every cached map, for instance since the config has been reloaded and the map sizes may have changed.
+     */
+    public void clear() {
+        logger.fine("Clearing %d cached block maps", cachedMaps.size());
+        cachedMaps.keySet().forEach(IBlockMap::reset);
+        cachedMaps.clear();
+        cachedStateCount = 0;
+    }
+
+    /**
+     * @return The number of maps in the cache
+     */
+    public int size() {
+        return cachedMaps.size();
+    }
+
+    /**
+     * @return The total state count of the maps in the cache
+     */
+    public long getCachedStateCount() {
+        return cachedStateCount;
+    }
+}
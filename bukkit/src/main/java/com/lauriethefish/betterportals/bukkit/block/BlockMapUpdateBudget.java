@@ -0,0 +1,62 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import lombok.Getter;
+
+/**
+ * Keeps track of the time spent updating block maps on the main thread each tick.
+ * If the average goes over {@link RenderConfig#getBlockUpdateTimeBudget()}, the update intervals of every portal are stretched so that the server can catch up.
+ * Must only be used on the main thread.
+ */
+@Singleton
+public class BlockMapUpdateBudget {
+    // Weight of the latest tick in the moving average
+    private static final double AVERAGE_WEIGHT = 0.05;
+    // Intervals are never stretched by more than this, so that portals still update when the server is far behind
+    private static final double MAX_STRETCH = 8.0;
+
+    private final RenderConfig renderConfig;
+
+    private double timeThisTick = 0.0;
+    @Getter private double averageTimePerTick = 0.0;
+    @Getter private double stretchFactor = 1.0;
+
+    @Inject
+    public BlockMapUpdateBudget(RenderConfig renderConfig) {
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * Adds the time taken by a block map update this tick.
+     * @param timeTakenMillis Time spent on the main thread, in milliseconds
+     */
+    public void recordUpdate(double timeTakenMillis) {
+        timeThisTick += timeTakenMillis;
+    }
+
+    /**
+     * Adds the time spent this tick to the average, and finds the new stretch factor.
+     * Called at the end of each tick.
+     */
+    public void onTickEnd() {
+        averageTimePerTick += (timeThisTick - averageTimePerTick) * AVERAGE_WEIGHT;
+        timeThisTick = 0.0;
+
+        double budget = renderConfig.getBlockUpdateTimeBudget();
+        if(budget <= 0.0 || averageTimePerTick <= budget) {
+            stretchFactor = 1.0;
+        }   else    {
+            stretchFactor = Math.min(MAX_STRETCH, averageTimePerTick / budget);
+        }
+    }
+
+    /**
+     * @param interval The interval that a portal would like to update at, in ticks
+     * @return The interval stretched to stay within the budget
+     */
+    public int stretchInterval(int interval) {
+        return (int) Math.ceil(interval * stretchFactor);
+    }
+}
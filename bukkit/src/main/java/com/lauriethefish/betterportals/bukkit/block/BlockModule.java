@@ -3,6 +3,8 @@ package com.lauriethefish.betterportals.bukkit.block;
 import com.google.inject.AbstractModule;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.lauriethefish.betterportals.bukkit.block.bukkit.BukkitBlockMapModule;
+import com.lauriethefish.betterportals.bukkit.block.change.BlockChangeTracker;
+import com.lauriethefish.betterportals.bukkit.block.change.IBlockChangeTracker;
 import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeWatcher;
 import com.lauriethefish.betterportals.bukkit.block.external.ExternalBlockWatcherManager;
 import com.lauriethefish.betterportals.bukkit.block.external.IBlockChangeWatcher;
@@ -37,6 +39,7 @@ public class BlockModule extends AbstractModule {
         );
 
         bind(IExternalBlockWatcherManager.class).to(ExternalBlockWatcherManager.class);
+        bind(IBlockChangeTracker.class).to(BlockChangeTracker.class);
 
         try {
             Class.forName("org.bukkit.block.data.type.Light");
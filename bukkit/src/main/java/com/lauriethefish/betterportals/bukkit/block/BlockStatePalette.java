@@ -0,0 +1,126 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps each distinct {@link BlockData} in a block map to a short ID, so that the states of each block can be stored in primitive arrays.
+ * The ProtocolLib wrapper of each state is only created the first time it is needed to build a packet.
+ * IDs are only ever added, so can be read from any thread without locking.
+ */
+public class BlockStatePalette {
+    /**
+     * ID used for blocks which have not yet been fetched.
+     */
+    public static final short NONE = 0;
+
+    // Minecraft has less than 65536 block states, so the IDs are treated as unsigned
+    private static final int MAX_SIZE = 0xFFFF;
+    // The two highest IDs are reserved for the special rendered states in DestinationStates
+    private static final int MAX_ID = MAX_SIZE - 2;
+
+    private final Map<BlockData, Short> ids = new HashMap<>();
+    private volatile BlockData[] states = new BlockData[64];
+    private volatile WrappedBlockData[] wrappedStates = new WrappedBlockData[64];
+    private int size = 1;
+
+    /**
+     * Finds the ID of <code>data</code>, adding it to the palette if it isn't already present.
+     * @param data The data to find the ID of
+     * @return The palette ID
+     */
+    public short getId(@NotNull BlockData data) {
+        return getId(data, null);
+    }
+
+    /**
+     * Finds the ID of <code>data</code>, adding it to the palette if it isn't already present.
+     * @param data The data to find the ID of
+     * @param wrappedData An existing ProtocolLib wrapper of <code>data</code>, used instead of creating a new one
+     * @return The palette ID
+     */
+    public synchronized short getId(@NotNull BlockData data, @Nullable WrappedBlockData wrappedData) {
+        Short existing = ids.get(data);
+        if(existing != null) {
+            // Share the existing wrapper if this state hasn't been wrapped yet
+            int existingIndex = existing & MAX_SIZE;
+            if(wrappedData != null && wrappedStates[existingIndex] == null) {
+                wrappedStates[existingIndex] = wrappedData;
+            }
+            return existing;
+        }
+
+        if(size > MAX_ID) {
+            throw new IllegalStateException("Block state palette is full");
+        }
+
+        if(size == states.length) {
+            wrappedStates = Arrays.copyOf(wrappedStates, size * 2);
+            states = Arrays.copyOf(states, size * 2);
+        }
+
+        short id = (short) size++;
+        states[id & MAX_SIZE] = data;
+        wrappedStates[id & MAX_SIZE] = wrappedData;
+        ids.put(data, id);
+        return id;
+    }
+
+    /**
+     * @param id The palette ID
+     * @return The data with ID <code>id</code>, or null if <code>id</code> is {@link BlockStatePalette#NONE}
+     */
+    public @Nullable BlockData getData(short id) {
+        int index = id & MAX_SIZE;
+        BlockData[] currentStates = states;
+        if(index < currentStates.length && (currentStates[index] != null || index == NONE)) {
+            return currentStates[index];
+        }
+
+        // The ID was added after we read the array, so we must synchronise to see the new one
+        synchronized(this) {
+            return states[index];
+        }
+    }
+
+    /**
+     * Finds the ProtocolLib wrapper for the data with ID <code>id</code>, creating it if this is the first time it was requested.
+     * @param id The palette ID
+     * @return The wrapped data, or null if <code>id</code> is {@link BlockStatePalette#NONE}
+     */
+    public @Nullable WrappedBlockData getWrappedData(short id) {
+        int index = id & MAX_SIZE;
+        WrappedBlockData[] currentWrapped = wrappedStates;
+        if(index < currentWrapped.length) {
+            WrappedBlockData existing = currentWrapped[index];
+            if(existing != null) {
+                return existing;
+            }
+        }
+
+        BlockData data = getData(id);
+        if(data == null) {
+            return null;
+        }
+
+        // Creating the wrapper twice on different threads is harmless, so no locking is done here
+        WrappedBlockData wrapped = WrappedBlockData.createData(data);
+        synchronized(this) {
+            wrappedStates[index] = wrapped;
+        }
+        return wrapped;
+    }
+
+    /**
+     * @return The number of distinct states in this palette
+     */
+    public synchronized int size() {
+        return size - 1;
+    }
+}
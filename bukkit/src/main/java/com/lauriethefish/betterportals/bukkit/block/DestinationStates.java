@@ -0,0 +1,99 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.block.rotation.RotatedBlock;
+import lombok.Getter;
+import lombok.Setter;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stores the destination and rendered states of every block in a block map as palette IDs in primitive arrays.
+ * These can be shared between portals which view the same destination, so are kept separate from the origin states in {@link PackedBlockStates}.
+ */
+public class DestinationStates {
+    /**
+     * Rendered ID used for blocks at the edge of the view, which should show the background block.
+     */
+    public static final short RENDERED_BACKGROUND = -1;
+
+    /**
+     * Rendered ID used for air blocks replaced with light blocks.
+     */
+    public static final short RENDERED_LIGHT = -2;
+
+    @Getter private final BlockStatePalette palette = new BlockStatePalette();
+
+    private final short[] destStates;
+    private final short[] renderedDestStates;
+
+    @Getter @Setter private volatile WrappedBlockData backgroundData;
+    @Getter @Setter private volatile WrappedBlockData lightData;
+
+    public DestinationStates(int length) {
+        this.destStates = new short[length];
+        this.renderedDestStates = new short[length];
+    }
+
+    /**
+     * Sets the destination data of the block at <code>mapIndex</code>, before it is rotated to be rendered.
+     * @param mapIndex Index of the block in the map
+     * @param data The new data
+     * @return Whether the data differed from the previous data
+     */
+    public boolean setDestData(int mapIndex, @NotNull BlockData data) {
+        short id = palette.getId(data);
+        boolean changed = destStates[mapIndex] != id;
+        destStates[mapIndex] = id;
+        return changed;
+    }
+
+    /**
+     * Sets the data shown to players when the block at <code>mapIndex</code> is visible through the portal.
+     * @param mapIndex Index of the block in the map
+     * @param rotated The rotated destination data
+     */
+    public void setRenderedDestData(int mapIndex, @NotNull RotatedBlock rotated) {
+        renderedDestStates[mapIndex] = palette.getId(rotated.getData(), rotated.getWrappedData());
+    }
+
+    /**
+     * Sets the rendered state of the block at <code>mapIndex</code> to one of the special values.
+     * @param mapIndex Index of the block in the map
+     * @param renderedId Either {@link DestinationStates#RENDERED_BACKGROUND} or {@link DestinationStates#RENDERED_LIGHT}
+     */
+    public void setRenderedSpecial(int mapIndex, short renderedId) {
+        renderedDestStates[mapIndex] = renderedId;
+    }
+
+    public @Nullable BlockData getDestData(int mapIndex) {
+        return palette.getData(destStates[mapIndex]);
+    }
+
+    public short getRenderedDestId(int mapIndex) {
+        return renderedDestStates[mapIndex];
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return The wrapped data that the block should be shown as when visible through the portal, or null if not yet fetched
+     */
+    public @Nullable WrappedBlockData getWrappedRenderedDestData(int mapIndex) {
+        return getWrappedRenderedData(renderedDestStates[mapIndex]);
+    }
+
+    /**
+     * @param id A palette ID, or one of the special rendered IDs
+     * @return The wrapped data with ID <code>id</code>, or null if not yet fetched
+     */
+    public @Nullable WrappedBlockData getWrappedRenderedData(short id) {
+        if(id == RENDERED_BACKGROUND) {
+            return backgroundData;
+        }   else if(id == RENDERED_LIGHT) {
+            return lightData;
+        }   else    {
+            return palette.getWrappedData(id);
+        }
+    }
+}
@@ -1,152 +1,118 @@
 package com.lauriethefish.betterportals.bukkit.block;
 
-import com.comphenix.protocol.events.PacketContainer;
-import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.lauriethefish.betterportals.api.IntVector;
-import com.lauriethefish.betterportals.api.PortalDirection;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
-import com.lauriethefish.betterportals.bukkit.math.MathUtil;
-import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
-import org.bukkit.util.Vector;
-import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Abstract viewable block map that is intended to have the update functions perform a flood fill to find which blocks are viewable.
+ * Abstract viewable block map that is intended to have the update functions perform a flood fill of the destination to find which blocks are viewable.
+ * The flood fill itself may be shared with other portals viewing the same destination, so this only holds the state specific to one portal's origin.
+ * Each map adjusts its own update interval: it is halved when changes are found, and slowly increased when they aren't.
  */
 public abstract class FloodFillBlockMap implements IBlockMap {
     protected final Logger logger;
     protected final RenderConfig renderConfig;
+    private final BlockMapUpdateBudget updateBudget;
 
-    protected final ConcurrentHashMap<IntVector, PacketContainer> originTileStates = new ConcurrentHashMap<>();
-    protected final ConcurrentHashMap<IntVector, PacketContainer> destTileStates = new ConcurrentHashMap<>();
-
-    protected StateQueue stateQueue;
-
-    protected List<IViewableBlockInfo> nonObscuredStates = new ArrayList<>();
+    protected volatile StateQueue stateQueue;
+    protected PackedBlockStates blockStates;
 
-    protected byte[] alreadyReachedMap;
+    // 1 if a block has been added to the viewable states, 0 otherwise
+    protected byte[] viewableMap;
 
     protected final IPortal portal;
-    protected final Matrix rotateOriginToDest;
     protected final IntVector portalOriginPos;
-    protected final IntVector portalDestPos;
 
-    protected final IntVector centerPos;
-    protected final PortalDirection destDirection;
-    protected boolean firstUpdate;
+    // Written by asynchronous updates when they find changes
+    private volatile int updateInterval;
+    private int ticksUntilUpdate;
 
-    public FloodFillBlockMap(IPortal portal, Logger logger, RenderConfig renderConfig) {
+    public FloodFillBlockMap(IPortal portal, Logger logger, RenderConfig renderConfig, BlockMapUpdateBudget updateBudget) {
         this.portal = portal;
         this.logger = logger;
         this.renderConfig = renderConfig;
-        this.centerPos = new IntVector(portal.getOriginPos().getVector());
-        this.rotateOriginToDest = portal.getTransformations().getRotateToDestination();
-        this.destDirection = portal.getDestPos().getDirection();
+        this.updateBudget = updateBudget;
         this.portalOriginPos = new IntVector(portal.getOriginPos().getVector());
-        this.portalDestPos = roundBasedOnDirection(portal);
 
         reset();
     }
 
-    private IntVector roundBasedOnDirection(IPortal portal) {
-        Vector originPosVec = portal.getOriginPos().getVector();
-        Vector originPosCenter = MathUtil.moveToCenterOfBlock(originPosVec);
-        Vector relOriginPos = originPosCenter.clone().subtract(originPosVec);
-        Vector relDestPos = portal.getTransformations().rotateToDestination(relOriginPos);
-        Vector destPosCenter = portal.getDestPos().getVector().add(relDestPos);
-
-        return new IntVector(destPosCenter);
-    }
-
-    protected boolean isInLine(IntVector relPos) {
-        return destDirection.swapVector(relPos).getZ() == 0;
-    }
-
     protected final int getArrayMapIndex(IntVector relPos) {
-        return ((relPos.getX() + (int) renderConfig.getMaxXZ()) + (relPos.getZ() + (int) renderConfig.getMaxXZ()) * renderConfig.getZMultip() + (relPos.getY() + (int) renderConfig.getMaxY()) * renderConfig.getYMultip());
-    }
-
-    /**
-     * Starts a flood fill from <code>start</code> out to the edges of the viewed portal area.
-     * The fill stops when it reaches occluding blocks, as we don't need to render other blocks behind these.
-     * The origin data is also fetched, and this is placed in the viewable states
-     * @param originPos Start position of the flood fill, at the origin (non-relative)
-     * @param statesOutput List to place the new viewable states within
-     * @param firstBlockInfo Optional, used instead of adding a new block to the map for the first block. Useful for incremental updates
-     */
-    protected abstract void searchFromBlock(IntVector originPos, List<IViewableBlockInfo> statesOutput, @Nullable IViewableBlockInfo firstBlockInfo);
-
-    /**
-     * Checks the origin and destination blocks for changes.
-     * At the origin, we only need to check the actually viewable blocks, since there is no need to re-flood-fill.
-     * At the destination, we must check all blocks that were reached by the flood-fill, then do a re-flood-fill for any that have changed to add blocks in a newly revealed cavern, for instance.
-     */
-    protected abstract void checkForChanges();
-
-    protected final WrappedBlockData getBackgroundData() {
-        return renderConfig.findBackgroundData(portal.getDestPos());
+        return renderConfig.getMapIndex(relPos);
     }
 
     @Override
     public void update(int ticksSinceActivated) {
-        if(ticksSinceActivated % renderConfig.getBlockUpdateInterval() != 0) {return;}
+        // Always update straight away when the portal is activated
+        if(ticksSinceActivated == 0) {ticksUntilUpdate = 0;}
+        if(ticksUntilUpdate-- > 0) {return;}
 
+        OperationTimer timer = new OperationTimer();
         updateInternal();
+        updateBudget.recordUpdate(timer.getTimeTakenMillis());
+
+        ticksUntilUpdate = updateBudget.stretchInterval(updateInterval) - 1;
     }
 
-    protected void updateInternal() {
-        if(alreadyReachedMap == null) {
-            alreadyReachedMap = new byte[renderConfig.getTotalArrayLength()];
+    /**
+     * Adjusts the update interval based on the number of changes found by an update.
+     * Can be called from any thread.
+     * @param changeCount Number of origin or destination blocks found to have changed
+     */
+    protected void onChangesChecked(int changeCount) {
+        int minInterval = renderConfig.getMinBlockUpdateInterval();
+        int maxInterval = renderConfig.getMaxBlockUpdateInterval();
+
+        int currentInterval = updateInterval;
+        int newInterval;
+        if(changeCount > 0) {
+            newInterval = Math.max(minInterval, currentInterval / 2);
+        }   else    {
+            newInterval = Math.min(maxInterval, currentInterval + Math.max(1, currentInterval / 4));
         }
 
-        OperationTimer timer = new OperationTimer();
-        if(firstUpdate) {
-            List<IViewableBlockInfo> initialStates = new ArrayList<>();
-            searchFromBlock(centerPos, initialStates, null);
-            stateQueue.addStatesInitially(initialStates);
-        }   else    {
-            checkForChanges();
+        if(newInterval != currentInterval) {
+            logger.finest("Changing block update interval from %d to %d ticks. Changes: %d", currentInterval, newInterval, changeCount);
+            updateInterval = newInterval;
         }
-        firstUpdate = false;
-        logger.fine("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), nonObscuredStates.size(), stateQueue.stateCount());
     }
 
+    /**
+     * @return The current interval between updates, in ticks, before being stretched by the {@link BlockMapUpdateBudget}
+     */
+    public int getUpdateInterval() {
+        return updateInterval;
+    }
+
+    /**
+     * Updates the flood fill, and compares the reached destination blocks with the origin blocks to find the new viewable states.
+     */
+    protected abstract void updateInternal();
+
     @Override
     public void reset() {
         logger.finer("Clearing block array to save memory");
 
-        stateQueue = new StateQueue(logger);
-        nonObscuredStates = new ArrayList<>();
-        originTileStates.clear();
-        destTileStates.clear();
-        firstUpdate = true;
-        alreadyReachedMap = null;
+        stateQueue = null;
+        blockStates = null;
+        viewableMap = null;
+        updateInterval = renderConfig.getBlockUpdateInterval();
     }
 
     @Override
-    public List<IViewableBlockInfo> getViewableStates() {
-        if(stateQueue == null) {
-            return null;
-        }
-
-        return stateQueue.getViewableStates();
+    public int getStateCount() {
+        return blockStates == null ? 0 : renderConfig.getTotalArrayLength();
     }
 
     @Override
-    public @Nullable PacketContainer getOriginTileEntityPacket(@NotNull IntVector position) {
-        return originTileStates.get(position);
-    }
+    public ViewableStates getViewableStates() {
+        StateQueue currentQueue = stateQueue;
+        if(currentQueue == null) {
+            return null;
+        }
 
-    @Override
-    public @Nullable PacketContainer getDestinationTileEntityPacket(@NotNull IntVector position) {
-        return destTileStates.get(position);
+        return currentQueue.getViewableStates();
     }
 }
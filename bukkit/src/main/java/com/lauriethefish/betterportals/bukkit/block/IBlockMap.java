@@ -7,8 +7,6 @@ import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
-
 /**
  * Creates a map of the blocks around the portal within the view distance.
  * Implements skipping of blocks that are fully covered by opaque blocks.
@@ -24,9 +22,10 @@ public interface IBlockMap {
 
     /**
      * Gets the current list of viewable positions.
-     * @return The current list of viewable positions and their data, or null if no list is currently available
+     * The returned instance is immutable, so can be read from any thread while the map is being updated.
+     * @return The current map indices of the viewable positions and their data, or null if no list is currently available
      */
-    @Nullable List<IViewableBlockInfo> getViewableStates();
+    @Nullable ViewableStates getViewableStates();
 
 
     /**
@@ -50,11 +49,29 @@ public interface IBlockMap {
 
     /**
      * Clears the currently rendered array to save memory.
-     * Called on portal deactivation.
+     * Called once the map of a deactivated portal is no longer kept by the {@link BlockMapCache}.
      * Next time {@link IBlockMap#update(int)} is called, another initial update will be done, which takes longer.
      */
     void reset();
 
+    /**
+     * Called when the map of a deactivated portal is kept in the {@link BlockMapCache} instead of being reset.
+     * Changes found while cached are not queued, since nothing processes them until the portal is reactivated.
+     */
+    void onCached();
+
+    /**
+     * Called when the portal is reactivated after its map was kept in the {@link BlockMapCache} instead of being reset.
+     * The next update checks every reached block for changes, instead of doing another initial flood fill.
+     */
+    void revalidate();
+
+    /**
+     * Used to limit the memory taken up by the {@link BlockMapCache}.
+     * @return The number of block states currently stored by this map, or 0 if it has been reset
+     */
+    int getStateCount();
+
     interface Factory {
         IBlockMap create(IPortal portal);
     }
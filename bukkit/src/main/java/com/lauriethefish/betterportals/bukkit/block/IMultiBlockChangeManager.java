@@ -9,20 +9,6 @@ import org.bukkit.util.Vector;
  * Abstracts the differences in sending multi block change packets in different versions.
  */
 public interface IMultiBlockChangeManager {
-    /**
-     * Adds a new change to the map via a {@link IViewableBlockInfo}. The origin data of the block will be used.
-     * @param position Position relative to the world that the player is in
-     * @param newData The new block data that the player will see. Each overrider will specify a different {@link IViewableBlockInfo} subtype that allows them to fetch the data.
-     */
-    void addChangeOrigin(Vector position, IViewableBlockInfo newData);
-
-    /**
-     * Adds a new change to the map via a {@link IViewableBlockInfo}. The rendered destination data of this block will be used
-     * @param position Position relative to the world that the player is in
-     * @param newData The new block data that the player will see. Each overrider will specify a different {@link IViewableBlockInfo} subtype that allows them to fetch the data.
-     */
-    void addChangeDestination(Vector position, IViewableBlockInfo newData);
-
     /**
      * Adds a new change to the map.
      * @param position Position relative to the world that the player is in
@@ -30,6 +16,16 @@ public interface IMultiBlockChangeManager {
      */
     void addChange(Vector position, WrappedBlockData newData);
 
+    /**
+     * Adds a change to a block in a portal's block map.
+     * Unlike {@link IMultiBlockChangeManager#addChange(Vector, WrappedBlockData)}, the packets can be shared with other players who are sent the same changes.
+     * Blocks which have not yet been fetched are skipped.
+     * @param blockStates The block states of the portal. Every change added this way must use the same states
+     * @param mapIndex Index of the block in the map
+     * @param rendered True to show the rendered destination state, false to reset the block to its origin state
+     */
+    void addChange(PackedBlockStates blockStates, int mapIndex, boolean rendered);
+
     /**
      * Sends all queued changes.
      * Does <i>not</i> clear changes.
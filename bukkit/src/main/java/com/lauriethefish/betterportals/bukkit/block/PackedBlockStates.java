@@ -0,0 +1,126 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stores the origin states of every block in a block map as palette IDs in primitive arrays, along with the (possibly shared) destination states.
+ * Blocks are referred to by their map index, which encodes their position relative to the portal origin.
+ * This avoids allocating several objects for every block around the portal.
+ */
+public class PackedBlockStates {
+    @Getter private final DestinationStates destinationStates;
+    private final BlockStatePalette palette;
+
+    private final short[] originStates;
+
+    // Block position of the portal origin, which the relative coordinates of each map index are from
+    @Getter private final IntVector originPos;
+    private final int zMultip;
+    private final int yMultip;
+    @Getter private final int maxXZ;
+    @Getter private final int maxY;
+
+    // Shared by every view of the portal, since the packets only depend on the palette IDs
+    @Getter private final SectionPacketCache packetCache = new SectionPacketCache();
+
+    public PackedBlockStates(@NotNull RenderConfig renderConfig, @NotNull IntVector originPos, @NotNull DestinationStates destinationStates) {
+        this.destinationStates = destinationStates;
+        // The origin states use the same palette, so that they can be compared with the destination states
+        this.palette = destinationStates.getPalette();
+        this.originStates = new short[renderConfig.getTotalArrayLength()];
+
+        this.originPos = originPos;
+        this.zMultip = renderConfig.getZMultip();
+        this.yMultip = renderConfig.getYMultip();
+        this.maxXZ = (int) renderConfig.getMaxXZ();
+        this.maxY = (int) renderConfig.getMaxY();
+    }
+
+    public int getRelativeX(int mapIndex) {
+        return mapIndex % zMultip - maxXZ;
+    }
+
+    public int getRelativeY(int mapIndex) {
+        return mapIndex / yMultip - maxY;
+    }
+
+    public int getRelativeZ(int mapIndex) {
+        return (mapIndex % yMultip) / zMultip - maxXZ;
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return The absolute position of the block at the origin
+     */
+    public @NotNull IntVector getOriginPos(int mapIndex) {
+        return new IntVector(
+                originPos.getX() + getRelativeX(mapIndex),
+                originPos.getY() + getRelativeY(mapIndex),
+                originPos.getZ() + getRelativeZ(mapIndex)
+        );
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return The absolute position of the center of the block at the origin
+     */
+    public @NotNull Vector getOriginCenterPos(int mapIndex) {
+        return new Vector(
+                originPos.getX() + getRelativeX(mapIndex) + 0.5,
+                originPos.getY() + getRelativeY(mapIndex) + 0.5,
+                originPos.getZ() + getRelativeZ(mapIndex) + 0.5
+        );
+    }
+
+    /**
+     * Sets the origin data of the block at <code>mapIndex</code>.
+     * @param mapIndex Index of the block in the map
+     * @param data The new data
+     * @return Whether the data differed from the previous data
+     */
+    public boolean setOriginData(int mapIndex, @NotNull BlockData data) {
+        short id = palette.getId(data);
+        boolean changed = originStates[mapIndex] != id;
+        originStates[mapIndex] = id;
+        return changed;
+    }
+
+    public @Nullable BlockData getOriginData(int mapIndex) {
+        return palette.getData(originStates[mapIndex]);
+    }
+
+    public @Nullable BlockData getDestData(int mapIndex) {
+        return destinationStates.getDestData(mapIndex);
+    }
+
+    public short getOriginId(int mapIndex) {
+        return originStates[mapIndex];
+    }
+
+    public short getRenderedDestId(int mapIndex) {
+        return destinationStates.getRenderedDestId(mapIndex);
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return The wrapped data that the block should be reset to when not visible through the portal, or null if not yet fetched
+     */
+    public @Nullable WrappedBlockData getWrappedOriginData(int mapIndex) {
+        return palette.getWrappedData(originStates[mapIndex]);
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return The wrapped data that the block should be shown as when visible through the portal, or null if not yet fetched
+     */
+    public @Nullable WrappedBlockData getWrappedRenderedDestData(int mapIndex) {
+        return destinationStates.getWrappedRenderedDestData(mapIndex);
+    }
+}
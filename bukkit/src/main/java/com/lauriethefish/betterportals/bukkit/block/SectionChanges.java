@@ -0,0 +1,63 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.wrappers.BlockPosition;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * The block changes sent to a player in one chunk section, each packed as the block's position within the section and its palette ID.
+ * Changes are sorted by position, so that players who are sent the same changes in a different order have equal keys in a {@link SectionPacketCache}.
+ */
+public class SectionChanges {
+    @Getter private final BlockPosition sectionPos;
+    private final int[] changes;
+    private final int hash;
+
+    /**
+     * @param sectionPos Position of the chunk section
+     * @param changes Changes packed with {@link SectionChanges#pack(short, short)}. Each block must only be changed once. Sorted in place
+     */
+    public SectionChanges(@NotNull BlockPosition sectionPos, @NotNull int[] changes) {
+        Arrays.sort(changes);
+        this.sectionPos = sectionPos;
+        this.changes = changes;
+        this.hash = 31 * sectionPos.hashCode() + Arrays.hashCode(changes);
+    }
+
+    /**
+     * @param position Position of the block within the section, in the same format as a multi block change packet
+     * @param stateId Palette ID of the new state, or one of the special rendered IDs in {@link DestinationStates}
+     * @return The packed change
+     */
+    public static int pack(short position, short stateId) {
+        return (position & 0xFFF) << 16 | (stateId & 0xFFFF);
+    }
+
+    public int size() {
+        return changes.length;
+    }
+
+    public short getPosition(int i) {
+        return (short) (changes[i] >>> 16);
+    }
+
+    public short getStateId(int i) {
+        return (short) changes[i];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {return true;}
+        if(!(obj instanceof SectionChanges)) {return false;}
+
+        SectionChanges other = (SectionChanges) obj;
+        return hash == other.hash && sectionPos.equals(other.sectionPos) && Arrays.equals(changes, other.changes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
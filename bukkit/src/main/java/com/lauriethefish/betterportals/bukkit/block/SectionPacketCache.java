@@ -0,0 +1,60 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the multi block change packets sent for the blocks of a portal, so that players who are sent the same changes in a chunk section share one packet instead of each encoding their own.
+ * This happens often with players standing next to each other, and when refreshing the sent blocks.
+ * Packets are keyed by palette ID, so stay valid as long as the special rendered states of the {@link DestinationStates} don't change.
+ * The cached packets must never be modified, and each player must be sent a copy, since packet listeners can modify the packets they are given.
+ * Thread safe.
+ */
+public class SectionPacketCache {
+    // Limits the memory used by the packets. Clearing the cache when full is crude, but the packets are cheap to encode again
+    private static final int MAX_SIZE = 256;
+
+    private final Map<SectionChanges, PacketContainer> packets = new ConcurrentHashMap<>();
+
+    // The special rendered states that the cached packets were encoded with
+    private WrappedBlockData backgroundData;
+    private WrappedBlockData lightData;
+
+    /**
+     * @param changes The changes to find the packet for
+     * @param destinationStates The states that the IDs of <code>changes</code> are from
+     * @return The packet previously encoded for the changes, or null if there is none. Must not be modified
+     */
+    public @Nullable PacketContainer get(@NotNull SectionChanges changes, @NotNull DestinationStates destinationStates) {
+        synchronized(this) {
+            // The special states are found on every block map update, so the packets encoded with the old states must be discarded if they change
+            if(!Objects.equals(backgroundData, destinationStates.getBackgroundData()) || !Objects.equals(lightData, destinationStates.getLightData())) {
+                packets.clear();
+                backgroundData = destinationStates.getBackgroundData();
+                lightData = destinationStates.getLightData();
+                return null;
+            }
+        }
+
+        return packets.get(changes);
+    }
+
+    /**
+     * Shares a packet with other players who are sent the same changes.
+     * @param changes The changes that the packet contains
+     * @param packet The encoded packet. Must not be modified afterwards
+     */
+    public void put(@NotNull SectionChanges changes, @NotNull PacketContainer packet) {
+        if(packets.size() >= MAX_SIZE) {
+            packets.clear();
+        }
+
+        packets.put(changes, packet);
+    }
+}
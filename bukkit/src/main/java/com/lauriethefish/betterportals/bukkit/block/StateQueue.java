@@ -1,66 +1,111 @@
 package com.lauriethefish.betterportals.bukkit.block;
 
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
-import java.util.Collections;
-import java.util.List;
+import java.util.BitSet;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Represents a queue of viewable block states
+ * Represents a queue of viewable block states.
+ * Newly queued states are merged into a new immutable {@link ViewableStates} when next requested, so that it can be read from multiple threads.
+ * States can also be removed, if they are no longer reachable by the flood fill.
  */
 public class StateQueue {
-    private List<IViewableBlockInfo> viewableStates = null;
-    private int size = 0;
+    private final PackedBlockStates blockStates;
+    private final ViewableStates emptyStates;
 
-    private final LinkedBlockingQueue<List<IViewableBlockInfo>> newStateQueue = new LinkedBlockingQueue<>();
+    private IntList viewableStates = null;
+    private volatile ViewableStates currentStates;
+
+    private final LinkedBlockingQueue<int[]> newStateQueue = new LinkedBlockingQueue<>();
 
     private volatile boolean hasFinishedInit = false;
 
     private final Logger logger;
 
-    public StateQueue(Logger logger) {
+    public StateQueue(Logger logger, PackedBlockStates blockStates) {
         this.logger = logger;
+        this.blockStates = blockStates;
+        this.emptyStates = new ViewableStates(blockStates, new int[0]);
     }
 
-    public List<IViewableBlockInfo> getViewableStates() {
+    public ViewableStates getViewableStates() {
         // If the initial states haven't yet been added, then we return an empty list
         if(!hasFinishedInit) {
             logger.fine("Init not finished");
-            return Collections.emptyList();
+            return emptyStates;
+        }
+
+        if(newStateQueue.isEmpty()) {
+            return currentStates;
+        }
+
+        synchronized(this) {
+            if(addQueuedStates()) {
+                currentStates = new ViewableStates(blockStates, viewableStates.toArray(), currentStates.getRetractionCount());
+            }
+            return currentStates;
         }
+    }
 
-        // Take all the newly queued states and add them to the viewable states list
-        while(!newStateQueue.isEmpty()) {
+    /**
+     * Takes all the newly queued states and adds them to the viewable states list.
+     * @return Whether any states were added
+     */
+    private boolean addQueuedStates() {
+        boolean addedStates = false;
+        int[] newStates;
+        while((newStates = newStateQueue.poll()) != null) {
             logger.fine("Adding queued states");
-            try {
-                List<IViewableBlockInfo> newStates = newStateQueue.take();
-                size += newStates.size();
-                viewableStates.addAll(newStates);
-            } catch (InterruptedException ex) {
-                throw new RuntimeException(ex);
+            viewableStates.addAll(newStates, newStates.length);
+            addedStates = true;
+        }
+
+        return addedStates;
+    }
+
+    /**
+     * Removes states from the viewable states, for instance since they are now hidden behind an occluding block.
+     * @param mapIndices Map indices of the states to remove
+     */
+    public synchronized void removeStates(BitSet mapIndices) {
+        if(!hasFinishedInit) {
+            throw new IllegalStateException("Cannot remove states before the initial states are added");
+        }
+
+        addQueuedStates();
+
+        IntList remainingStates = new IntList(viewableStates.size());
+        for(int i = 0; i < viewableStates.size(); i++) {
+            int mapIndex = viewableStates.get(i);
+            if(!mapIndices.get(mapIndex)) {
+                remainingStates.add(mapIndex);
             }
         }
 
-        return viewableStates;
+        logger.fine("Removed %d viewable states", viewableStates.size() - remainingStates.size());
+        viewableStates = remainingStates;
+        currentStates = new ViewableStates(blockStates, remainingStates.toArray(), currentStates.getRetractionCount() + 1);
     }
 
-    public void addStatesInitially(List<IViewableBlockInfo> blockInfoList) {
+    public synchronized void addStatesInitially(IntList mapIndices) {
         if(hasFinishedInit) {
             throw new IllegalStateException("Cannot add initial states multiple times");
         }
 
-        viewableStates = blockInfoList;
-        size = blockInfoList.size();
+        viewableStates = mapIndices;
+        currentStates = new ViewableStates(blockStates, mapIndices.toArray());
         hasFinishedInit = true;
     }
 
-    public void enqueueStates(List<IViewableBlockInfo> blockInfoList) {
+    public void enqueueStates(IntList mapIndices) {
         logger.fine("Enqueueing states");
-        newStateQueue.add(blockInfoList);
+        newStateQueue.add(mapIndices.toArray());
     }
 
     public int stateCount() {
-        return size;
+        ViewableStates states = currentStates;
+        return states == null ? 0 : states.size();
     }
 }
@@ -0,0 +1,143 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Groups the viewable states of a {@link ViewableStates} into 4x4x4 cells, each with the bounding box of its blocks.
+ * Views can then check whole cells against the portal's view frustum, and only check the blocks of cells which are partially visible.
+ */
+public class ViewableCells {
+    // Each cell is 2^CELL_SHIFT blocks along each axis
+    private static final int CELL_SHIFT = 2;
+
+    // Indices into the viewable states, ordered so that the states of each cell are next to each other
+    private final int[] order;
+    // Start of each cell in the order array, with an extra entry at the end for the end of the last cell
+    private final int[] cellStarts;
+    // Absolute block coordinates of the minimum and maximum corners of each cell's bounding box, six per cell
+    private final int[] bounds;
+
+    ViewableCells(@NotNull PackedBlockStates blockStates, @NotNull int[] mapIndices) {
+        int cellsXZ = (blockStates.getMaxXZ() * 2 >> CELL_SHIFT) + 1;
+        int cellsY = (blockStates.getMaxY() * 2 >> CELL_SHIFT) + 1;
+
+        // Counting sort the states by the cell that they're in
+        int[] cellKeys = new int[mapIndices.length];
+        int[] counts = new int[cellsXZ * cellsXZ * cellsY + 1];
+        for(int i = 0; i < mapIndices.length; i++) {
+            int mapIndex = mapIndices[i];
+            int cellX = (blockStates.getRelativeX(mapIndex) + blockStates.getMaxXZ()) >> CELL_SHIFT;
+            int cellY = (blockStates.getRelativeY(mapIndex) + blockStates.getMaxY()) >> CELL_SHIFT;
+            int cellZ = (blockStates.getRelativeZ(mapIndex) + blockStates.getMaxXZ()) >> CELL_SHIFT;
+
+            int key = cellX + cellZ * cellsXZ + cellY * cellsXZ * cellsXZ;
+            cellKeys[i] = key;
+            counts[key + 1]++;
+        }
+
+        int cellCount = 0;
+        for(int key = 1; key < counts.length; key++) {
+            if(counts[key] > 0) {cellCount++;}
+            counts[key] += counts[key - 1];
+        }
+
+        order = new int[mapIndices.length];
+        int[] positions = counts.clone();
+        for(int i = 0; i < mapIndices.length; i++) {
+            order[positions[cellKeys[i]]++] = i;
+        }
+
+        // Only keep the cells which contain states
+        cellStarts = new int[cellCount + 1];
+        bounds = new int[cellCount * 6];
+        int cell = 0;
+        for(int key = 0; key < counts.length - 1; key++) {
+            int start = counts[key];
+            int end = counts[key + 1];
+            if(start == end) {continue;}
+
+            cellStarts[cell] = start;
+            findBounds(blockStates, mapIndices, start, end, cell * 6);
+            cell++;
+        }
+        cellStarts[cellCount] = mapIndices.length;
+    }
+
+    private void findBounds(PackedBlockStates blockStates, int[] mapIndices, int start, int end, int boundsIndex) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+        for(int i = start; i < end; i++) {
+            int mapIndex = mapIndices[order[i]];
+            int x = blockStates.getRelativeX(mapIndex);
+            int y = blockStates.getRelativeY(mapIndex);
+            int z = blockStates.getRelativeZ(mapIndex);
+
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+
+        int originX = blockStates.getOriginPos().getX();
+        int originY = blockStates.getOriginPos().getY();
+        int originZ = blockStates.getOriginPos().getZ();
+        bounds[boundsIndex] = originX + minX;
+        bounds[boundsIndex + 1] = originY + minY;
+        bounds[boundsIndex + 2] = originZ + minZ;
+        bounds[boundsIndex + 3] = originX + maxX;
+        bounds[boundsIndex + 4] = originY + maxY;
+        bounds[boundsIndex + 5] = originZ + maxZ;
+    }
+
+    public int getCellCount() {
+        return cellStarts.length - 1;
+    }
+
+    /**
+     * @param cell Index of the cell
+     * @return Index in the order of the first state in the cell
+     */
+    public int getCellStart(int cell) {
+        return cellStarts[cell];
+    }
+
+    /**
+     * @param cell Index of the cell
+     * @return Index in the order after the last state in the cell
+     */
+    public int getCellEnd(int cell) {
+        return cellStarts[cell + 1];
+    }
+
+    /**
+     * @param i Index in the order, between zero and the number of viewable states
+     * @return Index of the state in the {@link ViewableStates}
+     */
+    public int getViewableIndex(int i) {
+        return order[i];
+    }
+
+    /**
+     * @param cell Index of the cell
+     * @param axis 0 for X, 1 for Y, 2 for Z
+     * @return The minimum absolute block coordinate of the cell's states along <code>axis</code>
+     */
+    public int getMin(int cell, int axis) {
+        return bounds[cell * 6 + axis];
+    }
+
+    /**
+     * @param cell Index of the cell
+     * @param axis 0 for X, 1 for Y, 2 for Z
+     * @return The maximum absolute block coordinate of the cell's states along <code>axis</code>
+     */
+    public int getMax(int cell, int axis) {
+        return bounds[cell * 6 + 3 + axis];
+    }
+}
@@ -0,0 +1,93 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable snapshot of the blocks currently rendered by an {@link IBlockMap}.
+ * Each viewable block is referred to by its map index in {@link ViewableStates#getBlockStates()}.
+ */
+public class ViewableStates {
+    @Getter private final PackedBlockStates blockStates;
+    private final int[] mapIndices;
+
+    /**
+     * Incremented whenever states are removed, so that views know when they need to reset blocks that are no longer viewable.
+     */
+    @Getter private final int retractionCount;
+
+    // Only created if a view needs to check which states are contained
+    private volatile BitSet containedStates = null;
+    // Only created once a view needs to check the states' visibility
+    private volatile ViewableCells cells = null;
+    // Visibility results shared between views with nearby eye positions, keyed by the quantised eye position
+    private final Map<IntVector, boolean[]> sharedVisibility = new ConcurrentHashMap<>();
+
+    public ViewableStates(@NotNull PackedBlockStates blockStates, @NotNull int[] mapIndices) {
+        this(blockStates, mapIndices, 0);
+    }
+
+    public ViewableStates(@NotNull PackedBlockStates blockStates, @NotNull int[] mapIndices, int retractionCount) {
+        this.blockStates = blockStates;
+        this.mapIndices = mapIndices;
+        this.retractionCount = retractionCount;
+    }
+
+    /**
+     * @param i Index of the viewable block, between zero and {@link ViewableStates#size()}
+     * @return The map index of the viewable block
+     */
+    public int getMapIndex(int i) {
+        return mapIndices[i];
+    }
+
+    /**
+     * @param mapIndex Map index of the block
+     * @return Whether the block at <code>mapIndex</code> is one of the viewable states
+     */
+    public boolean contains(int mapIndex) {
+        BitSet contained = containedStates;
+        if(contained == null) {
+            // Creating the set twice on different threads is harmless, so no locking is done here
+            contained = new BitSet();
+            for(int index : mapIndices) {
+                contained.set(index);
+            }
+            containedStates = contained;
+        }
+
+        return contained.get(mapIndex);
+    }
+
+    /**
+     * The cells are created the first time this is called, then shared between every view of the portal.
+     * @return The viewable states grouped into cells
+     */
+    public @NotNull ViewableCells getCells() {
+        ViewableCells result = cells;
+        if(result == null) {
+            // As with the contained states, creating the cells twice on different threads is harmless
+            result = new ViewableCells(blockStates, mapIndices);
+            cells = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Since the results depend on which states are viewable, they are discarded along with this snapshot when the block map changes.
+     * @return Visibility results shared between views of the portal, keyed by quantised eye position. Each result stores whether each viewable state is visible
+     */
+    public @NotNull Map<IntVector, boolean[]> getSharedVisibility() {
+        return sharedVisibility;
+    }
+
+    public int size() {
+        return mapIndices.length;
+    }
+}
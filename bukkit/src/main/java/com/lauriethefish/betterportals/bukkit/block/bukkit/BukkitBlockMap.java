@@ -1,298 +1,486 @@
 package com.lauriethefish.betterportals.bukkit.block.bukkit;
 
 import com.comphenix.protocol.events.PacketContainer;
-import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapBounds;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapUpdateBudget;
 import com.lauriethefish.betterportals.bukkit.block.FloodFillBlockMap;
-import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.StateQueue;
+import com.lauriethefish.betterportals.bukkit.block.change.IBlockChangeTracker;
+import com.lauriethefish.betterportals.bukkit.block.change.TrackedArea;
 import com.lauriethefish.betterportals.bukkit.block.fetch.BlockDataFetcherFactory;
 import com.lauriethefish.betterportals.bukkit.block.fetch.IBlockDataFetcher;
-import com.lauriethefish.betterportals.bukkit.block.lighting.ILightDataManager;
-import com.lauriethefish.betterportals.bukkit.block.rotation.IBlockRotator;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapUpdateExecutor;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
+import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
-import org.bukkit.Material;
+import org.bukkit.Bukkit;
 import org.bukkit.World;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockState;
 import org.bukkit.block.data.BlockData;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * A bukkit implementation of a flood fill block map.
+ * The destination is flood filled by a {@link DestinationBlockMap}, which is shared with any other portals viewing the same area.
+ * This map compares the blocks reached by it with the origin blocks of this portal to find the viewable states.
+ * If asynchronous updates are enabled, the blocks are read from chunk snapshots so that the flood fill can run on a worker thread.
+ * Tile entity states can't be read from a snapshot, and are expensive to copy, so they are only fetched on the main thread when their block or contents change.
+ * If block change tracking is enabled, only the origin blocks changed since the last update are re-checked, apart from an occasional full check.
  */
 public class BukkitBlockMap extends FloodFillBlockMap {
-    private final IBlockRotator blockRotator;
+    private final DestinationBlockMapRegistry destinationRegistry;
     private final BlockDataFetcherFactory dataFetcherFactory;
-    private final Matrix rotateDestToOrigin;
-    private IBlockDataFetcher dataFetcher;
-
+    private final BlockMapUpdateExecutor updateExecutor;
+    private final IBlockChangeTracker changeTracker;
     private final World originWorld;
-    private final ILightDataManager lightDataManager;
+    private final JavaPlugin pl;
+
+    private DestinationBlockMap destinationMap;
+    private DestinationBlockMap.Subscription subscription;
+    private IBlockDataFetcher originDataFetcher;
+
+    private boolean asyncUpdates;
+    // Guards asyncUpdateRunning and resetPending, so that a reset requested as the update finishes isn't lost
+    private final Object asyncUpdateLock = new Object();
+    private volatile boolean asyncUpdateRunning = false;
+    private boolean resetPending = false;
 
-    private WrappedBlockData wrappedLightData;
+    private final TileEntityPacketMap originTileEntities;
+
+    private boolean trackChanges;
+    private TrackedArea originTrackedArea;
+    private int updatesSinceFullCheck;
+    // Set when the map is taken out of the cache, since changes made without an event may have been missed while the portal was inactive
+    private boolean fullCheckRequested = false;
+
+    // Map indices of the origin blocks that may have changed since the last update. Only used on the main thread
+    private final BitSet changedBlocks = new BitSet();
+    // Map indices of the origin blocks to check during the current update, or null if every reached block should be checked
+    private int[] blocksToCheck;
 
     @Inject
-    public BukkitBlockMap(@Assisted IPortal portal, Logger logger, RenderConfig renderConfig, IBlockRotator blockRotator, BlockDataFetcherFactory dataFetcherFactory, ILightDataManager lightDataManager) {
-        super(portal, logger, renderConfig);
-        this.blockRotator = blockRotator;
+    public BukkitBlockMap(@Assisted IPortal portal, Logger logger, RenderConfig renderConfig, DestinationBlockMapRegistry destinationRegistry, BlockDataFetcherFactory dataFetcherFactory,
+                          BlockMapUpdateExecutor updateExecutor, IBlockChangeTracker changeTracker, BlockMapUpdateBudget updateBudget, JavaPlugin pl) {
+        super(portal, logger, renderConfig, updateBudget);
+        this.destinationRegistry = destinationRegistry;
         this.dataFetcherFactory = dataFetcherFactory;
-        this.rotateDestToOrigin = portal.getTransformations().getRotateToOrigin();
-        this.lightDataManager = lightDataManager;
+        this.updateExecutor = updateExecutor;
+        this.changeTracker = changeTracker;
+        this.pl = pl;
 
         this.originWorld = portal.getOriginPos().getWorld();
-        logger.fine("Origin pos: %s, Dest pos: %s", portalOriginPos, portalDestPos);
+        this.originTileEntities = new TileEntityPacketMap(logger, updateExecutor, mapIndex -> getOriginPos(mapIndex).getBlock(originWorld));
+        logger.fine("Origin pos: %s, Dest pos: %s", portalOriginPos, portal.getDestPos().getVector());
         logger.fine("Origin direction: %s, Dest Direction: %s", portal.getOriginPos().getDirection(), portal.getDestPos().getDirection());
     }
 
-    protected void searchFromBlock(IntVector start, List<IViewableBlockInfo> statesOutput, @Nullable IViewableBlockInfo firstBlockInfo) {
-        WrappedBlockData backgroundData = getBackgroundData();
-
-        final int timeBetweenLightBlocks = renderConfig.getLightSimulationInterval();
+    /**
+     * Processes the changes found by the destination map since this portal last updated, then checks the origin blocks for changes.
+     * Must be synchronized on the destination map, since it may be updated by other portals at the same time.
+     * The number of changed blocks found is used to adjust the update interval.
+     * @param checkOrigin Whether to check the origin blocks selected by {@link BukkitBlockMap#selectBlocksToCheck()}
+     */
+    private void runUpdate(boolean checkOrigin) {
+        OperationTimer timer = new OperationTimer();
+        boolean wasInitialised = blockStates != null;
+        int changeCount = 0;
+        synchronized(destinationMap) {
+            destinationMap.runPreparedUpdate();
+
+            DestinationChanges changes;
+            while((changes = destinationMap.pollChanges(subscription)) != null) {
+                changeCount += applyDestinationChanges(changes);
+            }
 
-        if (wrappedLightData == null) {
-            wrappedLightData = lightDataManager.getLightData(portal);
+            if(checkOrigin && blockStates != null) {
+                changeCount += checkOriginForChanges();
+            }
         }
 
-        boolean enableLightBlocks = wrappedLightData != null && timeBetweenLightBlocks >= 1;
-        int airCount = 0;
-
-        // Preallocate stack with a reasonable size
-        int[] stack = new int[Math.max(16, renderConfig.getTotalArrayLength())]; // Adjusted to prevent frequent resizing
-        stack[0] = getArrayMapIndex(start.subtract(centerPos));
-        int stackPos = 0;
-
-        while (stackPos >= 0) {
-            int positionInt = stack[stackPos--];
+        // The initial flood fill doesn't say anything about how often the blocks change
+        if(wasInitialised) {
+            onChangesChecked(changeCount);
+        }
 
-            int relX = (positionInt % renderConfig.getZMultip());
-            int relY = Math.floorDiv(positionInt, renderConfig.getYMultip());
-            int relZ = Math.floorDiv(positionInt - relY * renderConfig.getYMultip(), renderConfig.getZMultip());
+        StateQueue currentQueue = stateQueue;
+        logger.fine("Viewable block array update took: %.3f ms. Viewable count: %d", timer.getTimeTakenMillis(), currentQueue == null ? 0 : currentQueue.stateCount());
+    }
 
-            relX -= renderConfig.getMaxXZ();
-            relY -= renderConfig.getMaxY();
-            relZ -= renderConfig.getMaxXZ();
+    /**
+     * Updates the viewable states with the reached and retracted blocks from the destination map.
+     * @param changes The changes to apply
+     * @return The number of changed destination blocks, or 0 if these are the initial blocks
+     */
+    private int applyDestinationChanges(DestinationChanges changes) {
+        if(changes.isInitial()) {
+            blockStates = new PackedBlockStates(renderConfig, portalOriginPos, destinationMap.getStates());
+            viewableMap = new byte[renderConfig.getTotalArrayLength()];
+
+            StateQueue newQueue = new StateQueue(logger, blockStates);
+            newQueue.addStatesInitially(classifyReachedStates(changes.getReachedStates(), true));
+            stateQueue = newQueue;
+            return 0;
+        }
 
-            IntVector originPos = new IntVector(relX + portalOriginPos.getX(), relY + portalOriginPos.getY(), relZ + portalOriginPos.getZ());
-            IntVector destRelPos = rotateOriginToDest.transform(relX, relY, relZ);
-            IntVector destPos = destRelPos.add(portalDestPos);
+        IntList newStates = classifyReachedStates(changes.getReachedStates(), false);
+        if(!newStates.isEmpty()) {
+            stateQueue.enqueueStates(newStates);
+        }
 
-            BlockData destData = dataFetcher.getData(destPos);
-            if (destData == null) {
-                logger.warning("Fetched data was null even though the request to get the data had already succeeded. This shouldn't happen!");
-                return;
+        // Blocks can be reached then retracted in the same update, so these are removed after adding the reached states
+        BitSet retracted = changes.getRetractedStates();
+        if(retracted != null) {
+            BitSet viewableRetracted = new BitSet();
+            for(int mapIndex = retracted.nextSetBit(0); mapIndex >= 0; mapIndex = retracted.nextSetBit(mapIndex + 1)) {
+                if(viewableMap[mapIndex] != 0) {
+                    viewableMap[mapIndex] = 0;
+                    viewableRetracted.set(mapIndex);
+                }
             }
 
-            boolean isOccluding = destData.getMaterial().isOccluding();
-
-            Block originBlock = originPos.getBlock(originWorld);
-            BlockData originData = originBlock.getBlockData();
+            if(!viewableRetracted.isEmpty()) {
+                stateQueue.removeStates(viewableRetracted);
+            }
+        }
 
-            handleTileEntityUpdates(originBlock, originPos, originData, destData, destPos);
+        return changes.getReachedStates().length + (retracted == null ? 0 : retracted.cardinality());
+    }
 
-            // Use the existing first block if given, otherwise make a new block info
-            BukkitBlockInfo blockInfo = firstBlockInfo == null ? new BukkitBlockInfo(originPos, originData, destData) : (BukkitBlockInfo) firstBlockInfo;
-            boolean isEdge = renderConfig.isOutsideBounds(relX, relY, relZ);
+    /**
+     * Fetches the origin data of blocks newly reached by the destination flood fill, and decides which should be viewable.
+     * @param reachedStates Map indices of the reached blocks
+     * @param initial Whether this is the first flood fill. Blocks that are the same at the origin and destination are skipped on the first flood fill, but not afterwards
+     * @return Map indices of the new viewable states
+     */
+    private IntList classifyReachedStates(int[] reachedStates, boolean initial) {
+        IntList newStates = new IntList();
+        for(int mapIndex : reachedStates) {
+            IntVector originPos = blockStates.getOriginPos(mapIndex);
+            BlockData originData = originDataFetcher.getData(originPos);
+
+            blockStates.setOriginData(mapIndex, originData);
+            handleOriginTileEntity(mapIndex, originData, false);
+
+            // Avoid adding multiple times
+            if(viewableMap[mapIndex] != 0) {continue;}
+
+            byte fillResult = destinationMap.getFillResult(mapIndex);
+            boolean viewable = fillResult == DestinationBlockMap.FILL_ALWAYS
+                    || (fillResult == DestinationBlockMap.FILL_IF_DIFFERENT && (!initial || !originData.equals(blockStates.getDestData(mapIndex))));
+
+            if(viewable) {
+                viewableMap[mapIndex] = 1;
+                newStates.add(mapIndex);
+            }
+        }
 
-            // Update rendered destination data
-            updateRenderedData(isEdge, isOccluding, blockInfo, backgroundData, destData);
+        return newStates;
+    }
 
-            if (firstBlockInfo == null) {
-                nonObscuredStates.add(blockInfo);
+    /**
+     * Checks the origin blocks for changes.
+     * We only need to check the blocks reached by the destination flood fill, since there is no need to re-flood-fill.
+     * @return The number of origin blocks that changed
+     */
+    private int checkOriginForChanges() {
+        IntList newStates = new IntList();
+        int changeCount = 0;
+
+        if(blocksToCheck == null) {
+            IntList reachedStates = destinationMap.getNonObscuredStates();
+            int statesLength = reachedStates.size();
+            for (int i = 0; i < statesLength; i++) {
+                if(checkBlockForChanges(reachedStates.get(i), newStates)) {changeCount++;}
             }
-            firstBlockInfo = null;
-
-            boolean canSkip = shouldSkipBlock(destData, originData, firstUpdate, isEdge);
-
-            boolean isInLine = isInLine(destRelPos);
-
-            if (alreadyReachedMap[positionInt] < 2 && !isInLine) {
-                if (enableLightBlocks && destData.getMaterial().isAir() && !isEdge) {
-                    airCount++;
-                    if (airCount == timeBetweenLightBlocks) {
-                        airCount = 0;
-                        blockInfo.setRenderedDestData(wrappedLightData);
-                        alreadyReachedMap[positionInt] = 2; // Avoid adding multiple times
-                        statesOutput.add(blockInfo);
-                    }
-                } else if (!canSkip) {
-                    alreadyReachedMap[positionInt] = 2; // Avoid adding multiple times
-                    statesOutput.add(blockInfo);
-                }
+        }   else    {
+            for(int mapIndex : blocksToCheck) {
+                // Blocks not reached by the flood fill are behind occluding blocks, so changes to them can't be seen
+                if(!destinationMap.isReached(mapIndex)) {continue;}
+
+                if(checkBlockForChanges(mapIndex, newStates)) {changeCount++;}
             }
+        }
 
-            if (isOccluding || isEdge) continue;
+        // Enqueue new states if any were found
+        if (!newStates.isEmpty()) {
+            stateQueue.enqueueStates(newStates);
+        }
+        return changeCount;
+    }
 
-            // Avoid stack resizing if possible
-            if (!firstUpdate && stack.length - (stackPos + 1) < 5) {
-                stack = Arrays.copyOf(stack, stack.length * 2);
-            }
+    private boolean checkBlockForChanges(int mapIndex, IntList newStates) {
+        IntVector originPos = blockStates.getOriginPos(mapIndex);
+        BlockData newOriginData = originDataFetcher.getData(originPos);
 
-            // Continue for surrounding blocks
-            for (int offset : renderConfig.getIntOffsets()) {
-                int newPos = positionInt + offset;
-                if (alreadyReachedMap[newPos] == 0) {
-                    alreadyReachedMap[newPos] = 1;
-                    stack[++stackPos] = newPos;
+        boolean changed = blockStates.setOriginData(mapIndex, newOriginData);
+        if(changed) {
+            // The block has been replaced, so any existing tile entity packet is out of date
+            originTileEntities.remove(mapIndex);
+        }
+        // Blocks checked because of an event may have had their tile entity changed, e.g. a sign being edited
+        handleOriginTileEntity(mapIndex, newOriginData, blocksToCheck != null || !trackChanges);
+
+        // Check for changes at the origin block
+        if (changed) {
+            if (!newOriginData.equals(blockStates.getDestData(mapIndex)) && !portal.getOriginPos().isInLine(originPos)) {
+                // Add to newStates if it's not already marked as viewable
+                if (viewableMap[mapIndex] == 0) {
+                    viewableMap[mapIndex] = 1;
+                    newStates.add(mapIndex);
                 }
             }
+            return true;
         }
+        return false;
     }
 
-    private void handleTileEntityUpdates(Block originBlock, IntVector originPos, BlockData originData, BlockData destData, IntVector destPos) {
-        // Handle tile entity updates for destination block if applicable
-        if (!portal.isCrossServer() && MaterialUtil.isTileEntity(destData.getMaterial())) {
-            logger.finer("Adding tile state to map . . .");
-            Block destBlock = destPos.getBlock(Objects.requireNonNull(portal.getDestPos().getWorld()));
-            PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
-            if (updatePacket != null) {
-                BlockDataUtil.setTileEntityPosition(updatePacket, originPos);
-                destTileStates.put(originPos, updatePacket);
-            }
+    private void handleOriginTileEntity(int mapIndex, BlockData originData, boolean forceRebuild) {
+        if (MaterialUtil.isTileEntity(originData.getMaterial())) {
+            originTileEntities.onTileEntityChecked(mapIndex, forceRebuild);
+        }   else    {
+            originTileEntities.remove(mapIndex);
         }
+    }
 
-        // Handle tile entity updates for origin block if applicable
-        if (MaterialUtil.isTileEntity(originBlock.getType())) {
-            logger.finer("Adding tile state to map . . .");
-            PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originBlock.getState());
-            if (updatePacket != null) {
-                originTileStates.put(originPos, updatePacket);
-            }
-        }
+    private IntVector getOriginPos(int mapIndex) {
+        int zMultip = renderConfig.getZMultip();
+        int yMultip = renderConfig.getYMultip();
+        return portalOriginPos.add(
+                mapIndex % zMultip - (int) renderConfig.getMaxXZ(),
+                mapIndex / yMultip - (int) renderConfig.getMaxY(),
+                (mapIndex % yMultip) / zMultip - (int) renderConfig.getMaxXZ()
+        );
+    }
+
+    /**
+     * Starts rebuilding the packets of the tile entities at both ends that changed during the last update.
+     * Must be called on the main thread.
+     */
+    private void processTileEntityChanges() {
+        originTileEntities.processChanged();
+        destinationMap.processTileEntityChanges();
     }
 
+    private void startTrackingChanges() {
+        changedBlocks.clear();
+        updatesSinceFullCheck = 0;
+
+        // The destination map tracks changes at the destination
+        BlockMapBounds originBounds = BlockMapBounds.around(renderConfig, portalOriginPos, Matrix.makeIdentity());
+        originTrackedArea = changeTracker.track(originWorld, originBounds, position -> markChanged(position.subtract(portalOriginPos)));
+    }
 
-    private void updateRenderedData(boolean isEdge, boolean isOccluding, BukkitBlockInfo blockInfo, WrappedBlockData backgroundData, BlockData destData) {
-        if (isEdge && !isOccluding) {
-            blockInfo.setRenderedDestData(backgroundData);
-        } else {
-            blockInfo.setRenderedDestData(WrappedBlockData.createData(blockRotator.rotateByMatrix(rotateDestToOrigin, destData)));
+    private void stopTrackingChanges() {
+        if(originTrackedArea != null) {
+            changeTracker.untrack(originTrackedArea);
+            originTrackedArea = null;
         }
     }
 
-    private boolean shouldSkipBlock(BlockData destData, BlockData originData, boolean firstUpdate, boolean isEdge) {
-        return destData.equals(originData) && firstUpdate && !isEdge;
+    /**
+     * Marks the origin block at <code>relPos</code> to be re-checked during the next update.
+     * @param relPos Position of the block relative to the portal origin
+     */
+    private void markChanged(IntVector relPos) {
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+        // The tracked area is padded, so some changes will be slightly outside the map
+        if(Math.abs(relPos.getX()) > maxXZ || Math.abs(relPos.getY()) > maxY || Math.abs(relPos.getZ()) > maxXZ) {return;}
+
+        changedBlocks.set(getArrayMapIndex(relPos));
+    }
+
+    /**
+     * Decides which origin blocks need to be checked during this update.
+     * Every reached block is checked if changes aren't tracked, and every {@link RenderConfig#getFullBlockCheckInterval()} updates to catch changes made without an event.
+     * @return Whether any blocks need to be checked
+     */
+    private boolean selectBlocksToCheck() {
+        int fullCheckInterval = renderConfig.getFullBlockCheckInterval();
+        if(fullCheckRequested || !trackChanges || (fullCheckInterval > 0 && ++updatesSinceFullCheck >= fullCheckInterval)) {
+            fullCheckRequested = false;
+            updatesSinceFullCheck = 0;
+            changedBlocks.clear();
+            blocksToCheck = null;
+            return true;
+        }
+
+        if(changedBlocks.isEmpty()) {
+            return false;
+        }
+
+        blocksToCheck = changedBlocks.stream().toArray();
+        changedBlocks.clear();
+        return true;
     }
 
     @Override
-    protected void checkForChanges() {
-        List<IViewableBlockInfo> newStates = new ArrayList<>();
-        int statesLength = nonObscuredStates.size();
-
-        // Loop through non-obscured states
-        for (int i = 0; i < statesLength; i++) {
-            BukkitBlockInfo blockInfo = (BukkitBlockInfo) nonObscuredStates.get(i);
-            IntVector originPos = blockInfo.getOriginPos();
-            IntVector destPos = rotateOriginToDest.transform(originPos.subtract(portalOriginPos)).add(portalDestPos);
-
-            // Fetch destination block data once
-            BlockData newDestData = dataFetcher.getData(destPos);
-            if (newDestData == null) continue; // Skip if data fetch failed
-
-            // Check for changes at the destination block
-            if (!newDestData.equals(blockInfo.getBaseDestData())) {
-                logger.finer("Destination block change detected at " + destPos);
-                blockInfo.setBaseDestData(newDestData);
-                searchFromBlock(originPos, newStates, blockInfo); // Reflood fill if necessary
-            }
+    protected void updateInternal() {
+        // Only one asynchronous update can be in progress at a time, since comparing the origin blocks isn't thread safe
+        if(asyncUpdateRunning) {
+            logger.fine("Not updating portal, the previous asynchronous update has not yet finished");
+            return;
+        }
 
-            // Handle tile entity updates if not cross-server
-            if (!portal.isCrossServer() && MaterialUtil.isTileEntity(newDestData.getMaterial())) {
-                Block destBlock = destPos.getBlock(Objects.requireNonNull(portal.getDestPos().getWorld()));
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
-                if (updatePacket != null) {
-                    BlockDataUtil.setTileEntityPosition(updatePacket, originPos);
-                    destTileStates.put(originPos, updatePacket);
-                }
-            }
+        if(isResetPending()) {
+            reset();
+        }
 
-            // Fetch and compare origin block data
-            Block originBlock = originPos.getBlock(originWorld);
-            BlockData newOriginData = originBlock.getBlockData();
+        if(destinationMap == null) {
+            destinationMap = destinationRegistry.acquire(portal);
+            subscription = destinationMap.subscribe();
 
-            // Handle origin tile entity updates
-            if (MaterialUtil.isTileEntity(originBlock.getType())) {
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originBlock.getState());
-                if (updatePacket != null) {
-                    originTileStates.put(originPos, updatePacket);
-                }
+            asyncUpdates = renderConfig.isAsyncBlockMapUpdates() && !portal.isCrossServer();
+            originDataFetcher = dataFetcherFactory.createOrigin(portal, asyncUpdates);
+
+            trackChanges = renderConfig.isBlockChangeTracking();
+            if(trackChanges) {
+                startTrackingChanges();
             }
+        }
 
-            // Check for changes at the origin block
-            if (!newOriginData.equals(blockInfo.getBaseOriginData())) {
-                blockInfo.setOriginData(newOriginData);
-                if (!newOriginData.equals(newDestData) && !portal.getOriginPos().isInLine(originPos)) {
-                    int position = getArrayMapIndex(originPos.subtract(portalOriginPos));
-                    // Add to newStates if it's not already marked as viewable
-                    if (alreadyReachedMap[position] < 2) {
-                        alreadyReachedMap[position] = 2;
-                        newStates.add(blockInfo);
-                    }
-                }
+        // Tile entities which changed during the last asynchronous update
+        processTileEntityChanges();
+
+        boolean destinationPrepared = destinationMap.prepareUpdate(subscription);
+        // The origin is checked when the initial states are added, so there's no need to check it separately before then
+        boolean checkOrigin = blockStates != null && selectBlocksToCheck();
+        if(!destinationPrepared && !checkOrigin && !destinationMap.hasChanges(subscription)) {
+            logger.finest("Not updating portal, no blocks have changed");
+            if(blockStates != null) {
+                onChangesChecked(0);
             }
+            return;
         }
 
-        // Update the tile state maps
-        updateTileStateMap(originTileStates, originWorld, false);
-        if (!portal.isCrossServer()) {
-            updateTileStateMap(destTileStates, portal.getDestPos().getWorld(), true);
+        if(!destinationMap.isReady()) {
+            logger.fine("Not updating portal, data was not yet been fetched");
+            return;
         }
 
-        // Enqueue new states if any were found
-        if (!newStates.isEmpty()) {
-            stateQueue.enqueueStates(newStates);
+        originDataFetcher.update();
+
+        if(asyncUpdates) {
+            asyncUpdateRunning = true;
+            updateExecutor.submit(() -> {
+                try {
+                    runUpdate(checkOrigin);
+                }   finally {
+                    onAsyncUpdateFinished();
+                }
+            });
+        }   else    {
+            runUpdate(checkOrigin);
+            processTileEntityChanges();
         }
     }
 
+    @Override
+    public @Nullable PacketContainer getOriginTileEntityPacket(@NotNull IntVector position) {
+        return originTileEntities.get(getArrayMapIndex(position.subtract(portalOriginPos)));
+    }
+
+    @Override
+    public @Nullable PacketContainer getDestinationTileEntityPacket(@NotNull IntVector position) {
+        DestinationBlockMap currentMap = destinationMap;
+        if(currentMap == null) {
+            return null;
+        }
 
-    private void updateTileStateMap(ConcurrentMap<IntVector, PacketContainer> map, World world, boolean isDestination) {
-        for(Map.Entry<IntVector, PacketContainer> entry : map.entrySet()) {
-            IntVector position;
-            if(isDestination) {
-                IntVector portalRelativePos = entry.getKey().subtract(portalOriginPos);
-                position = rotateOriginToDest.transform(portalRelativePos).add(portalDestPos);
-            }   else    {
-                position = entry.getKey();
-            }
+        PacketContainer destPacket = currentMap.getTileEntityPacket(getArrayMapIndex(position.subtract(portalOriginPos)));
+        if(destPacket == null) {
+            return null;
+        }
 
-            Block block = position.getBlock(world);
-            BlockState state = block.getState();
-            if(!MaterialUtil.isTileEntity(state.getType())) {
-                logger.finer("Removing tile state from map . . . %b", isDestination);
-                map.remove(entry.getKey());
-            }
+        // The packet is shared with other portals, so must be copied before moving it to this portal's origin
+        PacketContainer packet = destPacket.shallowClone();
+        BlockDataUtil.setTileEntityPosition(packet, position);
+        return packet;
+    }
+
+    @Override
+    public void onCached() {
+        if(destinationMap != null) {
+            destinationMap.pause(subscription);
         }
     }
 
     @Override
-    protected void updateInternal() {
-        if(dataFetcher == null) {
-            dataFetcher = dataFetcherFactory.create(portal);
+    public void revalidate() {
+        fullCheckRequested = true;
+        if(destinationMap != null) {
+            destinationMap.resume(subscription);
+            destinationMap.requestFullCheck();
         }
-        dataFetcher.update();
+    }
 
-        // If fetching external blocks has not yet finished, we can't do the flood-fill.
-        if(!dataFetcher.isReady()) {
-            logger.fine("Not updating portal, data was not yet been fetched");
-            return;
+    /**
+     * Called on the worker thread when an asynchronous update finishes.
+     * If a reset was requested while the update was running, it is run on the main thread, since the portal may never update again, e.g. if it was deactivated or evicted from the cache.
+     */
+    private void onAsyncUpdateFinished() {
+        synchronized(asyncUpdateLock) {
+            asyncUpdateRunning = false;
+            if(!resetPending) {return;}
         }
 
-        super.updateInternal();
+        // No tasks can be scheduled once the plugin is disabled, and the map is discarded anyway
+        if(!pl.isEnabled()) {return;}
+        Bukkit.getScheduler().runTask(pl, () -> {
+            // The next update may have already run the reset
+            if(isResetPending()) {
+                reset();
+            }
+        });
+    }
+
+    private boolean isResetPending() {
+        synchronized(asyncUpdateLock) {
+            boolean result = resetPending;
+            resetPending = false;
+            return result;
+        }
     }
 
     @Override
     public void reset() {
-        dataFetcher = null;
-        wrappedLightData = null;
+        // Resetting while the update is running on another thread would cause it to write to the new state, so wait until it finishes
+        // Called by the super constructor before the lock is created, when no update can be running
+        if(asyncUpdateLock != null) {
+            synchronized(asyncUpdateLock) {
+                if(asyncUpdateRunning) {
+                    logger.finer("Deferring block map reset until asynchronous update has finished");
+                    resetPending = true;
+                    return;
+                }
+            }
+        }
+
+        stopTrackingChanges();
+        if(destinationMap != null) {
+            destinationMap.unsubscribe(subscription);
+            destinationRegistry.release(destinationMap);
+            destinationMap = null;
+            subscription = null;
+        }
+        originDataFetcher = null;
+        fullCheckRequested = false;
+        // Called by the super constructor before the packet map is created
+        if(originTileEntities != null) {
+            originTileEntities.clear();
+        }
         super.reset();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,629 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.comphenix.protocol.events.PacketContainer;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapBounds;
+import com.lauriethefish.betterportals.bukkit.block.DestinationStates;
+import com.lauriethefish.betterportals.bukkit.block.change.IBlockChangeTracker;
+import com.lauriethefish.betterportals.bukkit.block.change.TrackedArea;
+import com.lauriethefish.betterportals.bukkit.block.fetch.BlockDataFetcherFactory;
+import com.lauriethefish.betterportals.bukkit.block.fetch.IBlockDataFetcher;
+import com.lauriethefish.betterportals.bukkit.block.lighting.ILightDataManager;
+import com.lauriethefish.betterportals.bukkit.block.rotation.BlockRotationCache;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.MathUtil;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapUpdateExecutor;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
+import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
+import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Flood fills the destination of a portal to find the blocks that could be seen through it.
+ * Portals which view the same destination area with the same rotation share one of these, see {@link DestinationBlockMapRegistry}.
+ * Each portal then compares the reached blocks to its own origin blocks to find which need to be rendered.
+ *
+ * Updating happens in two stages: {@link DestinationBlockMap#prepareUpdate(Subscription)} fetches the blocks on the main thread,
+ * then {@link DestinationBlockMap#runPreparedUpdate()} does the flood fill, possibly on another thread.
+ * Everything other than preparing must be done while synchronized on this map.
+ */
+public class DestinationBlockMap {
+    /**
+     * The flood fill doesn't render this block, although it is still rendered if the origin block changes.
+     */
+    public static final byte FILL_HIDDEN = 0;
+
+    /**
+     * The block is rendered if it differs from the origin block, or if it was reached after the initial flood fill.
+     */
+    public static final byte FILL_IF_DIFFERENT = 1;
+
+    /**
+     * The block is always rendered, for instance since it is on the edge of the map.
+     */
+    public static final byte FILL_ALWAYS = 2;
+
+    private final Logger logger;
+    private final RenderConfig renderConfig;
+    private final BlockDataFetcherFactory dataFetcherFactory;
+    private final IBlockChangeTracker changeTracker;
+    private final BlockRotationCache rotationCache;
+    private final ILightDataManager lightDataManager;
+
+    private final IPortal portal;
+    @Getter private final @Nullable DestinationBlockMapRegistry.Key key;
+    private final Matrix rotateOriginToDest;
+    private final Matrix rotateDestToOrigin;
+    private final IntVector destPos;
+    private final PortalDirection destDirection;
+
+    // Number of portals using this map, only used by the registry
+    int references = 0;
+
+    private IBlockDataFetcher dataFetcher;
+
+    @Getter private DestinationStates states;
+    // 0 if a block hasn't been reached by the flood fill, 1 otherwise
+    private byte[] reachedMap;
+    private byte[] fillResults;
+    // Map indices of every block reached by the flood fill
+    private IntList nonObscuredStates = new IntList();
+    private boolean firstUpdate = true;
+    private volatile boolean hasStates = false;
+    // Set when a reached destination block becomes occluding, since the blocks behind it may no longer be reachable
+    private boolean retractionNeeded = false;
+
+    private final TileEntityPacketMap tileEntities;
+
+    private boolean trackChanges;
+    private TrackedArea trackedArea;
+    private int updatesSinceFullCheck;
+    private boolean fullCheckRequested = false;
+    // Map indices of the blocks that may have changed since the last update. Only used on the main thread
+    private final BitSet changedBlocks = new BitSet();
+    // Map indices of the blocks to check during the prepared update, or null if every reached block should be checked
+    private int[] blocksToCheck;
+
+    private volatile boolean updatePrepared = false;
+
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    public DestinationBlockMap(@NotNull IPortal portal, @Nullable DestinationBlockMapRegistry.Key key, Logger logger, RenderConfig renderConfig, BlockDataFetcherFactory dataFetcherFactory,
+                               IBlockChangeTracker changeTracker, BlockRotationCache rotationCache, ILightDataManager lightDataManager, BlockMapUpdateExecutor updateExecutor) {
+        this.portal = portal;
+        this.key = key;
+        this.logger = logger;
+        this.renderConfig = renderConfig;
+        this.dataFetcherFactory = dataFetcherFactory;
+        this.changeTracker = changeTracker;
+        this.rotationCache = rotationCache;
+        this.lightDataManager = lightDataManager;
+
+        this.rotateOriginToDest = portal.getTransformations().getRotateToDestination();
+        this.rotateDestToOrigin = portal.getTransformations().getRotateToOrigin();
+        this.destDirection = portal.getDestPos().getDirection();
+        this.destPos = findDestPos(portal);
+        this.tileEntities = new TileEntityPacketMap(logger, updateExecutor,
+                mapIndex -> rotateOriginToDest.transform(getRelativePos(mapIndex)).add(destPos).getBlock(Objects.requireNonNull(portal.getDestPos().getWorld())));
+    }
+
+    /**
+     * Finds the destination position of <code>portal</code> that block map indices are relative to, by rounding based on the portal's direction.
+     * @param portal The portal to find the position of
+     * @return The rounded destination position
+     */
+    public static @NotNull IntVector findDestPos(@NotNull IPortal portal) {
+        Vector originPosVec = portal.getOriginPos().getVector();
+        Vector originPosCenter = MathUtil.moveToCenterOfBlock(originPosVec);
+        Vector relOriginPos = originPosCenter.clone().subtract(originPosVec);
+        Vector relDestPos = portal.getTransformations().rotateToDestination(relOriginPos);
+        Vector destPosCenter = portal.getDestPos().getVector().add(relDestPos);
+
+        return new IntVector(destPosCenter);
+    }
+
+    /**
+     * A portal using this map.
+     * Changes found by each update are queued separately for each subscription, since portals update at different times.
+     */
+    public static class Subscription {
+        private final Queue<DestinationChanges> changes = new ConcurrentLinkedQueue<>();
+        private volatile boolean receivedInitial = false;
+        // Set while the portal's map is in the cache, since nothing polls the changes until it is reactivated
+        private volatile boolean paused = false;
+    }
+
+    /**
+     * Starts queueing changes for a new portal using this map.
+     * The first changes given to the subscription will be all of the reached blocks.
+     * @return The new subscription
+     */
+    public @NotNull Subscription subscribe() {
+        Subscription subscription = new Subscription();
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public void unsubscribe(@NotNull Subscription subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * Stops queueing changes for a portal whose map is in the {@link com.lauriethefish.betterportals.bukkit.block.BlockMapCache}.
+     * If the blocks change while paused, the subscription is given all of the reached blocks again once resumed, instead of every change since pausing.
+     * @param subscription Subscription of the cached portal
+     */
+    public void pause(@NotNull Subscription subscription) {
+        subscription.paused = true;
+    }
+
+    /**
+     * Starts queueing changes again for a portal whose map was taken out of the cache.
+     * @param subscription Subscription of the reactivated portal
+     */
+    public void resume(@NotNull Subscription subscription) {
+        subscription.paused = false;
+    }
+
+    /**
+     * Called by the registry once no portals are using this map.
+     */
+    void close() {
+        if(trackedArea != null) {
+            changeTracker.untrack(trackedArea);
+            trackedArea = null;
+        }
+        tileEntities.clear();
+    }
+
+    private @NotNull IntVector getRelativePos(int mapIndex) {
+        int relX = mapIndex % renderConfig.getZMultip();
+        int relY = Math.floorDiv(mapIndex, renderConfig.getYMultip());
+        int relZ = Math.floorDiv(mapIndex - relY * renderConfig.getYMultip(), renderConfig.getZMultip());
+
+        return new IntVector(relX - (int) renderConfig.getMaxXZ(), relY - (int) renderConfig.getMaxY(), relZ - (int) renderConfig.getMaxXZ());
+    }
+
+    private boolean isInLine(IntVector destRelPos) {
+        return destDirection.swapVector(destRelPos).getZ() == 0;
+    }
+
+    /**
+     * Fetches the destination blocks for the next update if any may have changed.
+     * Must be called on the main thread. If the map is shared, only the first portal to call this before the update runs will fetch the blocks.
+     * @param caller The subscription of the portal preparing the update
+     * @return Whether an update was prepared
+     */
+    public boolean prepareUpdate(@NotNull Subscription caller) {
+        // Another portal using this map has already prepared an update which hasn't finished running
+        if(updatePrepared) {return true;}
+
+        if(dataFetcher == null) {
+            boolean asyncUpdates = renderConfig.isAsyncBlockMapUpdates() && !portal.isCrossServer();
+            dataFetcher = asyncUpdates ? dataFetcherFactory.createSnapshot(portal) : dataFetcherFactory.create(portal);
+            states = new DestinationStates(renderConfig.getTotalArrayLength());
+            reachedMap = new byte[renderConfig.getTotalArrayLength()];
+            fillResults = new byte[renderConfig.getTotalArrayLength()];
+
+            trackChanges = renderConfig.isBlockChangeTracking() && !portal.isCrossServer();
+            if(trackChanges) {
+                startTrackingChanges();
+            }
+        }
+
+        processTileEntityChanges();
+
+        if(!selectBlocksToCheck(caller)) {
+            return false;
+        }
+
+        dataFetcher.update();
+        // If fetching external blocks has not yet finished, we can't do the flood-fill.
+        if(!dataFetcher.isReady()) {
+            logger.fine("Not updating portal, data was not yet been fetched");
+            return false;
+        }
+
+        // These use the Bukkit API, so must be found on the main thread
+        states.setBackgroundData(renderConfig.findBackgroundData(portal.getDestPos()));
+        if(states.getLightData() == null) {
+            states.setLightData(lightDataManager.getLightData(portal));
+        }
+
+        updatePrepared = true;
+        return true;
+    }
+
+    /**
+     * Decides which blocks need to be checked during the next update.
+     * Every reached block is checked on the first update, if changes aren't tracked, and every {@link RenderConfig#getFullBlockCheckInterval()} updates to catch changes made without an event.
+     * @param caller Subscription of the portal preparing the update. Only the first portal using the map counts towards full checks, so that sharing the map doesn't make them more frequent
+     * @return Whether any blocks need to be checked
+     */
+    private boolean selectBlocksToCheck(Subscription caller) {
+        int fullCheckInterval = renderConfig.getFullBlockCheckInterval();
+        boolean countsTowardsFullCheck = subscriptions.isEmpty() || subscriptions.get(0) == caller;
+        if(firstUpdate || fullCheckRequested || !trackChanges || (countsTowardsFullCheck && fullCheckInterval > 0 && ++updatesSinceFullCheck >= fullCheckInterval)) {
+            fullCheckRequested = false;
+            updatesSinceFullCheck = 0;
+            changedBlocks.clear();
+            blocksToCheck = null;
+            return true;
+        }
+
+        if(changedBlocks.isEmpty()) {
+            return false;
+        }
+
+        blocksToCheck = changedBlocks.stream().toArray();
+        changedBlocks.clear();
+        return true;
+    }
+
+    private void startTrackingChanges() {
+        changedBlocks.clear();
+        updatesSinceFullCheck = 0;
+
+        BlockMapBounds bounds = BlockMapBounds.around(renderConfig, destPos, rotateOriginToDest);
+        trackedArea = changeTracker.track(Objects.requireNonNull(portal.getDestPos().getWorld()), bounds,
+                position -> markChanged(rotateDestToOrigin.transform(position.subtract(destPos))));
+    }
+
+    /**
+     * Marks the block at <code>relPos</code> to be re-checked during the next update.
+     * @param relPos Position of the block relative to the portal origin
+     */
+    private void markChanged(IntVector relPos) {
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+        // The tracked area is padded, so some changes will be slightly outside the map
+        if(Math.abs(relPos.getX()) > maxXZ || Math.abs(relPos.getY()) > maxY || Math.abs(relPos.getZ()) > maxXZ) {return;}
+
+        changedBlocks.set(renderConfig.getMapIndex(relPos));
+    }
+
+    /**
+     * Makes the next update check every reached block, for instance since a portal using this map was reactivated and changes made without an event may have been missed.
+     * Must be called on the main thread.
+     */
+    public void requestFullCheck() {
+        fullCheckRequested = true;
+    }
+
+    /**
+     * @return Whether the destination blocks have been fetched, so the update can run
+     */
+    public boolean isReady() {
+        return dataFetcher != null && dataFetcher.isReady();
+    }
+
+    /**
+     * @param subscription Subscription of the portal to check
+     * @return Whether there are changes for the portal to process, or it hasn't yet been given the initial blocks
+     */
+    public boolean hasChanges(@NotNull Subscription subscription) {
+        return subscription.receivedInitial ? !subscription.changes.isEmpty() : hasStates;
+    }
+
+    /**
+     * Runs the flood fill for the prepared update, if another portal using this map hasn't already.
+     * The changes found are queued for each subscription.
+     */
+    public synchronized void runPreparedUpdate() {
+        if(!updatePrepared) {return;}
+
+        try {
+            OperationTimer timer = new OperationTimer();
+            boolean wasFirstUpdate = firstUpdate;
+
+            IntList reachedStates = new IntList();
+            if(firstUpdate) {
+                searchFromBlock(renderConfig.getMapIndex(new IntVector(0, 0, 0)), reachedStates, false);
+            }   else    {
+                checkForChanges(reachedStates);
+            }
+            firstUpdate = false;
+            hasStates = true;
+
+            BitSet retractedStates = null;
+            if(retractionNeeded) {
+                retractionNeeded = false;
+                retractedStates = retractUnreachableStates();
+            }
+
+            // Portals which haven't yet received the initial blocks are given all of them when they poll, so don't need these changes
+            if(!wasFirstUpdate && (!reachedStates.isEmpty() || retractedStates != null)) {
+                DestinationChanges changes = new DestinationChanges(reachedStates.toArray(), retractedStates, false);
+                for(Subscription subscription : subscriptions) {
+                    if(!subscription.receivedInitial) {continue;}
+
+                    if(subscription.paused) {
+                        // Queueing changes for a cached portal would grow without limit, so it is given all of the reached blocks instead when next polled
+                        subscription.receivedInitial = false;
+                        subscription.changes.clear();
+                    }   else    {
+                        subscription.changes.add(changes);
+                    }
+                }
+            }
+
+            logger.fine("Destination block map update took: %.3f ms. Block count: %d. Portals: %d", timer.getTimeTakenMillis(), nonObscuredStates.size(), subscriptions.size());
+        }   finally {
+            updatePrepared = false;
+        }
+    }
+
+    /**
+     * Finds the next changes for a portal using this map.
+     * The first changes found for each subscription are all of the currently reached blocks.
+     * @param subscription Subscription of the portal
+     * @return The changes, or null if there are none
+     */
+    public synchronized @Nullable DestinationChanges pollChanges(@NotNull Subscription subscription) {
+        if(!subscription.receivedInitial) {
+            if(!hasStates) {return null;}
+
+            subscription.receivedInitial = true;
+            subscription.changes.clear();
+            return new DestinationChanges(nonObscuredStates.toArray(), null, true);
+        }
+
+        return subscription.changes.poll();
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return Whether the block at <code>mapIndex</code> has been reached by the flood fill
+     */
+    public boolean isReached(int mapIndex) {
+        return reachedMap[mapIndex] != 0;
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return How the flood fill decided to render the block, one of {@link DestinationBlockMap#FILL_HIDDEN}, {@link DestinationBlockMap#FILL_IF_DIFFERENT} or {@link DestinationBlockMap#FILL_ALWAYS}
+     */
+    public byte getFillResult(int mapIndex) {
+        return fillResults[mapIndex];
+    }
+
+    /**
+     * @return Map indices of every block reached by the flood fill. Must not be modified
+     */
+    public @NotNull IntList getNonObscuredStates() {
+        return nonObscuredStates;
+    }
+
+    /**
+     * @param mapIndex Index of the block in the map
+     * @return The tile entity update packet of the destination block, still positioned at the destination, or null if it isn't a tile entity
+     */
+    public @Nullable PacketContainer getTileEntityPacket(int mapIndex) {
+        return tileEntities.get(mapIndex);
+    }
+
+    /**
+     * Starts rebuilding the packets of the tile entities that changed during the last update.
+     * Must be called on the main thread.
+     */
+    public void processTileEntityChanges() {
+        tileEntities.processChanged();
+    }
+
+    /**
+     * Starts a flood fill from <code>startIndex</code> out to the edges of the viewed portal area.
+     * The fill stops when it reaches occluding blocks, as we don't need to render other blocks behind these.
+     * @param startIndex Map index of the start of the flood fill
+     * @param reachedOutput List to place the map indices of every block processed within
+     * @param startAlreadyReached Whether the first block has already been reached by a previous flood fill, so shouldn't be added to the non-obscured states again. Useful for incremental updates
+     */
+    private void searchFromBlock(int startIndex, IntList reachedOutput, boolean startAlreadyReached) {
+        final int timeBetweenLightBlocks = renderConfig.getLightSimulationInterval();
+        boolean enableLightBlocks = states.getLightData() != null && timeBetweenLightBlocks >= 1;
+        int airCount = 0;
+
+        // Preallocate stack with a reasonable size
+        int[] stack = new int[Math.max(16, renderConfig.getTotalArrayLength())]; // Adjusted to prevent frequent resizing
+        stack[0] = startIndex;
+        reachedMap[startIndex] = 1;
+        int stackPos = 0;
+
+        while (stackPos >= 0) {
+            int positionInt = stack[stackPos--];
+
+            IntVector relPos = getRelativePos(positionInt);
+            IntVector destRelPos = rotateOriginToDest.transform(relPos);
+            IntVector blockDestPos = destRelPos.add(destPos);
+
+            BlockData destData = dataFetcher.getData(blockDestPos);
+            if (destData == null) {
+                logger.warning("Fetched data was null even though the request to get the data had already succeeded. This shouldn't happen!");
+                return;
+            }
+
+            boolean isOccluding = destData.getMaterial().isOccluding();
+
+            handleTileEntityUpdates(positionInt, destData, false);
+
+            states.setDestData(positionInt, destData);
+            boolean isEdge = renderConfig.isOutsideBounds(relPos.getX(), relPos.getY(), relPos.getZ());
+
+            // Update rendered destination data
+            updateRenderedData(isEdge, isOccluding, positionInt, destData);
+
+            // The first block of an incremental update is already in the non-obscured states
+            if (!startAlreadyReached) {
+                nonObscuredStates.add(positionInt);
+            }
+            startAlreadyReached = false;
+            reachedOutput.add(positionInt);
+
+            byte fillResult;
+            if (isInLine(destRelPos)) {
+                fillResult = FILL_HIDDEN;
+            }   else if (enableLightBlocks && destData.getMaterial().isAir() && !isEdge) {
+                airCount++;
+                if (airCount == timeBetweenLightBlocks) {
+                    airCount = 0;
+                    states.setRenderedSpecial(positionInt, DestinationStates.RENDERED_LIGHT);
+                    fillResult = FILL_ALWAYS;
+                }   else    {
+                    fillResult = FILL_HIDDEN;
+                }
+            }   else if (isEdge) {
+                fillResult = FILL_ALWAYS;
+            }   else    {
+                fillResult = FILL_IF_DIFFERENT;
+            }
+            fillResults[positionInt] = fillResult;
+
+            if (isOccluding || isEdge) continue;
+
+            // Avoid stack resizing if possible
+            if (stack.length - (stackPos + 1) < 6) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+
+            // Continue for surrounding blocks
+            for (int offset : renderConfig.getIntOffsets()) {
+                int newPos = positionInt + offset;
+                if (reachedMap[newPos] == 0) {
+                    reachedMap[newPos] = 1;
+                    stack[++stackPos] = newPos;
+                }
+            }
+        }
+    }
+
+    private void updateRenderedData(boolean isEdge, boolean isOccluding, int mapIndex, BlockData destData) {
+        if (isEdge && !isOccluding) {
+            states.setRenderedSpecial(mapIndex, DestinationStates.RENDERED_BACKGROUND);
+        } else {
+            states.setRenderedDestData(mapIndex, rotationCache.rotate(rotateDestToOrigin, destData));
+        }
+    }
+
+    /**
+     * Checks the destination blocks for changes.
+     * We must check all blocks that were reached by the flood-fill (or those that were changed if tracking changes), then do a re-flood-fill for any that have changed to add blocks in a newly revealed cavern, for instance.
+     * @param reachedOutput List to place the map indices of the changed and newly reached blocks within
+     */
+    private void checkForChanges(IntList reachedOutput) {
+        if(blocksToCheck == null) {
+            // The flood fill adds to the non-obscured states, but the new states don't need to be checked again
+            int statesLength = nonObscuredStates.size();
+            for (int i = 0; i < statesLength; i++) {
+                checkBlockForChanges(nonObscuredStates.get(i), reachedOutput);
+            }
+        }   else    {
+            for(int mapIndex : blocksToCheck) {
+                // Blocks not reached by the flood fill are behind occluding blocks, so changes to them can't be seen
+                if(reachedMap[mapIndex] == 0) {continue;}
+
+                checkBlockForChanges(mapIndex, reachedOutput);
+            }
+        }
+    }
+
+    private void checkBlockForChanges(int mapIndex, IntList reachedOutput) {
+        IntVector blockDestPos = rotateOriginToDest.transform(getRelativePos(mapIndex)).add(destPos);
+
+        BlockData newDestData = dataFetcher.getData(blockDestPos);
+        if (newDestData == null) return; // Skip if data fetch failed
+
+        BlockData oldDestData = states.getDestData(mapIndex);
+        if (states.setDestData(mapIndex, newDestData)) {
+            logger.finer("Destination block change detected at " + blockDestPos);
+            // Blocks behind a newly occluding block may no longer be reachable, so must be removed after checking for changes
+            if (newDestData.getMaterial().isOccluding() && (oldDestData == null || !oldDestData.getMaterial().isOccluding())) {
+                retractionNeeded = true;
+            }
+
+            // The block has been replaced, so any existing tile entity packet is out of date
+            tileEntities.remove(mapIndex);
+            searchFromBlock(mapIndex, reachedOutput, true); // Reflood fill if necessary
+        }   else    {
+            // Blocks checked because of an event may have had their tile entity changed, e.g. a sign being edited
+            handleTileEntityUpdates(mapIndex, newDestData, blocksToCheck != null || !trackChanges);
+        }
+    }
+
+    /**
+     * Finds the blocks that the flood fill can no longer reach, for instance since a cave has been sealed.
+     * Reachability is found using the already fetched destination data, so no blocks are read.
+     * The removed blocks are marked as not reached, so that the flood fill can reach them again if they are revealed.
+     * @return Map indices of the removed blocks
+     */
+    private @NotNull BitSet retractUnreachableStates() {
+        BitSet reachable = new BitSet(renderConfig.getTotalArrayLength());
+
+        int[] stack = new int[64];
+        int stackPos = 0;
+        int centerIndex = renderConfig.getMapIndex(new IntVector(0, 0, 0));
+        stack[0] = centerIndex;
+        reachable.set(centerIndex);
+
+        while(stackPos >= 0) {
+            int mapIndex = stack[stackPos--];
+
+            // Same as the flood fill, occluding and edge blocks are reached, but don't continue the fill
+            BlockData destData = states.getDestData(mapIndex);
+            if(destData == null || destData.getMaterial().isOccluding()) {continue;}
+            IntVector relPos = getRelativePos(mapIndex);
+            if(renderConfig.isOutsideBounds(relPos.getX(), relPos.getY(), relPos.getZ())) {continue;}
+
+            for(int offset : renderConfig.getIntOffsets()) {
+                int newPos = mapIndex + offset;
+                // The new reachable blocks are always a subset of the previously reached blocks, since blocks only become reachable via a flood fill
+                if(reachedMap[newPos] != 0 && !reachable.get(newPos)) {
+                    reachable.set(newPos);
+                    if(stackPos + 1 == stack.length) {
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    }
+                    stack[++stackPos] = newPos;
+                }
+            }
+        }
+
+        BitSet retracted = new BitSet();
+        IntList remainingStates = new IntList(nonObscuredStates.size());
+        for(int i = 0; i < nonObscuredStates.size(); i++) {
+            int mapIndex = nonObscuredStates.get(i);
+            if(reachable.get(mapIndex)) {
+                remainingStates.add(mapIndex);
+                continue;
+            }
+
+            retracted.set(mapIndex);
+            reachedMap[mapIndex] = 0;
+            fillResults[mapIndex] = FILL_HIDDEN;
+            tileEntities.remove(mapIndex);
+        }
+
+        logger.fine("Retracted %d unreachable blocks", retracted.cardinality());
+        nonObscuredStates = remainingStates;
+        return retracted;
+    }
+
+    private void handleTileEntityUpdates(int mapIndex, BlockData destData, boolean forceRebuild) {
+        if (portal.isCrossServer()) {return;}
+
+        if (MaterialUtil.isTileEntity(destData.getMaterial())) {
+            tileEntities.onTileEntityChecked(mapIndex, forceRebuild);
+        }   else    {
+            tileEntities.remove(mapIndex);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.block.change.IBlockChangeTracker;
+import com.lauriethefish.betterportals.bukkit.block.fetch.BlockDataFetcherFactory;
+import com.lauriethefish.betterportals.bukkit.block.lighting.ILightDataManager;
+import com.lauriethefish.betterportals.bukkit.block.rotation.BlockRotationCache;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapUpdateExecutor;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Keeps track of the {@link DestinationBlockMap}s in use, so that portals viewing the same destination area share one.
+ * Maps are keyed by the destination world, position and rotation, and are reference counted so that they are removed once no portals use them.
+ * Cross server portals, and those which aren't rotated by a multiple of 90 degrees, always get their own map.
+ * Must only be used on the main thread.
+ */
+@Singleton
+public class DestinationBlockMapRegistry {
+    private final Logger logger;
+    private final RenderConfig renderConfig;
+    private final BlockDataFetcherFactory dataFetcherFactory;
+    private final IBlockChangeTracker changeTracker;
+    private final BlockRotationCache rotationCache;
+    private final ILightDataManager lightDataManager;
+    private final BlockMapUpdateExecutor updateExecutor;
+
+    private final Map<Key, DestinationBlockMap> sharedMaps = new HashMap<>();
+    private int unsharedMapCount = 0;
+    private int totalReferences = 0;
+
+    @Inject
+    public DestinationBlockMapRegistry(Logger logger, RenderConfig renderConfig, BlockDataFetcherFactory dataFetcherFactory, IBlockChangeTracker changeTracker,
+                                       BlockRotationCache rotationCache, ILightDataManager lightDataManager, BlockMapUpdateExecutor updateExecutor) {
+        this.logger = logger;
+        this.renderConfig = renderConfig;
+        this.dataFetcherFactory = dataFetcherFactory;
+        this.changeTracker = changeTracker;
+        this.rotationCache = rotationCache;
+        this.lightDataManager = lightDataManager;
+        this.updateExecutor = updateExecutor;
+    }
+
+    /**
+     * Finds the destination map for <code>portal</code>, creating it if no other portal views the same area.
+     * Each call must be matched by a call to {@link DestinationBlockMapRegistry#release(DestinationBlockMap)}.
+     * @param portal The portal to find the map of
+     * @return The destination map
+     */
+    public @NotNull DestinationBlockMap acquire(@NotNull IPortal portal) {
+        totalReferences++;
+
+        Key key = createKey(portal);
+        if(key == null) {
+            unsharedMapCount++;
+            return createMap(portal, null);
+        }
+
+        DestinationBlockMap map = sharedMaps.computeIfAbsent(key, k -> createMap(portal, k));
+        map.references++;
+        logger.fine("Acquired destination block map at %s. Portals using map: %d", key.position, map.references);
+        return map;
+    }
+
+    /**
+     * Stops <code>portal</code> using <code>map</code>, closing it if no other portals use it.
+     * @param map The map to release
+     */
+    public void release(@NotNull DestinationBlockMap map) {
+        totalReferences--;
+
+        Key key = map.getKey();
+        if(key == null) {
+            unsharedMapCount--;
+            map.close();
+            return;
+        }
+
+        if(--map.references <= 0) {
+            logger.fine("Removing unused destination block map at %s", key.position);
+            sharedMaps.remove(key);
+            map.close();
+        }
+    }
+
+    /**
+     * @return The number of destination maps currently in use
+     */
+    public int getMapCount() {
+        return sharedMaps.size() + unsharedMapCount;
+    }
+
+    /**
+     * @return The number of portals currently using a destination map
+     */
+    public int getPortalCount() {
+        return totalReferences;
+    }
+
+    private DestinationBlockMap createMap(IPortal portal, Key key) {
+        return new DestinationBlockMap(portal, key, logger, renderConfig, dataFetcherFactory, changeTracker, rotationCache, lightDataManager, updateExecutor);
+    }
+
+    private Key createKey(IPortal portal) {
+        if(portal.isCrossServer()) {return null;}
+
+        int rotation = portal.getTransformations().getRotateToDestination().getRotationKey();
+        if(rotation == Matrix.NON_AXIS_ALIGNED) {return null;}
+
+        return new Key(Objects.requireNonNull(portal.getDestPos().getWorld()).getUID(), DestinationBlockMap.findDestPos(portal), rotation, portal.getDestPos().getDirection());
+    }
+
+    static class Key {
+        private final UUID worldId;
+        private final IntVector position;
+        private final int rotation;
+        private final PortalDirection direction;
+
+        Key(UUID worldId, IntVector position, int rotation, PortalDirection direction) {
+            this.worldId = worldId;
+            this.position = position;
+            this.rotation = rotation;
+            this.direction = direction;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(this == other) {return true;}
+            if(!(other instanceof Key)) {return false;}
+
+            Key otherKey = (Key) other;
+            return rotation == otherKey.rotation && worldId.equals(otherKey.worldId) && position.equals(otherKey.position) && direction == otherKey.direction;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(worldId, position, rotation, direction);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.BitSet;
+
+/**
+ * The blocks changed by one update of a {@link DestinationBlockMap}, given to each portal using the map so that they can compare them to their origin blocks.
+ */
+@Getter
+public class DestinationChanges {
+    /**
+     * Map indices of the blocks reached by the flood fill during the update, including blocks that were already reached but have changed.
+     */
+    private final int[] reachedStates;
+
+    /**
+     * Map indices of the blocks which can no longer be reached, or null if none were removed.
+     */
+    private final @Nullable BitSet retractedStates;
+
+    /**
+     * Whether these are all of the reached blocks, given to a portal the first time it uses the map.
+     */
+    private final boolean initial;
+
+    public DestinationChanges(@NotNull int[] reachedStates, @Nullable BitSet retractedStates, boolean initial) {
+        this.reachedStates = reachedStates;
+        this.retractedStates = retractedStates;
+        this.initial = initial;
+    }
+}
@@ -1,22 +1,29 @@
 package com.lauriethefish.betterportals.bukkit.block.bukkit;
 
 import com.comphenix.protocol.PacketType;
-import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.BlockPosition;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.BlockStatePalette;
+import com.lauriethefish.betterportals.bukkit.block.DestinationStates;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
-import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.SectionChanges;
+import com.lauriethefish.betterportals.bukkit.player.view.block.BlockDesyncTracker;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager {
     private final Player player;
+    private final BlockDesyncTracker blockDesyncTracker;
 
     private final int minChunkY;
     private final int maxChunkY;
@@ -24,9 +31,14 @@ public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager
     // Section positions have to be done with BlockPositions for now in ProtocolLib
     private final HashMap<BlockPosition, Map<Vector, WrappedBlockData>> changes = new HashMap<>();
 
+    // Changes to blocks in a portal's block map, packed with SectionChanges so that their packets can be shared
+    private final HashMap<BlockPosition, IntList> packedChanges = new HashMap<>();
+    private PackedBlockStates packedStates = null;
+
     @Inject
-    public MultiBlockChangeManager_1_16_2(@Assisted Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY) {
+    public MultiBlockChangeManager_1_16_2(@Assisted Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY, BlockDesyncTracker blockDesyncTracker) {
         this.player = player;
+        this.blockDesyncTracker = blockDesyncTracker;
         this.minChunkY = minChunkY;
         this.maxChunkY = maxChunkY;
     }
@@ -45,25 +57,96 @@ public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager
     }
 
     @Override
-    public void addChangeOrigin(Vector position, IViewableBlockInfo newData) {
-        addChange(position, ((BukkitBlockInfo) newData).getOriginData());
-    }
+    public void addChange(PackedBlockStates blockStates, int mapIndex, boolean rendered) {
+        if(packedStates == null) {
+            packedStates = blockStates;
+        }   else if(packedStates != blockStates) {
+            throw new IllegalArgumentException("All packed changes must use the same block states");
+        }
 
-    @Override
-    public void addChangeDestination(Vector position, IViewableBlockInfo newData) {
-        addChange(position, ((BukkitBlockInfo) newData).getRenderedDestData());
+        short stateId = rendered ? blockStates.getRenderedDestId(mapIndex) : blockStates.getOriginId(mapIndex);
+        if(stateId == BlockStatePalette.NONE) {return;}
+
+        IntVector originPos = blockStates.getOriginPos();
+        int x = originPos.getX() + blockStates.getRelativeX(mapIndex);
+        int y = originPos.getY() + blockStates.getRelativeY(mapIndex);
+        int z = originPos.getZ() + blockStates.getRelativeZ(mapIndex);
+
+        BlockPosition sectionPosition = new BlockPosition(x >> 4, y >> 4, z >> 4);
+        packedChanges.computeIfAbsent(sectionPosition, k -> new IntList()).add(SectionChanges.pack(getShortLocation(x, y, z), stateId));
     }
 
     private short getShortLocation(Vector vec) {
-        int x = vec.getBlockX() & 0xF;
-        int y = vec.getBlockY() & 0xF;
-        int z = vec.getBlockZ() & 0xF;
+        return getShortLocation(vec.getBlockX(), vec.getBlockY(), vec.getBlockZ());
+    }
+
+    private short getShortLocation(int x, int y, int z) {
+        return (short) ((x & 0xF) << 8 | (z & 0xF) << 4 | (y & 0xF));
+    }
+
+    private void sendPacket(PacketContainer packet) {
+        try {
+            // Sent through the tracker, otherwise our own changes would look like the server overwriting the portal view
+            blockDesyncTracker.sendOwnPacket(player, packet);
+        }   catch(Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Encodes the packet for some packed changes, or finds the packet already encoded for another player
+    // The returned packet is shared, so must not be modified or sent directly
+    // Returns null if none of the blocks could be shown yet
+    private PacketContainer getPacket(SectionChanges sectionChanges) {
+        DestinationStates destinationStates = packedStates.getDestinationStates();
+        PacketContainer existing = packedStates.getPacketCache().get(sectionChanges, destinationStates);
+        if(existing != null) {
+            return existing;
+        }
 
-        return (short) (x << 8 | z << 4 | y);
+        WrappedBlockData[] data = new WrappedBlockData[sectionChanges.size()];
+        short[] positions = new short[sectionChanges.size()];
+        int blockCount = 0;
+        for(int i = 0; i < sectionChanges.size(); i++) {
+            // The special states may not have been found yet, in which case the block is left out
+            WrappedBlockData blockData = destinationStates.getWrappedRenderedData(sectionChanges.getStateId(i));
+            if(blockData == null) {continue;}
+
+            positions[blockCount] = sectionChanges.getPosition(i);
+            data[blockCount] = blockData;
+            blockCount++;
+        }
+        if(blockCount == 0) {return null;}
+
+        if(blockCount < data.length) {
+            data = Arrays.copyOf(data, blockCount);
+            positions = Arrays.copyOf(positions, blockCount);
+        }
+
+        PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
+        packet.getSectionPositions().write(0, sectionChanges.getSectionPos());
+        packet.getBlockDataArrays().writeSafely(0, data);
+        packet.getShortArrays().writeSafely(0, positions);
+
+        packedStates.getPacketCache().put(sectionChanges, packet);
+        return packet;
     }
 
     @Override
     public void sendChanges() {
+        for(Map.Entry<BlockPosition, IntList> entry : packedChanges.entrySet()) {
+            int chunkY = entry.getKey().getY();
+            if(chunkY > maxChunkY || chunkY < minChunkY) {
+                continue;
+            }
+
+            PacketContainer packet = getPacket(new SectionChanges(entry.getKey(), entry.getValue().toArray()));
+            if(packet != null) {
+                // Packet listeners may modify the packet they're given, which would change it for every other player sharing it, so each player is sent their own copy
+                // A shallow copy is enough, since writing with ProtocolLib's modifiers replaces the arrays instead of writing into them
+                sendPacket(packet.shallowClone());
+            }
+        }
+
         // Each chunk position needs a different packet
         for(Map.Entry<BlockPosition, Map<Vector, WrappedBlockData>> entry : changes.entrySet()) {
             PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
@@ -89,11 +172,7 @@ public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager
             packet.getBlockDataArrays().writeSafely(0, data);
             packet.getShortArrays().writeSafely(0, positions);
 
-            try {
-                ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
-            }   catch(Exception ex) {
-                ex.printStackTrace();
-            }
+            sendPacket(packet);
         }
     }
 }
@@ -0,0 +1,144 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.comphenix.protocol.events.PacketContainer;
+import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapUpdateExecutor;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntFunction;
+
+/**
+ * Stores the tile entity update packets of one end of a block map, keyed by map index.
+ * Packets are only rebuilt for tile entities that have been marked as changed, since {@link Block#getState()} copies the tile entity's NBT and is expensive.
+ * The states are copied on the main thread, then the packets are built on the block map update threads.
+ */
+public class TileEntityPacketMap {
+    private final Logger logger;
+    private final BlockMapUpdateExecutor updateExecutor;
+    private final IntFunction<Block> blockFinder;
+
+    private final Map<Integer, PacketContainer> packets = new ConcurrentHashMap<>();
+    // Map indices of the tile entities whose latest build has finished, including those without an update packet, e.g. furnaces
+    private final Set<Integer> built = ConcurrentHashMap.newKeySet();
+    // Map indices of the tile entities to rebuild during the next call to processChanged
+    private final Set<Integer> changed = ConcurrentHashMap.newKeySet();
+
+    // The latest build of each tile entity that hasn't finished. Builds are discarded if they aren't the latest when they finish, or if the tile entity was removed or cleared since they started
+    private final Map<Integer, Long> pendingBuilds = new ConcurrentHashMap<>();
+    // Only used on the main thread
+    private long nextBuildId = 0;
+
+    /**
+     * @param logger Logger
+     * @param updateExecutor Executor to build the packets on
+     * @param blockFinder Finds the block at a map index. Only called on the main thread
+     */
+    public TileEntityPacketMap(Logger logger, BlockMapUpdateExecutor updateExecutor, IntFunction<Block> blockFinder) {
+        this.logger = logger;
+        this.updateExecutor = updateExecutor;
+        this.blockFinder = blockFinder;
+    }
+
+    /**
+     * Marks the tile entity at <code>mapIndex</code> to be rebuilt during the next call to {@link TileEntityPacketMap#processChanged()}.
+     * Can be called from any thread.
+     * @param mapIndex Index of the block in the map
+     */
+    public void markChanged(int mapIndex) {
+        changed.add(mapIndex);
+    }
+
+    /**
+     * Called for each checked block which is a tile entity.
+     * @param mapIndex Index of the block in the map
+     * @param forceRebuild Whether the tile entity may have changed, even if its block data hasn't, for instance since an event was fired for it
+     */
+    public void onTileEntityChecked(int mapIndex, boolean forceRebuild) {
+        // Tile entities already built, or with a build in progress, would otherwise have their state copied again on every check
+        if(forceRebuild || (!built.contains(mapIndex) && !pendingBuilds.containsKey(mapIndex))) {
+            markChanged(mapIndex);
+        }
+    }
+
+    /**
+     * Removes the packet at <code>mapIndex</code>, since the block is no longer a tile entity.
+     * @param mapIndex Index of the block in the map
+     */
+    public void remove(int mapIndex) {
+        changed.remove(mapIndex);
+        // Removed while holding the pending build's lock, so that a build finishing at the same time can't put the packet back
+        pendingBuilds.compute(mapIndex, (index, buildId) -> {
+            packets.remove(index);
+            built.remove(index);
+            return null;
+        });
+    }
+
+    public @Nullable PacketContainer get(int mapIndex) {
+        return packets.get(mapIndex);
+    }
+
+    /**
+     * Copies the states of the changed tile entities, then builds their packets on an update thread.
+     * Must be called on the main thread.
+     */
+    public void processChanged() {
+        if(changed.isEmpty()) {return;}
+
+        List<Integer> mapIndices = new ArrayList<>();
+        List<BlockState> states = new ArrayList<>();
+        long buildId = nextBuildId++;
+        Iterator<Integer> iterator = changed.iterator();
+        while(iterator.hasNext()) {
+            int mapIndex = iterator.next();
+            iterator.remove();
+
+            mapIndices.add(mapIndex);
+            states.add(blockFinder.apply(mapIndex).getState());
+            pendingBuilds.put(mapIndex, buildId);
+        }
+
+        logger.finer("Rebuilding %d tile entity packets", states.size());
+        updateExecutor.submit(() -> {
+            for(int i = 0; i < states.size(); i++) {
+                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(states.get(i));
+                finishBuild(mapIndices.get(i), buildId, updatePacket);
+            }
+        });
+    }
+
+    /**
+     * Stores the packet built for a tile entity, unless it no longer applies.
+     * @param mapIndex Index of the block in the map
+     * @param buildId ID of the build which found the packet
+     * @param updatePacket The new packet, or null if the tile entity doesn't have one
+     */
+    private void finishBuild(int mapIndex, long buildId, @Nullable PacketContainer updatePacket) {
+        pendingBuilds.computeIfPresent(mapIndex, (index, latestBuildId) -> {
+            // A later build is pending, which will replace this packet
+            if(latestBuildId != buildId) {return latestBuildId;}
+
+            if(updatePacket == null) {
+                packets.remove(index);
+            }   else    {
+                packets.put(index, updatePacket);
+            }
+            built.add(index);
+            return null;
+        });
+    }
+
+    public void clear() {
+        changed.clear();
+        // Cleared before the packets, so that builds finishing during this are either discarded or removed afterwards
+        pendingBuilds.clear();
+        packets.clear();
+        built.clear();
+    }
+}
@@ -0,0 +1,269 @@
+package com.lauriethefish.betterportals.bukkit.block.change;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapBounds;
+import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
+import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.inventory.InventoryCloseEvent;
+import org.bukkit.event.inventory.InventoryMoveItemEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.inventory.Inventory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Tracks block changes using Bukkit's block events.
+ * Tracked areas are indexed by the chunks that they overlap, so that each event only has to check the areas near it.
+ * The events are called before the change is made, but block maps only read the changed blocks during their next update, by which time the change has been applied.
+ * Changes to the contents of tile entities, e.g. editing a sign, are also tracked, so that their update packets only need to be rebuilt when they change.
+ */
+@Singleton
+public class BlockChangeTracker implements IBlockChangeTracker, Listener {
+    private final Logger logger;
+
+    private final Map<UUID, Map<Long, List<TrackedArea>>> areasByWorld = new HashMap<>();
+
+    @Inject
+    public BlockChangeTracker(Logger logger, IEventRegistrar eventRegistrar) {
+        this.logger = logger;
+        eventRegistrar.register(this);
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public @NotNull TrackedArea track(@NotNull World world, @NotNull BlockMapBounds bounds, @NotNull Consumer<IntVector> onChange) {
+        TrackedArea area = new TrackedArea(world, bounds, onChange);
+
+        Map<Long, List<TrackedArea>> worldAreas = areasByWorld.computeIfAbsent(world.getUID(), uid -> new HashMap<>());
+        for(int chunkX = bounds.getMinChunkX(); chunkX <= bounds.getMaxChunkX(); chunkX++) {
+            for(int chunkZ = bounds.getMinChunkZ(); chunkZ <= bounds.getMaxChunkZ(); chunkZ++) {
+                worldAreas.computeIfAbsent(getChunkKey(chunkX, chunkZ), key -> new ArrayList<>()).add(area);
+            }
+        }
+
+        logger.finer("Tracking block changes between %s and %s in world %s", bounds.getMin(), bounds.getMax(), world.getName());
+        return area;
+    }
+
+    @Override
+    public void untrack(@NotNull TrackedArea area) {
+        UUID worldId = area.getWorld().getUID();
+        Map<Long, List<TrackedArea>> worldAreas = areasByWorld.get(worldId);
+        if(worldAreas == null) {return;}
+
+        BlockMapBounds bounds = area.getBounds();
+        for(int chunkX = bounds.getMinChunkX(); chunkX <= bounds.getMaxChunkX(); chunkX++) {
+            for(int chunkZ = bounds.getMinChunkZ(); chunkZ <= bounds.getMaxChunkZ(); chunkZ++) {
+                long key = getChunkKey(chunkX, chunkZ);
+                List<TrackedArea> chunkAreas = worldAreas.get(key);
+                if(chunkAreas == null) {continue;}
+
+                chunkAreas.remove(area);
+                // Remove the empty lists to avoid leaking memory
+                if(chunkAreas.isEmpty()) {
+                    worldAreas.remove(key);
+                }
+            }
+        }
+
+        if(worldAreas.isEmpty()) {
+            areasByWorld.remove(worldId);
+        }
+    }
+
+    /**
+     * Notifies any areas containing <code>block</code> that it may have changed.
+     * @param block The block that may have changed
+     */
+    private void onBlockChange(Block block) {
+        // Physics events are called very often, so return as early as possible
+        if(areasByWorld.isEmpty()) {return;}
+
+        Map<Long, List<TrackedArea>> worldAreas = areasByWorld.get(block.getWorld().getUID());
+        if(worldAreas == null) {return;}
+
+        int x = block.getX();
+        int y = block.getY();
+        int z = block.getZ();
+        List<TrackedArea> chunkAreas = worldAreas.get(getChunkKey(x >> 4, z >> 4));
+        if(chunkAreas == null) {return;}
+
+        for(TrackedArea area : chunkAreas) {
+            area.onBlockChange(x, y, z);
+        }
+    }
+
+    /**
+     * Notifies any areas containing the block that holds <code>inventory</code> that its tile entity may have changed.
+     * {@link Inventory#getLocation()} is used instead of the holder, since finding the holder copies the tile entity's state.
+     */
+    private void onInventoryChange(Inventory inventory) {
+        if(areasByWorld.isEmpty()) {return;}
+
+        Location location = inventory.getLocation();
+        if(location == null || location.getWorld() == null) {return;}
+
+        onBlockChange(location.getBlock());
+    }
+
+    private void onBlocksChange(Collection<Block> blocks) {
+        if(areasByWorld.isEmpty()) {return;}
+
+        for(Block block : blocks) {
+            onBlockChange(block);
+        }
+    }
+
+    /**
+     * Pistons move each block one block forward, so both the old and new positions change.
+     */
+    private void onPistonMove(Block piston, List<Block> movedBlocks, BlockFace direction) {
+        if(areasByWorld.isEmpty()) {return;}
+
+        onBlockChange(piston);
+        onBlockChange(piston.getRelative(direction));
+        for(Block block : movedBlocks) {
+            onBlockChange(block);
+            onBlockChange(block.getRelative(direction));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        if(event instanceof BlockMultiPlaceEvent) {
+            for(BlockState state : ((BlockMultiPlaceEvent) event).getReplacedBlockStates()) {
+                onBlockChange(state.getBlock());
+            }
+        }   else    {
+            onBlockChange(event.getBlockPlaced());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        onBlockChange(event.getBlock());
+        onBlocksChange(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        onBlocksChange(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        onPistonMove(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        onPistonMove(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    /**
+     * Called when liquids flow, and when dragon eggs teleport.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        onBlockChange(event.getBlock());
+        onBlockChange(event.getToBlock());
+    }
+
+    /**
+     * Also covers snow, ice, concrete and blocks spreading, e.g. grass or fire.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockForm(BlockFormEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    /**
+     * Called for falling blocks, endermen, crop trampling and a few other entity interactions.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSignChange(SignChangeEvent event) {
+        onBlockChange(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onInventoryClose(InventoryCloseEvent event) {
+        onInventoryChange(event.getInventory());
+    }
+
+    /**
+     * Called when hoppers and droppers move items between inventories.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onInventoryMoveItem(InventoryMoveItemEvent event) {
+        onInventoryChange(event.getSource());
+        onInventoryChange(event.getDestination());
+    }
+
+    /**
+     * Right clicking some tile entities changes them without changing the block, e.g. dyeing a sign, placing a book on a lectern or cooking on a campfire.
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerInteract(PlayerInteractEvent event) {
+        Block block = event.getClickedBlock();
+        if(event.getAction() != Action.RIGHT_CLICK_BLOCK || block == null || event.useInteractedBlock() == Event.Result.DENY) {return;}
+
+        if(MaterialUtil.isTileEntity(block.getType())) {
+            onBlockChange(block);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.lauriethefish.betterportals.bukkit.block.change;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapBounds;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+
+/**
+ * Listens for block changes in areas around portals, so that block maps don't need to re-check every block for changes.
+ * Changes to the contents of tile entities are also reported, so that their update packets can be rebuilt.
+ * Changes made without firing an event (e.g. by other plugins) are not detected.
+ */
+public interface IBlockChangeTracker {
+    /**
+     * Starts notifying <code>onChange</code> of changes to blocks within <code>bounds</code>.
+     * Must be called on the main thread.
+     * @param world World that the area is in
+     * @param bounds The area to track
+     * @param onChange Called on the main thread with the position of each block that may have changed
+     * @return The tracked area, used to stop tracking it
+     */
+    @NotNull TrackedArea track(@NotNull World world, @NotNull BlockMapBounds bounds, @NotNull Consumer<IntVector> onChange);
+
+    /**
+     * Stops notifying <code>area</code> of changes.
+     * Must be called on the main thread.
+     * @param area The area to stop tracking
+     */
+    void untrack(@NotNull TrackedArea area);
+}
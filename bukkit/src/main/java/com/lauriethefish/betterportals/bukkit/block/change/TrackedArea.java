@@ -0,0 +1,33 @@
+package com.lauriethefish.betterportals.bukkit.block.change;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapBounds;
+import lombok.Getter;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.function.Consumer;
+
+/**
+ * An area of blocks that is notified of changes by an {@link IBlockChangeTracker}.
+ */
+public class TrackedArea {
+    @Getter private final World world;
+    @Getter private final BlockMapBounds bounds;
+    private final Consumer<IntVector> onChange;
+
+    TrackedArea(@NotNull World world, @NotNull BlockMapBounds bounds, @NotNull Consumer<IntVector> onChange) {
+        this.world = world;
+        this.bounds = bounds;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Notifies this area of a change if <code>x</code>, <code>y</code> and <code>z</code> are within it.
+     */
+    void onBlockChange(int x, int y, int z) {
+        if(bounds.contains(x, y, z)) {
+            onChange.accept(new IntVector(x, y, z));
+        }
+    }
+}
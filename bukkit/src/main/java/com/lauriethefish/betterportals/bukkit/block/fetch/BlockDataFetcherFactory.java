@@ -2,10 +2,14 @@ package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapBounds;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.World;
 
 @Singleton
 public class BlockDataFetcherFactory {
@@ -27,4 +31,39 @@ public class BlockDataFetcherFactory {
             return new LocalBlockDataFetcher(portal);
         }
     }
+
+    /**
+     * Creates a fetcher for the destination of <code>portal</code> that reads from chunk snapshots, so that it can be used off of the main thread.
+     * Cross-server portals are not supported, since their data is already fetched from another server.
+     * @param portal The portal to fetch the destination blocks of
+     * @return The snapshot fetcher
+     */
+    public IBlockDataFetcher createSnapshot(IPortal portal) {
+        if(portal.isCrossServer()) {
+            throw new IllegalArgumentException("Cannot take chunk snapshots of a cross-server portal's destination");
+        }
+
+        IntVector center = new IntVector(portal.getDestPos().getVector());
+        return createSnapshot(portal.getDestPos().getWorld(), center, portal.getTransformations().getRotateToDestination());
+    }
+
+    /**
+     * Creates a fetcher for the origin blocks of <code>portal</code>.
+     * @param portal The portal to fetch the origin blocks of
+     * @param useSnapshots Whether to read the blocks from chunk snapshots, so that the fetcher can be used off of the main thread
+     * @return The origin fetcher
+     */
+    public IBlockDataFetcher createOrigin(IPortal portal, boolean useSnapshots) {
+        if(!useSnapshots) {
+            return new LocalBlockDataFetcher(portal.getOriginPos().getWorld());
+        }
+
+        IntVector center = new IntVector(portal.getOriginPos().getVector());
+        return createSnapshot(portal.getOriginPos().getWorld(), center, Matrix.makeIdentity());
+    }
+
+    private IBlockDataFetcher createSnapshot(World world, IntVector center, Matrix rotation) {
+        BlockMapBounds bounds = BlockMapBounds.around(renderConfig, center, rotation);
+        return new ChunkSnapshotBlockDataFetcher(world, bounds.getMin(), bounds.getMax());
+    }
 }
@@ -0,0 +1,84 @@
+package com.lauriethefish.betterportals.bukkit.block.fetch;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copies the chunks covering an area into {@link ChunkSnapshot}s when updated.
+ * Updating must happen on the main thread, but the data can then be read from any thread.
+ */
+public class ChunkSnapshotBlockDataFetcher implements IBlockDataFetcher {
+    private static final BlockData OUTSIDE_WORLD_DATA = Bukkit.createBlockData(Material.VOID_AIR);
+
+    private final World world;
+    private final int minChunkX;
+    private final int maxChunkX;
+    private final int minChunkZ;
+    private final int maxChunkZ;
+    private final int minHeight;
+    private final int maxHeight;
+
+    private volatile Map<Long, ChunkSnapshot> snapshots = null;
+
+    /**
+     * Creates a fetcher that will snapshot every chunk overlapping the given area.
+     * @param world The world to take the snapshots in
+     * @param min The minimum block coordinates of the area
+     * @param max The maximum block coordinates of the area
+     */
+    public ChunkSnapshotBlockDataFetcher(World world, IntVector min, IntVector max) {
+        this.world = world;
+        this.minChunkX = min.getX() >> 4;
+        this.maxChunkX = max.getX() >> 4;
+        this.minChunkZ = min.getZ() >> 4;
+        this.maxChunkZ = max.getZ() >> 4;
+        this.minHeight = HeightUtil.getMinHeight(world);
+        this.maxHeight = HeightUtil.getMaxHeight(world);
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public void update() {
+        Map<Long, ChunkSnapshot> newSnapshots = new HashMap<>();
+        for(int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for(int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                ChunkSnapshot snapshot = world.getChunkAt(chunkX, chunkZ).getChunkSnapshot(false, false, false);
+                newSnapshots.put(getChunkKey(chunkX, chunkZ), snapshot);
+            }
+        }
+
+        snapshots = newSnapshots;
+    }
+
+    @Override
+    public boolean isReady() {
+        return snapshots != null;
+    }
+
+    @Override
+    public @NotNull BlockData getData(@NotNull IntVector position) {
+        int y = position.getY();
+        if(y < minHeight || y >= maxHeight) {
+            return OUTSIDE_WORLD_DATA;
+        }
+
+        ChunkSnapshot snapshot = snapshots.get(getChunkKey(position.getX() >> 4, position.getZ() >> 4));
+        if(snapshot == null) {
+            throw new IllegalArgumentException("Position " + position + " is outside of the snapshot area");
+        }
+
+        return snapshot.getBlockData(position.getX() & 15, y, position.getZ() & 15);
+    }
+}
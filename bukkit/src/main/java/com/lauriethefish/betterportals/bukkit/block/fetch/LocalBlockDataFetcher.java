@@ -11,10 +11,14 @@ import org.jetbrains.annotations.NotNull;
  * This is a simple pass-through to Bukkit's API.
  */
 public class LocalBlockDataFetcher implements IBlockDataFetcher {
-    private final World destinationWorld;
+    private final World world;
 
     public LocalBlockDataFetcher(IPortal portal) {
-        this.destinationWorld = portal.getDestPos().getWorld();
+        this(portal.getDestPos().getWorld());
+    }
+
+    public LocalBlockDataFetcher(World world) {
+        this.world = world;
     }
 
     @Override
@@ -29,6 +33,6 @@ public class LocalBlockDataFetcher implements IBlockDataFetcher {
 
     @Override
     public @NotNull BlockData getData(@NotNull IntVector position) {
-        return position.getBlock(destinationWorld).getBlockData();
+        return position.getBlock(world).getBlockData();
     }
 }
@@ -0,0 +1,111 @@
+package com.lauriethefish.betterportals.bukkit.block.rotation;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the result of rotating each block with {@link IBlockRotator}, along with its ProtocolLib wrapper.
+ * Each portal only rotates a handful of distinct blocks, and portals with the same rotation share the same entries.
+ * Rotations are keyed by {@link Matrix#getRotationKey()}.
+ * The least recently used entries are removed once the cache reaches {@link RenderConfig#getBlockRotationCacheSize()}.
+ * This class is thread safe.
+ */
+@Singleton
+public class BlockRotationCache {
+    private final IBlockRotator blockRotator;
+    private final RenderConfig renderConfig;
+
+    private final Map<Key, RotatedBlock> cache = new LinkedHashMap<Key, RotatedBlock>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, RotatedBlock> eldest) {
+            return size() > renderConfig.getBlockRotationCacheSize();
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Inject
+    public BlockRotationCache(IBlockRotator blockRotator, RenderConfig renderConfig) {
+        this.blockRotator = blockRotator;
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * Finds <code>data</code> rotated by <code>matrix</code>, rotating it and adding it to the cache if it isn't already present.
+     * @param matrix The matrix to rotate by
+     * @param data The data to rotate
+     * @return The rotated block
+     */
+    public @NotNull RotatedBlock rotate(@NotNull Matrix matrix, @NotNull BlockData data) {
+        int rotation = matrix.getRotationKey();
+        if(rotation == Matrix.NON_AXIS_ALIGNED || renderConfig.getBlockRotationCacheSize() <= 0) {
+            return new RotatedBlock(blockRotator.rotateByMatrix(matrix, data));
+        }
+
+        Key key = new Key(rotation, data);
+        synchronized(cache) {
+            RotatedBlock existing = cache.get(key);
+            if(existing != null) {
+                hits.incrementAndGet();
+                return existing;
+            }
+        }
+
+        // Rotate outside of the lock, since it clones the data and creates the wrapper. Doing this twice on different threads is harmless
+        misses.incrementAndGet();
+        RotatedBlock rotated = new RotatedBlock(blockRotator.rotateByMatrix(matrix, data));
+        synchronized(cache) {
+            cache.put(key, rotated);
+        }
+        return rotated;
+    }
+
+    /**
+     * @return The fraction of rotations found in the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    public int size() {
+        synchronized(cache) {
+            return cache.size();
+        }
+    }
+
+    private static class Key {
+        private final int rotation;
+        private final BlockData data;
+
+        Key(int rotation, BlockData data) {
+            this.rotation = rotation;
+            this.data = data;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(this == other) {return true;}
+            if(!(other instanceof Key)) {return false;}
+
+            Key otherKey = (Key) other;
+            return rotation == otherKey.rotation && data.equals(otherKey.data);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rotation, data);
+        }
+    }
+}
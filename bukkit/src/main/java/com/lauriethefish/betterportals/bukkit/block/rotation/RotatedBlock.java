@@ -0,0 +1,21 @@
+package com.lauriethefish.betterportals.bukkit.block.rotation;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A rotated block, along with its ProtocolLib wrapper so that it is ready to be sent to players.
+ * Instances are shared between portals, so the data must not be modified.
+ */
+@Getter
+public class RotatedBlock {
+    private final BlockData data;
+    private final WrappedBlockData wrappedData;
+
+    public RotatedBlock(@NotNull BlockData data) {
+        this.data = data;
+        this.wrappedData = WrappedBlockData.createData(data);
+    }
+}
@@ -3,6 +3,10 @@ package com.lauriethefish.betterportals.bukkit.command;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.BetterPortals;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapCache;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapUpdateBudget;
+import com.lauriethefish.betterportals.bukkit.block.bukkit.DestinationBlockMapRegistry;
+import com.lauriethefish.betterportals.bukkit.block.rotation.BlockRotationCache;
 import com.lauriethefish.betterportals.bukkit.command.framework.CommandException;
 import com.lauriethefish.betterportals.bukkit.command.framework.CommandTree;
 import com.lauriethefish.betterportals.bukkit.command.framework.annotations.Command;
@@ -13,6 +17,8 @@ import com.lauriethefish.betterportals.bukkit.config.MessageConfig;
 import com.lauriethefish.betterportals.bukkit.config.ProxyConfig;
 import com.lauriethefish.betterportals.bukkit.net.IClientReconnectHandler;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
+import com.lauriethefish.betterportals.bukkit.player.view.block.SharedVisibilityCache;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.command.CommandSender;
@@ -26,15 +32,30 @@ public class MainCommands {
     private final IPortalClient portalClient;
     private final ProxyConfig proxyConfig;
     private final IClientReconnectHandler reconnectHandler;
+    private final BlockRotationCache rotationCache;
+    private final DestinationBlockMapRegistry destinationRegistry;
+    private final BlockMapCache blockMapCache;
+    private final BlockMapUpdateBudget blockMapUpdateBudget;
+    private final BlockUpdateFinisher blockUpdateFinisher;
+    private final SharedVisibilityCache sharedVisibilityCache;
 
     @Inject
-    public MainCommands(BetterPortals pl, Logger logger, MessageConfig messageConfig, CommandTree commandTree, IPortalClient portalClient, ProxyConfig proxyConfig, IClientReconnectHandler reconnectHandler) {
+    public MainCommands(BetterPortals pl, Logger logger, MessageConfig messageConfig, CommandTree commandTree, IPortalClient portalClient, ProxyConfig proxyConfig, IClientReconnectHandler reconnectHandler,
+                        BlockRotationCache rotationCache, DestinationBlockMapRegistry destinationRegistry, BlockMapCache blockMapCache,
+                        BlockMapUpdateBudget blockMapUpdateBudget, BlockUpdateFinisher blockUpdateFinisher,
+                        SharedVisibilityCache sharedVisibilityCache) {
         this.pl = pl;
         this.logger = logger;
         this.messageConfig = messageConfig;
         this.portalClient = portalClient;
         this.proxyConfig = proxyConfig;
         this.reconnectHandler = reconnectHandler;
+        this.rotationCache = rotationCache;
+        this.destinationRegistry = destinationRegistry;
+        this.blockMapCache = blockMapCache;
+        this.blockMapUpdateBudget = blockMapUpdateBudget;
+        this.blockUpdateFinisher = blockUpdateFinisher;
+        this.sharedVisibilityCache = sharedVisibilityCache;
 
         commandTree.registerCommands(this);
         commandTree.addAlias("betterportals", "bp");
@@ -72,4 +93,29 @@ public class MainCommands {
         reconnectHandler.prematureReconnect();
         return true;
     }
+
+    @Command
+    @Path("betterportals/stats")
+    @Description("Shows performance statistics for the portal effect")
+    @RequiresPermissions("betterportals.stats")
+    public boolean stats(CommandSender sender) {
+        sender.sendMessage(messageConfig.getChatMessage("statsHeader"));
+        sendStat(sender, "Block rotation cache", "%d entries, %.1f%% hit rate", rotationCache.size(), rotationCache.getHitRate() * 100.0);
+        sendStat(sender, "Destination block maps", "%d maps used by %d portals", destinationRegistry.getMapCount(), destinationRegistry.getPortalCount());
+        sendStat(sender, "Block map cache", "%d maps, %d block states", blockMapCache.size(), blockMapCache.getCachedStateCount());
+        sendStat(sender, "Block map updates", "%.2f ms/tick, intervals stretched x%.2f", blockMapUpdateBudget.getAverageTimePerTick(), blockMapUpdateBudget.getStretchFactor());
+        sendStat(sender, "View updates", "%d queued on %d threads, %.2f ms average latency, %.2f ms max since last check, refreshes slowed x%.2f",
+                blockUpdateFinisher.getQueuedUpdateCount(), blockUpdateFinisher.getThreadCount(), blockUpdateFinisher.getAverageLatency(), blockUpdateFinisher.pollMaxLatency(),
+                blockUpdateFinisher.getRefreshStretch());
+        if(sharedVisibilityCache.isEnabled()) {
+            sendStat(sender, "Shared visibility", "%.1f%% hit rate", sharedVisibilityCache.getHitRate() * 100.0);
+        }   else    {
+            sendStat(sender, "Shared visibility", "disabled");
+        }
+        return true;
+    }
+
+    private void sendStat(CommandSender sender, String name, String format, Object... args) {
+        sender.sendMessage(String.format("%s- %s: %s", messageConfig.getMessageColor(), name, String.format(format, args)));
+    }
 }
@@ -43,18 +43,40 @@ public class RenderConfig {
 
     private Vector collisionBox;
     private int blockUpdateInterval;
+    private int minBlockUpdateInterval;
+    private int maxBlockUpdateInterval;
+    private double blockUpdateTimeBudget;
 
     private int worldSwitchWaitTime;
 
     @Getter private boolean portalBlocksHidden;
 
     private int blockStateRefreshInterval;
+    private boolean selectiveBlockRefresh;
+    private boolean chunkViewBaking;
+    private boolean indexedBlockStates;
 
     private int entityMetadataUpdateInterval;
 
     private int lightSimulationInterval;
     private int forceLightLevel;
 
+    private boolean asyncBlockMapUpdates;
+    private int blockMapUpdateThreads;
+
+    private int viewUpdateThreads;
+    private boolean virtualViewUpdateThreads;
+    private double viewUpdateLatencyTarget;
+    private boolean sharedVisibility;
+    private double visibilityGridSize;
+    private int maxBlockChangesPerTick;
+
+    private boolean blockChangeTracking;
+    private int fullBlockCheckInterval;
+
+    private int blockRotationCacheSize;
+    private int blockMapCacheSize;
+
     @Inject
     public RenderConfig(Logger logger) {
         this.logger = logger;
@@ -101,11 +123,47 @@ public class RenderConfig {
             throw new IllegalArgumentException("Block update interval must be at least 1");
         }
 
+        minBlockUpdateInterval = file.getInt("minBlockUpdateInterval");
+        maxBlockUpdateInterval = file.getInt("maxBlockUpdateInterval");
+        if(minBlockUpdateInterval <= 0 || maxBlockUpdateInterval < minBlockUpdateInterval) {
+            throw new IllegalArgumentException("Minimum block update interval must be at least 1, and no more than the maximum interval");
+        }
+        // The configured interval is used as the starting interval of each portal, so must be within the bounds
+        blockUpdateInterval = Math.max(minBlockUpdateInterval, Math.min(maxBlockUpdateInterval, blockUpdateInterval));
+        blockUpdateTimeBudget = file.getDouble("blockUpdateTimeBudget");
+
         entityMetadataUpdateInterval = file.getInt("entityMetadataUpdateInterval");
 
+        asyncBlockMapUpdates = file.getBoolean("asyncBlockMapUpdates");
+        blockMapUpdateThreads = file.getInt("blockMapUpdateThreads");
+        if(blockMapUpdateThreads <= 0) {
+            throw new IllegalArgumentException("Block map update thread count must be at least 1");
+        }
+
+        viewUpdateThreads = file.getInt("viewUpdateThreads");
+        if(viewUpdateThreads <= 0) {
+            throw new IllegalArgumentException("View update thread count must be at least 1");
+        }
+        virtualViewUpdateThreads = file.getBoolean("virtualViewUpdateThreads");
+        viewUpdateLatencyTarget = file.getDouble("viewUpdateLatencyTarget");
+        sharedVisibility = file.getBoolean("sharedVisibility");
+        visibilityGridSize = file.getDouble("visibilityGridSize");
+        if(visibilityGridSize <= 0.0) {
+            throw new IllegalArgumentException("Visibility grid size must be greater than 0");
+        }
+        maxBlockChangesPerTick = file.getInt("maxBlockChangesPerTick");
+
+        blockChangeTracking = file.getBoolean("blockChangeTracking");
+        fullBlockCheckInterval = file.getInt("fullBlockCheckInterval");
+        blockRotationCacheSize = file.getInt("blockRotationCacheSize");
+        blockMapCacheSize = file.getInt("blockMapCacheSize");
+
         worldSwitchWaitTime = file.getInt("waitTimeAfterSwitchingWorlds"); // TODO: implement or yeet
         portalBlocksHidden = file.getBoolean("hidePortalBlocks");
         blockStateRefreshInterval = file.getInt("blockStateRefreshInterval");
+        selectiveBlockRefresh = file.getBoolean("selectiveBlockRefresh");
+        chunkViewBaking = file.getBoolean("chunkViewBaking");
+        indexedBlockStates = file.getBoolean("indexedBlockStates");
 
         String bgBlockString = file.getString("backgroundBlock", "");
 
@@ -141,6 +199,15 @@ public class RenderConfig {
         };
     }
 
+    /**
+     * Finds the index of a block in the arrays of a block map.
+     * @param relPos Position of the block relative to the portal origin
+     * @return The map index
+     */
+    public int getMapIndex(IntVector relPos) {
+        return (relPos.getX() + (int) maxXZ) + (relPos.getZ() + (int) maxXZ) * zMultip + (relPos.getY() + (int) maxY) * yMultip;
+    }
+
     public boolean isOutsideBounds(int x, int y, int z) {
         return x <= minXZ || x >= maxXZ || y <= minY || y >= maxY || z <= minXZ || z >= maxXZ;
     }
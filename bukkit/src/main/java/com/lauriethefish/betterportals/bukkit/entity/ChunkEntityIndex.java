@@ -0,0 +1,151 @@
+package com.lauriethefish.betterportals.bukkit.entity;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntitySpawnEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Finds nearby entities using an index of the entities in each chunk, which is shared between every portal.
+ * Portals in a hub overlap heavily, so instead of each portal scanning the world around it, each chunk's entities are only fetched once per tick, when first queried.
+ * Entities spawned during the tick are added from events, and removed entities are skipped since they are no longer valid.
+ * Entities that moved to another chunk are picked up when the index is rebuilt next tick.
+ * Must only be used on the main thread.
+ */
+@Singleton
+public class ChunkEntityIndex implements IEntityFinder, Listener {
+    private final Map<World, Map<Long, List<Entity>>> entitiesByChunk = new HashMap<>();
+    // Reused to find the position of each entity without allocating
+    private final Location entityLocation = new Location(null, 0.0, 0.0, 0.0);
+
+    @Inject
+    public ChunkEntityIndex(IEventRegistrar eventRegistrar) {
+        eventRegistrar.register(this);
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Clears the index so that entities are re-fetched next tick.
+     * Called at the end of each tick.
+     */
+    public void onTickEnd() {
+        entitiesByChunk.clear();
+    }
+
+    /**
+     * @param world The world containing the chunk
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @return The entities in the chunk, or null if it isn't loaded
+     */
+    private @Nullable List<Entity> getEntitiesInChunk(World world, int chunkX, int chunkZ) {
+        Map<Long, List<Entity>> worldChunks = entitiesByChunk.computeIfAbsent(world, w -> new HashMap<>());
+        long key = getChunkKey(chunkX, chunkZ);
+
+        List<Entity> entities = worldChunks.get(key);
+        if(entities != null) {return entities;}
+
+        // Fetching the entities of an unloaded chunk would load it
+        if(!world.isChunkLoaded(chunkX, chunkZ)) {return null;}
+
+        Chunk chunk = world.getChunkAt(chunkX, chunkZ);
+        entities = new ArrayList<>(Arrays.asList(chunk.getEntities()));
+        worldChunks.put(key, entities);
+        return entities;
+    }
+
+    private void forEachNearby(Location location, double xRadius, double yRadius, double zRadius, Consumer<Entity> consumer) {
+        World world = Objects.requireNonNull(location.getWorld());
+        double minX = location.getX() - xRadius;
+        double maxX = location.getX() + xRadius;
+        double minY = location.getY() - yRadius;
+        double maxY = location.getY() + yRadius;
+        double minZ = location.getZ() - zRadius;
+        double maxZ = location.getZ() + zRadius;
+
+        int minChunkX = (int) Math.floor(minX) >> 4;
+        int maxChunkX = (int) Math.floor(maxX) >> 4;
+        int minChunkZ = (int) Math.floor(minZ) >> 4;
+        int maxChunkZ = (int) Math.floor(maxZ) >> 4;
+
+        for(int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for(int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                List<Entity> entities = getEntitiesInChunk(world, chunkX, chunkZ);
+                if(entities == null) {continue;}
+
+                for(Entity entity : entities) {
+                    if(!entity.isValid()) {continue;}
+
+                    entity.getLocation(entityLocation);
+                    double x = entityLocation.getX();
+                    double y = entityLocation.getY();
+                    double z = entityLocation.getZ();
+                    if(x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                        consumer.accept(entity);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public Collection<Entity> getNearbyEntities(@Nullable Collection<Entity> existing, Location location, double xRadius, double yRadius, double zRadius) {
+        Collection<Entity> result;
+        if(existing == null) {
+            result = new ArrayList<>();
+        }   else    {
+            existing.clear();
+            result = existing;
+        }
+
+        forEachNearby(location, xRadius, yRadius, zRadius, result::add);
+        return result;
+    }
+
+    @Override
+    public void getNearbyEntities(Location location, double xRadius, double yRadius, double zRadius, Consumer<Entity> consumer) {
+        forEachNearby(location, xRadius, yRadius, zRadius, consumer);
+    }
+
+    private @Nullable List<Entity> getIndexedChunk(@NotNull Entity entity) {
+        Map<Long, List<Entity>> worldChunks = entitiesByChunk.get(entity.getWorld());
+        if(worldChunks == null) {return null;}
+
+        entity.getLocation(entityLocation);
+        return worldChunks.get(getChunkKey(entityLocation.getBlockX() >> 4, entityLocation.getBlockZ() >> 4));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntitySpawn(EntitySpawnEvent event) {
+        // Only chunks already fetched this tick need updating, others will include the entity when fetched
+        List<Entity> entities = getIndexedChunk(event.getEntity());
+        if(entities != null && !entities.contains(event.getEntity())) {
+            entities.add(event.getEntity());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Map<Long, List<Entity>> worldChunks = entitiesByChunk.get(event.getWorld());
+        if(worldChunks == null) {return;}
+
+        Chunk chunk = event.getChunk();
+        worldChunks.remove(getChunkKey(chunk.getX(), chunk.getZ()));
+    }
+}
@@ -20,7 +20,7 @@ public class EntityModule extends AbstractModule {
                     .build(IEntityTracker.Factory.class)
             );
 
-            bind(IEntityFinder.class).to(BukkitEntityFinder.class);
+            bind(IEntityFinder.class).to(ChunkEntityIndex.class);
         }
 
         bind(IEntityPacketManipulator.class).to(EntityPacketManipulator.class);
@@ -0,0 +1,69 @@
+package com.lauriethefish.betterportals.bukkit.entity;
+
+import lombok.Getter;
+import org.bukkit.entity.Entity;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The positions of the entities around a portal during a single tick, shared between every player viewing the portal.
+ * Destination positions are already moved to the origin of the portal, so each player only needs to check if they're visible.
+ * Each entity's position is at the same index as the entity, stored as primitive coordinates so that checking them doesn't allocate.
+ */
+public class EntitySnapshot {
+    @Getter private final List<Entity> originEntities = new ArrayList<>();
+    // X, Y and Z of each entity, one after the other
+    private double[] originPositions = new double[48];
+
+    // Vanished entities are excluded, since they should never be replicated
+    @Getter private final List<Entity> destinationEntities = new ArrayList<>();
+    private double[] destinationPositions = new double[48];
+
+    private static double[] addPosition(double[] positions, int index, double x, double y, double z) {
+        if(index * 3 + 3 > positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+        }
+
+        positions[index * 3] = x;
+        positions[index * 3 + 1] = y;
+        positions[index * 3 + 2] = z;
+        return positions;
+    }
+
+    void addOriginEntity(@NotNull Entity entity, double x, double y, double z) {
+        originPositions = addPosition(originPositions, originEntities.size(), x, y, z);
+        originEntities.add(entity);
+    }
+
+    void addDestinationEntity(@NotNull Entity entity, double xAtOrigin, double yAtOrigin, double zAtOrigin) {
+        destinationPositions = addPosition(destinationPositions, destinationEntities.size(), xAtOrigin, yAtOrigin, zAtOrigin);
+        destinationEntities.add(entity);
+    }
+
+    public double getOriginX(int index) {
+        return originPositions[index * 3];
+    }
+
+    public double getOriginY(int index) {
+        return originPositions[index * 3 + 1];
+    }
+
+    public double getOriginZ(int index) {
+        return originPositions[index * 3 + 2];
+    }
+
+    public double getDestinationX(int index) {
+        return destinationPositions[index * 3];
+    }
+
+    public double getDestinationY(int index) {
+        return destinationPositions[index * 3 + 1];
+    }
+
+    public double getDestinationZ(int index) {
+        return destinationPositions[index * 3 + 2];
+    }
+}
@@ -9,7 +9,7 @@ import java.util.function.Consumer;
 
 /**
  * Represents an implementation to find entities near a point
- * This has both an NMS and bukkit implementation
+ * This has both an NMS and bukkit implementation. The bukkit implementation, {@link ChunkEntityIndex}, shares the entities found in each chunk between portals
  */
 public interface IEntityFinder {
     /**
@@ -2,6 +2,7 @@ package com.lauriethefish.betterportals.bukkit.entity;
 
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import org.bukkit.entity.Entity;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.Collection;
 
@@ -12,6 +13,12 @@ public interface IPortalEntityManager {
     Collection<Entity> getOriginEntities();
     Collection<Entity> getDestinationEntities();
 
+    /**
+     * Finds the positions of the entities this tick, or returns the snapshot already found this tick.
+     * @return The snapshot, shared between every player viewing the portal
+     */
+    @NotNull EntitySnapshot getSnapshot();
+
     /**
      * Updates the current entities around the portal
      * @param ticksSinceActivated Ticks since the parent {@link com.lauriethefish.betterportals.bukkit.portal.Portal} was activated, since this can be configured to not happen every tick.
@@ -5,6 +5,7 @@ import com.lauriethefish.betterportals.api.PortalPosition;
 import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.math.PortalTransformations;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerData;
@@ -18,6 +19,7 @@ import lombok.Getter;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
+import org.bukkit.metadata.MetadataValue;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
@@ -45,6 +47,10 @@ public class PortalEntityManager implements IPortalEntityManager {
 
     @Getter private Collection<Entity> destinationEntities = null;
     private Map<Entity, Location> originEntities = null;
+    // Found on the first request each tick, and cleared on the next update
+    private EntitySnapshot snapshot = null;
+    // Reused to find the position of each entity in the snapshot without allocating
+    private final Location entityLocation = new Location(null, 0.0, 0.0, 0.0);
 
     @Inject
     public PortalEntityManager(@Assisted IPortal portal, @Assisted boolean requireDestination, MiscConfig miscConfig, RenderConfig renderConfig, IPortalPredicateManager predicateManager, Logger logger, IPortalClient
@@ -63,6 +69,8 @@ public class PortalEntityManager implements IPortalEntityManager {
 
     @Override
     public void update(int ticksSinceActivated) {
+        snapshot = null;
+
         // Only update the entity lists when it's time to via the entity check interval
         if(ticksSinceActivated % miscConfig.getEntityCheckInterval() == 0) {
             updateEntityLists();
@@ -128,6 +136,46 @@ public class PortalEntityManager implements IPortalEntityManager {
         return originEntities.keySet();
     }
 
+    @Override
+    public @NotNull EntitySnapshot getSnapshot() {
+        if(snapshot != null) {return snapshot;}
+
+        snapshot = new EntitySnapshot();
+        for(Entity entity : originEntities.keySet()) {
+            entity.getLocation(entityLocation);
+            snapshot.addOriginEntity(entity, entityLocation.getX(), entityLocation.getY(), entityLocation.getZ());
+        }
+
+        if(destinationEntities != null) {
+            Matrix destinationToOrigin = portal.getTransformations().getDestinationToOrigin();
+            for(Entity entity : destinationEntities) {
+                if(isVanished(entity)) {continue;}
+
+                Vector positionAtOrigin = destinationToOrigin.transform(entity.getLocation(entityLocation).toVector());
+                snapshot.addDestinationEntity(entity, positionAtOrigin.getX(), positionAtOrigin.getY(), positionAtOrigin.getZ());
+            }
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Finds if the given entity is currently vanished
+     * @param entity The entity to check if vanished
+     * @return <code>true</code> if the entity is vanished, <code>false</code> otherwise.
+     */
+    private boolean isVanished(Entity entity) {
+        // Only players can be vanished
+        if(!(entity instanceof Player)) {return false;}
+
+        // Find the vanish metadata
+        // This is used by most vanish plugins
+        for(MetadataValue value : entity.getMetadata("vanished"))   {
+            if(value.asBoolean()) {return true;}
+        }
+        return false;
+    }
+
     private Collection<Entity> getNearbyEntities(@Nullable Collection<Entity> existing, PortalPosition position) {
         return entityFinder.getNearbyEntities(existing, position.getLocation(), renderConfig.getMaxXZ(), renderConfig.getMaxY(), renderConfig.getMaxXZ());
     }
@@ -5,6 +5,7 @@ import org.bukkit.entity.LivingEntity;
 import org.bukkit.inventory.EntityEquipment;
 import org.bukkit.inventory.ItemStack;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,7 +34,8 @@ public class EntityEquipmentWatcher {
      * @return A map of which slots changed, and their new value
      */
     public Map<EnumWrappers.ItemSlot, ItemStack> checkForChanges() {
-        Map<EnumWrappers.ItemSlot, ItemStack> result = new HashMap<>();
+        // Most of the time nothing has changed, so the map is only created once a change is found
+        Map<EnumWrappers.ItemSlot, ItemStack> result = Collections.emptyMap();
 
         EntityEquipment current = entity.getEquipment();
         if(current == null) {return result;}
@@ -41,32 +43,40 @@ public class EntityEquipmentWatcher {
         // Compare each item of equipment, and add it to the map if any changes are found
         if(isStateDifferent(mainHand, current.getItemInMainHand())) {
             mainHand = current.getItemInMainHand();
-            result.put(EnumWrappers.ItemSlot.MAINHAND, mainHand);
+            result = addChange(result, EnumWrappers.ItemSlot.MAINHAND, mainHand);
         }
         if(isStateDifferent(offHand, current.getItemInOffHand())) {
             offHand = current.getItemInOffHand();
-            result.put(EnumWrappers.ItemSlot.OFFHAND, offHand);
+            result = addChange(result, EnumWrappers.ItemSlot.OFFHAND, offHand);
         }
         if(isStateDifferent(helmet, current.getHelmet())) {
             helmet = current.getHelmet();
-            result.put(EnumWrappers.ItemSlot.HEAD, helmet);
+            result = addChange(result, EnumWrappers.ItemSlot.HEAD, helmet);
         }
         if(isStateDifferent(chestplate, current.getChestplate())) {
             chestplate = current.getChestplate();
-            result.put(EnumWrappers.ItemSlot.CHEST, chestplate);
+            result = addChange(result, EnumWrappers.ItemSlot.CHEST, chestplate);
         }
         if(isStateDifferent(leggings, current.getLeggings())) {
             leggings = current.getLeggings();
-            result.put(EnumWrappers.ItemSlot.LEGS, leggings);
+            result = addChange(result, EnumWrappers.ItemSlot.LEGS, leggings);
         }
         if(isStateDifferent(boots, current.getBoots())) {
             boots = current.getBoots();
-            result.put(EnumWrappers.ItemSlot.FEET, boots);
+            result = addChange(result, EnumWrappers.ItemSlot.FEET, boots);
         }
 
         return result;
     }
 
+    private Map<EnumWrappers.ItemSlot, ItemStack> addChange(Map<EnumWrappers.ItemSlot, ItemStack> changes, EnumWrappers.ItemSlot slot, ItemStack item) {
+        if(changes.isEmpty()) {
+            changes = new HashMap<>();
+        }
+        changes.put(slot, item);
+        return changes;
+    }
+
     private boolean isStateDifferent(ItemStack a, ItemStack b) {
         if(a == null || b == null) {
             return a != b;
@@ -0,0 +1,66 @@
+package com.lauriethefish.betterportals.bukkit.entity.faking;
+
+import com.comphenix.protocol.wrappers.WrappedDataValue;
+import com.comphenix.protocol.wrappers.WrappedDataWatcher;
+import com.comphenix.protocol.wrappers.WrappedWatchableObject;
+import com.lauriethefish.betterportals.bukkit.nms.EntityUtil;
+import org.bukkit.entity.Entity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * NMS's DataWatcher only keeps track of which values changed since the server last sent them, which doesn't line up with when we send them.
+ * Instead, this stores the values that we last sent, so that only the values that changed since then need to be sent.
+ */
+public class EntityMetadataWatcher {
+    // Stored for indices that have never been sent, since null is a valid value
+    private static final Object NOT_SENT = new Object();
+
+    private final Entity entity;
+
+    // Last sent value of each data watcher index
+    private Object[] lastValues = new Object[0];
+
+    public EntityMetadataWatcher(Entity entity) {
+        this.entity = entity;
+    }
+
+    /**
+     * Checks for any changed data watcher values and returns a list of them.
+     * Will return every value the first time.
+     * @return The changed values, ready to be written to a metadata packet
+     */
+    public List<WrappedDataValue> checkForChanges() {
+        // Most of the time nothing has changed, so the list is only created once a change is found
+        List<WrappedDataValue> result = Collections.emptyList();
+
+        WrappedDataWatcher dataWatcher = EntityUtil.getActualDataWatcher(entity);
+        for(WrappedWatchableObject entry : dataWatcher.getWatchableObjects()) {
+            if(entry == null) {continue;}
+
+            WrappedDataWatcher.WrappedDataWatcherObject dataWatcherObject = entry.getWatcherObject();
+            int index = dataWatcherObject.getIndex();
+            Object value = entry.getRawValue();
+
+            if(index >= lastValues.length) {
+                int oldLength = lastValues.length;
+                lastValues = Arrays.copyOf(lastValues, index + 1);
+                Arrays.fill(lastValues, oldLength, lastValues.length, NOT_SENT);
+            }
+            // Same comparison as NMS uses to decide if a value is dirty
+            if(lastValues[index] != NOT_SENT && Objects.equals(lastValues[index], value)) {continue;}
+
+            lastValues[index] = value;
+            if(result.isEmpty()) {
+                result = new ArrayList<>();
+            }
+            result.add(new WrappedDataValue(index, dataWatcherObject.getSerializer(), value));
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package com.lauriethefish.betterportals.bukkit.entity.faking;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.PacketContainer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the entity packets sent to each player during the main update, then sends them all at once when it finishes.
+ * On versions with bundle packets, each player's packets are sent as a single bundle, so the client applies them all on the same frame.
+ * Packets sent outside of the main update, or off the main thread, are sent immediately.
+ */
+@Singleton
+public class EntityPacketBatcher {
+    private static final boolean supportsBundles = VersionUtil.isMcVersionAtLeast("1.19.4");
+    // The client disconnects if a bundle contains more packets than this
+    private static final int MAX_BUNDLE_SIZE = 4096;
+
+    private final Logger logger;
+    private final Map<Player, List<PacketContainer>> pendingPackets = new LinkedHashMap<>();
+
+    private boolean isBatching = false;
+    private boolean bundlesFailed = false;
+
+    @Inject
+    public EntityPacketBatcher(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Starts collecting packets instead of sending them.
+     * Called at the start of the main update.
+     */
+    public void startBatching() {
+        isBatching = true;
+    }
+
+    /**
+     * Sends <code>packet</code> to each of <code>players</code>, or queues it to be sent on the next flush if batching.
+     * @param packet The packet to send
+     * @param players The players to send the packet to
+     */
+    public void sendPacket(@NotNull PacketContainer packet, @NotNull Collection<Player> players) {
+        if(isBatching && Bukkit.isPrimaryThread()) {
+            for(Player player : players) {
+                pendingPackets.computeIfAbsent(player, p -> new ArrayList<>()).add(packet);
+            }
+            return;
+        }
+
+        for(Player player : players) {
+            sendNow(player, packet);
+        }
+    }
+
+    /**
+     * Sends all of the queued packets, and stops batching.
+     * Called at the end of the main update.
+     */
+    public void flush() {
+        isBatching = false;
+        if(pendingPackets.isEmpty()) {return;}
+
+        for(Map.Entry<Player, List<PacketContainer>> entry : pendingPackets.entrySet()) {
+            Player player = entry.getKey();
+            if(!player.isOnline()) {continue;}
+
+            List<PacketContainer> packets = entry.getValue();
+            try {
+                if(packets.size() == 1 || !supportsBundles || bundlesFailed) {
+                    packets.forEach(packet -> sendNow(player, packet));
+                }   else    {
+                    sendBundled(player, packets);
+                }
+            }   catch(RuntimeException ex) {
+                // Otherwise the packets for the remaining players would be lost
+                logger.warning("Failed to send entity packets to player %s", player.getUniqueId());
+                ex.printStackTrace();
+            }
+        }
+        pendingPackets.clear();
+    }
+
+    private void sendBundled(Player player, List<PacketContainer> packets) {
+        for(int start = 0; start < packets.size(); start += MAX_BUNDLE_SIZE) {
+            List<PacketContainer> section = packets.subList(start, Math.min(packets.size(), start + MAX_BUNDLE_SIZE));
+
+            if(bundlesFailed) {
+                section.forEach(packet -> sendNow(player, packet));
+                continue;
+            }
+
+            try {
+                PacketContainer bundle = new PacketContainer(PacketType.Play.Server.BUNDLE);
+                bundle.getPacketBundles().write(0, new ArrayList<>(section));
+                ProtocolLibrary.getProtocolManager().sendServerPacket(player, bundle);
+            }   catch(RuntimeException ex) {
+                // Fall back to sending the packets separately, which is still correct, just not applied atomically
+                logger.warning("Failed to send bundled entity packets, sending them separately from now on");
+                ex.printStackTrace();
+                bundlesFailed = true;
+                section.forEach(packet -> sendNow(player, packet));
+            }
+        }
+    }
+
+    private void sendNow(Player player, PacketContainer packet) {
+        ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
+        try {
+            protocolManager.sendServerPacket(player, packet);
+        }   catch(Exception ex) {
+            throw new RuntimeException("Failed to send packet", ex);
+        }
+    }
+}
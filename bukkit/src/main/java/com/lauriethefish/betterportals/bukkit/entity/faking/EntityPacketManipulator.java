@@ -1,12 +1,11 @@
 package com.lauriethefish.betterportals.bukkit.entity.faking;
 
 import com.comphenix.protocol.PacketType;
-import com.comphenix.protocol.ProtocolLibrary;
-import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.reflect.StructureModifier;
 import com.comphenix.protocol.utility.MinecraftVersion;
 import com.comphenix.protocol.wrappers.*;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
 import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
@@ -33,6 +32,13 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     private static final int entityDataFieldIndex = VersionUtil.isMcVersionAtLeast("1.19.0") ? 4 : 6;
     private static final boolean useNewEntityRotationFields = VersionUtil.isMcVersionAtLeast("1.19.0");
 
+    private final EntityPacketBatcher packetBatcher;
+
+    @Inject
+    public EntityPacketManipulator(EntityPacketBatcher packetBatcher) {
+        this.packetBatcher = packetBatcher;
+    }
+
     @Override
     public void showEntity(EntityInfo tracker, Collection<Player> players) {
         // Generate the packet that NMS would normally use to spawn the entity
@@ -290,10 +296,6 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
 
     @Override
     public void sendMetadata(EntityInfo tracker, Collection<Player> players) {
-        PacketContainer packet = new PacketContainer(PacketType.Play.Server.ENTITY_METADATA);
-
-        packet.getIntegers().write(0, tracker.getEntityId());
-
         WrappedDataWatcher dataWatcher = EntityUtil.getActualDataWatcher(tracker.getEntity()); // Get the entity's actual data watcher
 
         // Convert the data watcher to a list of WrappedDataValues
@@ -308,7 +310,15 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
                 })
                 .toList();
 
-        packet.getDataValueCollectionModifier().write(0, wrappedDataValueList); // Write the data values to the packet
+        sendMetadata(tracker, wrappedDataValueList, players);
+    }
+
+    @Override
+    public void sendMetadata(EntityInfo tracker, List<WrappedDataValue> values, Collection<Player> players) {
+        PacketContainer packet = new PacketContainer(PacketType.Play.Server.ENTITY_METADATA);
+
+        packet.getIntegers().write(0, tracker.getEntityId());
+        packet.getDataValueCollectionModifier().write(0, values); // Write the data values to the packet
 
         sendPacket(packet, players); // Send the packet to the specified players
     }
@@ -413,13 +423,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     }
 
     private void sendPacket(PacketContainer packet, Collection<Player> players) {
-        ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
-        try {
-            for (Player player : players) {
-                protocolManager.sendServerPacket(player, packet);
-            }
-        }   catch(Exception ex) {
-            throw new RuntimeException("Failed to send packet", ex);
-        }
+        // Packets sent during the main update are flushed together at the end of it
+        packetBatcher.sendPacket(packet, players);
     }
 }
@@ -1,6 +1,7 @@
 package com.lauriethefish.betterportals.bukkit.entity.faking;
 
 import com.comphenix.protocol.wrappers.EnumWrappers;
+import com.comphenix.protocol.wrappers.WrappedDataValue;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
@@ -8,9 +9,17 @@ import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.entity.Boat;
 import org.bukkit.entity.Entity;
+import org.bukkit.entity.ExperienceOrb;
+import org.bukkit.entity.FallingBlock;
+import org.bukkit.entity.Item;
 import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Minecart;
 import org.bukkit.entity.Player;
+import org.bukkit.entity.Projectile;
+import org.bukkit.entity.TNTPrimed;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.Vector;
@@ -24,6 +33,15 @@ public class EntityTracker implements IEntityTracker    {
      */
     private static final int fakePlayerTabListRemoveDelay = 20;
 
+    // Bits of the change mask, which is found each update and then used to send the packets for the changes
+    private static final int POSITION_CHANGED = 1;
+    private static final int ROTATION_CHANGED = 1 << 1;
+    private static final int HEAD_ROTATION_CHANGED = 1 << 2;
+    private static final int VELOCITY_CHANGED = 1 << 3;
+    private static final int PASSENGERS_CHANGED = 1 << 4;
+    // Coarser than vanilla's threshold, since every velocity packet is sent to each player viewing the entity through a portal
+    private static final double MIN_VELOCITY_CHANGE_SQUARED = 1.0E-4;
+
     private final Entity entity;
     @Getter private final EntityInfo entityInfo;
     @Getter private final IPortal portal;
@@ -32,13 +50,28 @@ public class EntityTracker implements IEntityTracker    {
     private final JavaPlugin pl;
 
     private final Set<Player> trackingPlayers = new HashSet<>();
+    private final boolean syncsVelocity;
 
     private final EntityEquipmentWatcher equipmentWatcher;
-    private Vector lastPosition;
-    private Vector lastDirection;
-    private Vector lastVelocity;
-    private float lastHeadRotation;
-    private List<Entity> lastMounts;
+    private final EntityMetadataWatcher metadataWatcher;
+
+    // The state last sent to the tracking players is stored as primitives to avoid allocating on every update
+    private final Location currentLocation = new Location(null, 0.0, 0.0, 0.0);
+    private boolean hasLastState = false;
+    private double lastX;
+    private double lastY;
+    private double lastZ;
+    private float lastYaw;
+    private float lastPitch;
+    private double offsetX;
+    private double offsetY;
+    private double offsetZ;
+    private Vector velocity;
+    private double lastVelocityX;
+    private double lastVelocityY;
+    private double lastVelocityZ;
+    private boolean hadPassengers = false;
+    private boolean passengersChanged = false;
 
     private final int metadataUpdateInterval;
     private int ticksSinceCreated = 0;
@@ -47,7 +80,11 @@ public class EntityTracker implements IEntityTracker    {
     public EntityTracker(@Assisted Entity entity, @Assisted IPortal portal, IEntityPacketManipulator packetManipulator, EntityTrackingManager entityTrackingManager, RenderConfig renderConfig, JavaPlugin pl) {
         // Non-living entities don't have equipment
         this.equipmentWatcher = entity instanceof LivingEntity ? new EntityEquipmentWatcher((LivingEntity) entity) : null;
+        this.metadataWatcher = new EntityMetadataWatcher(entity);
+        // The full metadata is sent when showing the entity, so only later changes need to be sent
+        metadataWatcher.checkForChanges();
         this.entity = entity;
+        this.syncsVelocity = isVelocitySynced(entity);
         this.entityTrackingManager = entityTrackingManager;
         this.portal = portal;
         this.entityInfo = new EntityInfo(portal.getTransformations(), entity);
@@ -56,8 +93,19 @@ public class EntityTracker implements IEntityTracker    {
         this.pl = pl;
     }
 
+    /**
+     * Vanilla only sends the velocity of entities that the client moves between position updates, such as projectiles, items and vehicles.
+     * Other entities, e.g. mobs, are moved using the position packets alone.
+     * @param entity The entity to check
+     * @return Whether velocity changes of <code>entity</code> should be sent
+     */
+    private static boolean isVelocitySynced(Entity entity) {
+        return entity instanceof Projectile || entity instanceof Item || entity instanceof Minecart || entity instanceof Boat
+                || entity instanceof FallingBlock || entity instanceof TNTPrimed || entity instanceof ExperienceOrb;
+    }
+
     public void update() {
-        sendMovementUpdates();
+        sendChanges(findChanges());
 
         // Equipment is disabled for living entities
         if(equipmentWatcher != null) {
@@ -67,79 +115,148 @@ public class EntityTracker implements IEntityTracker    {
             }
         }
 
-        List<Entity> newMounts = entity.getPassengers();
-        if(!newMounts.equals(lastMounts)) {
-            lastMounts = newMounts;
-
-            List<EntityInfo> visibleMounts = new ArrayList<>();
-            for(Entity entity : newMounts) {
-                IEntityTracker tracker = entityTrackingManager.getTracker(portal, entity);
-                if(tracker != null) {
-                    visibleMounts.add(tracker.getEntityInfo());
-                }
-            }
-
-            packetManipulator.sendMount(entityInfo, visibleMounts, trackingPlayers);
-        }
-
         // The metadata packet contains tons of stuff, e.g. sneaking and beds on newer versions
-        // It's quite expensive to send a full update, so we only do this every N ticks
+        // Only the values that changed since they were last sent are included
         if(ticksSinceCreated % metadataUpdateInterval == 0) {
-            packetManipulator.sendMetadata(entityInfo, trackingPlayers);
+            List<WrappedDataValue> metadataChanges = metadataWatcher.checkForChanges();
+            if(metadataChanges.size() > 0) {
+                packetManipulator.sendMetadata(entityInfo, metadataChanges, trackingPlayers);
+            }
         }
 
-        packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
+        ticksSinceCreated++;
+    }
 
-        Vector velocity = entity.getVelocity();
-        if(lastVelocity != null && !velocity.equals(lastVelocity)) {
-            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
-            lastVelocity = velocity;
+    /**
+     * Compares the entity's current state with the state last sent, and records the current state.
+     * The first call only records the state, since it was just sent when showing the entity.
+     * @return The change mask, made up of the <code>_CHANGED</code> bits
+     */
+    private int findChanges() {
+        entity.getLocation(currentLocation);
+        double x = currentLocation.getX();
+        double y = currentLocation.getY();
+        double z = currentLocation.getZ();
+        float yaw = currentLocation.getYaw();
+        float pitch = currentLocation.getPitch();
+
+        // Bukkit exposes no way to read the velocity without allocating a vector, so it is only read if it is sent
+        if(syncsVelocity) {
+            velocity = entity.getVelocity();
         }
+        boolean hasPassengers = !entity.isEmpty();
+
+        int changes = 0;
+        if(hasLastState) {
+            if(x != lastX || y != lastY || z != lastZ) {
+                changes |= POSITION_CHANGED;
+                offsetX = x - lastX;
+                offsetY = y - lastY;
+                offsetZ = z - lastZ;
+            }
 
-        ticksSinceCreated++;
-    }
+            if(yaw != lastYaw || pitch != lastPitch) {
+                changes |= ROTATION_CHANGED;
+            }
 
-    @Override
-    public void onAnimation(@NotNull AnimationType animationType) {
-        packetManipulator.sendEntityAnimation(entityInfo, trackingPlayers, animationType);
-    }
+            // Bukkit uses the yaw as the head rotation for some reason, so we do it with that
+            if(yaw != lastYaw) {
+                changes |= HEAD_ROTATION_CHANGED;
+            }
 
-    @Override
-    public void onPickup(@NotNull EntityInfo pickedUp) {
-        packetManipulator.sendEntityPickupItem(entityInfo, pickedUp, trackingPlayers);
-    }
+            if(syncsVelocity) {
+                double velocityChangeX = velocity.getX() - lastVelocityX;
+                double velocityChangeY = velocity.getY() - lastVelocityY;
+                double velocityChangeZ = velocity.getZ() - lastVelocityZ;
+                double velocityChangeSquared = velocityChangeX * velocityChangeX + velocityChangeY * velocityChangeY + velocityChangeZ * velocityChangeZ;
+                // Stopping is always sent, otherwise the client would keep moving the entity
+                if(velocityChangeSquared > MIN_VELOCITY_CHANGE_SQUARED || (velocityChangeSquared > 0.0 && velocity.lengthSquared() == 0.0)) {
+                    changes |= VELOCITY_CHANGED;
+                }
+            }
 
-    // Handles sending all movement and looking packets
-    private void sendMovementUpdates() {
-        Vector currentPosition = entity.getLocation().toVector();
-        Vector currentDirection = entity.getLocation().getDirection();
+            if(passengersChanged || hasPassengers != hadPassengers) {
+                changes |= PASSENGERS_CHANGED;
+            }
+        }   else if(hasPassengers) {
+            // Passengers aren't sent when showing the entity
+            changes |= PASSENGERS_CHANGED;
+        }
 
-        boolean positionChanged = lastPosition != null && !currentPosition.equals(lastPosition);
-        boolean rotationChanged = lastDirection != null && !currentDirection.equals(lastDirection);
-        Vector posOffset = lastPosition == null ? new Vector() : currentPosition.clone().subtract(lastPosition);
+        if(syncsVelocity && (!hasLastState || (changes & VELOCITY_CHANGED) != 0)) {
+            lastVelocityX = velocity.getX();
+            lastVelocityY = velocity.getY();
+            lastVelocityZ = velocity.getZ();
+        }
+        hasLastState = true;
+        lastX = x;
+        lastY = y;
+        lastZ = z;
+        lastYaw = yaw;
+        lastPitch = pitch;
+        hadPassengers = hasPassengers;
+        passengersChanged = false;
+
+        return changes;
+    }
+
+    /**
+     * Sends the packets for the changes found by {@link EntityTracker#findChanges()}.
+     * @param changes The change mask
+     */
+    private void sendChanges(int changes) {
+        if(changes == 0) {return;}
 
-        lastPosition = currentPosition;
-        lastDirection = currentDirection;
+        boolean positionChanged = (changes & POSITION_CHANGED) != 0;
+        boolean rotationChanged = (changes & ROTATION_CHANGED) != 0;
 
         // Relative move packets have a limit of 8 blocks before we have to just send a teleport packet
-        boolean canUseRelativeMove = posOffset.getX() < 8 && posOffset.getY() < 8 && posOffset.getZ() < 8;
+        boolean canUseRelativeMove = Math.abs(offsetX) < 8 && Math.abs(offsetY) < 8 && Math.abs(offsetZ) < 8;
         // We must combine the move and look to avoid issues on newer versions
         if (positionChanged && !canUseRelativeMove) {
             packetManipulator.sendEntityTeleport(entityInfo, trackingPlayers);
         } else if (positionChanged && rotationChanged) {
-            packetManipulator.sendEntityMoveLook(entityInfo, posOffset, trackingPlayers);
+            packetManipulator.sendEntityMoveLook(entityInfo, new Vector(offsetX, offsetY, offsetZ), trackingPlayers);
         } else if (positionChanged) {
-            packetManipulator.sendEntityMove(entityInfo, posOffset, trackingPlayers);
+            packetManipulator.sendEntityMove(entityInfo, new Vector(offsetX, offsetY, offsetZ), trackingPlayers);
         } else if (rotationChanged) {
             packetManipulator.sendEntityLook(entityInfo, trackingPlayers);
         }
 
-        // Bukkit uses the yaw as the head rotation for some reason, so we do it with that
-        float headRotation = entity.getLocation().getYaw();
-        if(lastHeadRotation != headRotation) {
-            lastHeadRotation = headRotation;
+        if((changes & HEAD_ROTATION_CHANGED) != 0) {
             packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
         }
+
+        if((changes & VELOCITY_CHANGED) != 0) {
+            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
+        }
+
+        if((changes & PASSENGERS_CHANGED) != 0) {
+            List<EntityInfo> visibleMounts = new ArrayList<>();
+            for(Entity passenger : entity.getPassengers()) {
+                IEntityTracker tracker = entityTrackingManager.getTracker(portal, passenger);
+                if(tracker != null) {
+                    visibleMounts.add(tracker.getEntityInfo());
+                }
+            }
+
+            packetManipulator.sendMount(entityInfo, visibleMounts, trackingPlayers);
+        }
+    }
+
+    @Override
+    public void onAnimation(@NotNull AnimationType animationType) {
+        packetManipulator.sendEntityAnimation(entityInfo, trackingPlayers, animationType);
+    }
+
+    @Override
+    public void onPickup(@NotNull EntityInfo pickedUp) {
+        packetManipulator.sendEntityPickupItem(entityInfo, pickedUp, trackingPlayers);
+    }
+
+    @Override
+    public void onPassengersChanged() {
+        passengersChanged = true;
     }
 
     public void addTracking(@NotNull Player player) {
@@ -8,8 +8,11 @@ import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.entity.Entity;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.EntityDamageEvent;
+import org.bukkit.event.entity.EntityDismountEvent;
+import org.bukkit.event.entity.EntityMountEvent;
 import org.bukkit.event.entity.EntityPickupItemEvent;
 import org.bukkit.event.player.PlayerAnimationEvent;
 import org.bukkit.event.player.PlayerAnimationType;
@@ -90,6 +93,19 @@ public class EventEntityTrackingManager extends EntityTrackingManager implements
         forEachTracker(event.getPlayer(), tracker -> tracker.onAnimation(type));
     }
 
+    /**
+     * Trackers only fetch the passengers of their entity when they change, since fetching them allocates a new list
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityMount(EntityMountEvent event) {
+        forEachTracker(event.getMount(), IEntityTracker::onPassengersChanged);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityDismount(EntityDismountEvent event) {
+        forEachTracker(event.getDismounted(), IEntityTracker::onPassengersChanged);
+    }
+
     @EventHandler
     public void onEntityPickupItem(EntityPickupItemEvent event) {
         Entity entity = event.getEntity();
@@ -1,6 +1,7 @@
 package com.lauriethefish.betterportals.bukkit.entity.faking;
 
 import com.comphenix.protocol.wrappers.EnumWrappers;
+import com.comphenix.protocol.wrappers.WrappedDataValue;
 import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
@@ -8,6 +9,7 @@ import org.bukkit.util.Vector;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -97,16 +99,23 @@ public interface IEntityPacketManipulator {
     void sendEntityEquipment(EntityInfo tracker, Map<EnumWrappers.ItemSlot, ItemStack> changes, Collection<Player> players);
 
     /**
-     * Sends a metadata packet for <code>tracker</code>.
+     * Sends a metadata packet for <code>tracker</code> containing all of its metadata.
      * This packet stores whether a mob is burning, dropped item type/count, item frame type, painting type, etc..
-     * Unfortunately we're forced to do a full entity metadata update every time
-     * The problem is that NMS's DataWatcher may have already been updated for players already viewing the entity on the other side
-     * This means that we can't use the method of only sending the changed data :/
+     * NMS's DataWatcher may have already been updated for players already viewing the entity on the other side, so we can't use its dirty values.
+     * Use {@link EntityMetadataWatcher} to find the values that changed since they were last sent instead.
      * @param tracker Entity to update the metadata of
      * @param players Players to send the update to
      */
     void sendMetadata(EntityInfo tracker, Collection<Player> players);
 
+    /**
+     * Sends a metadata packet for <code>tracker</code> containing only <code>values</code>.
+     * @param tracker Entity to update the metadata of
+     * @param values The data watcher values to send, e.g. from {@link EntityMetadataWatcher#checkForChanges()}
+     * @param players Players to send the update to
+     */
+    void sendMetadata(EntityInfo tracker, List<WrappedDataValue> values, Collection<Player> players);
+
     /**
      * Sends an entity velocity update packet for <code>tracker</code> to <code>players</code>.
      * This automatically rotates the entity velocity based on the matrices in {@link EntityInfo}.
@@ -56,6 +56,12 @@ public interface IEntityTracker {
      */
     void onPickup(@NotNull EntityInfo pickedUp);
 
+    /**
+     * Called whenever the {@link EventEntityTrackingManager} detects that an entity started or stopped riding the tracked entity.
+     * Passengers are only fetched after this has been called, instead of on every update.
+     */
+    void onPassengersChanged();
+
     interface Factory {
         IEntityTracker create(Entity entity, IPortal portal);
     }
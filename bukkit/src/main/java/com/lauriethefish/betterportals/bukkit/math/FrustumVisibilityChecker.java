@@ -0,0 +1,359 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import lombok.Getter;
+import org.bukkit.util.Vector;
+
+/**
+ * Checks if positions are visible through a portal window by testing them against the frustum formed by the eye position and the edges of the window.
+ * This gives the same results as {@link PlaneIntersectionChecker}, but the planes are only built once, so each check is a few multiplications on primitive coordinates with no allocation or square roots.
+ * Used for checking large numbers of blocks, where casting a ray to each one is too slow.
+ */
+public class FrustumVisibilityChecker {
+    /**
+     * Every position in the box is hidden
+     */
+    public static final int BOX_HIDDEN = 0;
+    /**
+     * Every position in the box is visible
+     */
+    public static final int BOX_VISIBLE = 1;
+    /**
+     * Some positions in the box may be visible, so they must be checked individually
+     */
+    public static final int BOX_PARTIAL = 2;
+
+    private static final double EPSILON_SQUARED = MathUtil.EPSILON * MathUtil.EPSILON;
+
+    @Getter private final double eyeX;
+    @Getter private final double eyeY;
+    @Getter private final double eyeZ;
+
+    // Each plane is stored as its normal along each axis, and positions are visible if their dot product with every normal relative to the eye is non-negative
+    // The near plane is the portal's plane, and the side planes each pass through the eye and one edge of the portal window
+    private final double[] planeX = new double[5];
+    private final double[] planeY = new double[5];
+    private final double[] planeZ = new double[5];
+    private final double nearPlaneDistance;
+
+    // The window itself, used for finding how close positions are to the edge of the frustum
+    private final double[] center;
+    private final double[] size;
+    private final double side;
+    private final int firstWindowAxis;
+    private final int secondWindowAxis;
+
+    /**
+     * Axis of the portal's normal, 0 for X, 1 for Y and 2 for Z
+     */
+    @Getter private final int normalAxis;
+    /**
+     * Distance of the eye from the portal plane
+     */
+    @Getter private final double eyeDistance;
+    private final double distanceSquared;
+    private final boolean alwaysHidden;
+    /**
+     * Whether the eye is close enough to the plane that positions inside the frustum might still fail the ray cast's edge cases.
+     * Results can't be reused from other eye positions if this is true.
+     */
+    @Getter private final boolean edgeCasesPossible;
+
+    /**
+     * Creates a new {@link FrustumVisibilityChecker} for the same window as a {@link PlaneIntersectionChecker} created with these options.
+     * @param planeCenter The center position of the plane.
+     * @param planeNormal The direction of the plane. This must be along one axis, since portals can't be diagonal.
+     * @param eyePos The position that the window is viewed from
+     * @param maxDev Represents the size of the plane. This can be treated like a radius
+     */
+    public FrustumVisibilityChecker(Vector planeCenter, Vector planeNormal, Vector eyePos, Vector maxDev) {
+        this.eyeX = eyePos.getX();
+        this.eyeY = eyePos.getY();
+        this.eyeZ = eyePos.getZ();
+
+        double[] eye = {eyeX, eyeY, eyeZ};
+        center = new double[]{planeCenter.getX(), planeCenter.getY(), planeCenter.getZ()};
+        size = new double[]{maxDev.getX(), maxDev.getY(), Math.abs(maxDev.getZ())};
+
+        if(planeNormal.getX() != 0.0) {
+            normalAxis = 0;
+        }   else if(planeNormal.getY() != 0.0) {
+            normalAxis = 1;
+        }   else    {
+            normalAxis = 2;
+        }
+
+        // Positions on the same side of the plane as the eye are never visible, so the normals are flipped to face away from the eye
+        double signedDistance = center[normalAxis] - eye[normalAxis];
+        side = signedDistance >= 0.0 ? 1.0 : -1.0;
+        nearPlaneDistance = Math.abs(signedDistance);
+        eyeDistance = nearPlaneDistance;
+        distanceSquared = signedDistance * signedDistance;
+        firstWindowAxis = normalAxis == 0 ? 1 : 0;
+        secondWindowAxis = normalAxis == 2 ? 1 : 2;
+        // The intersection point always lies on the plane, so only a negative size along the normal can hide it
+        alwaysHidden = size[normalAxis] < 0.0;
+
+        setPlane(0, side, -1, 0.0);
+
+        int plane = 1;
+        double maxOffsetSquared = 0.0;
+        for(int axis = 0; axis < 3; axis++) {
+            if(axis == normalAxis) {continue;}
+
+            // The ray hits the window if the offset of the intersection point along this axis is within the size of the window
+            // Multiplying this by the distance along the normal gives two planes through the eye for each axis
+            double offset = eye[axis] - center[axis];
+            setPlane(plane++, (size[axis] - offset) * side, axis, -nearPlaneDistance);
+            setPlane(plane++, (size[axis] + offset) * side, axis, nearPlaneDistance);
+
+            double maxOffset = Math.abs(offset) + Math.abs(size[axis]);
+            maxOffsetSquared += maxOffset * maxOffset;
+        }
+
+        // Every ray through the window is at least this steep, so the edge cases only matter if the eye is almost on the plane
+        // The epsilon is doubled to leave room for rounding
+        double margin = 4.0 * EPSILON_SQUARED;
+        edgeCasesPossible = nearPlaneDistance <= 2.0 * MathUtil.EPSILON || distanceSquared <= margin * (distanceSquared + maxOffsetSquared);
+    }
+
+    private void setPlane(int plane, double normalComponent, int otherAxis, double otherComponent) {
+        double[] normal = new double[3];
+        normal[normalAxis] = normalComponent;
+        if(otherAxis != -1) {
+            normal[otherAxis] = otherComponent;
+        }
+
+        planeX[plane] = normal[0];
+        planeY[plane] = normal[1];
+        planeZ[plane] = normal[2];
+    }
+
+    /**
+     * Finds if the line from the eye to the given position passes through the portal window, and the position is behind the window.
+     * @param x X coordinate of the position
+     * @param y Y coordinate of the position
+     * @param z Z coordinate of the position
+     * @return Whether the position is visible
+     */
+    public boolean isVisible(double x, double y, double z) {
+        if(alwaysHidden) {return false;}
+
+        double relX = x - eyeX;
+        double relY = y - eyeY;
+        double relZ = z - eyeZ;
+
+        // Positions before the portal window aren't visible
+        if(relX * planeX[0] + relY * planeY[0] + relZ * planeZ[0] < nearPlaneDistance) {return false;}
+
+        for(int plane = 1; plane < 5; plane++) {
+            if(relX * planeX[plane] + relY * planeY[plane] + relZ * planeZ[plane] < 0.0) {
+                return false;
+            }
+        }
+
+        // Match the ray cast for rays almost parallel to the plane, or eyes almost on it
+        double alongNormal = normalAxis == 0 ? relX : normalAxis == 1 ? relY : relZ;
+        double normalSquared = alongNormal * alongNormal;
+        double lengthSquared = relX * relX + relY * relY + relZ * relZ;
+        return normalSquared > EPSILON_SQUARED * lengthSquared && distanceSquared * lengthSquared > EPSILON_SQUARED * normalSquared;
+    }
+
+    /**
+     * Checks a whole box of positions against the frustum at once.
+     * Since the frustum is convex, the box is fully visible if each of its corners is, and fully hidden if all of its corners are outside the same plane.
+     * @param minX Minimum X coordinate of the box
+     * @param minY Minimum Y coordinate of the box
+     * @param minZ Minimum Z coordinate of the box
+     * @param maxX Maximum X coordinate of the box
+     * @param maxY Maximum Y coordinate of the box
+     * @param maxZ Maximum Z coordinate of the box
+     * @return {@link FrustumVisibilityChecker#BOX_HIDDEN}, {@link FrustumVisibilityChecker#BOX_VISIBLE} or {@link FrustumVisibilityChecker#BOX_PARTIAL}
+     */
+    public int checkBox(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if(alwaysHidden) {return BOX_HIDDEN;}
+
+        double relMinX = minX - eyeX;
+        double relMinY = minY - eyeY;
+        double relMinZ = minZ - eyeZ;
+        double relMaxX = maxX - eyeX;
+        double relMaxY = maxY - eyeY;
+        double relMaxZ = maxZ - eyeZ;
+
+        boolean fullyInside = true;
+        for(int plane = 0; plane < 5; plane++) {
+            double threshold = plane == 0 ? nearPlaneDistance : 0.0;
+
+            // Find the corners with the highest and lowest distance along this plane's normal
+            double highest = 0.0;
+            double lowest = 0.0;
+            double normalX = planeX[plane];
+            double normalY = planeY[plane];
+            double normalZ = planeZ[plane];
+            highest += normalX > 0.0 ? normalX * relMaxX : normalX * relMinX;
+            lowest += normalX > 0.0 ? normalX * relMinX : normalX * relMaxX;
+            highest += normalY > 0.0 ? normalY * relMaxY : normalY * relMinY;
+            lowest += normalY > 0.0 ? normalY * relMinY : normalY * relMaxY;
+            highest += normalZ > 0.0 ? normalZ * relMaxZ : normalZ * relMinZ;
+            lowest += normalZ > 0.0 ? normalZ * relMinZ : normalZ * relMaxZ;
+
+            if(highest < threshold) {return BOX_HIDDEN;}
+            if(lowest < threshold) {fullyInside = false;}
+        }
+
+        return fullyInside && !edgeCasesPossible ? BOX_VISIBLE : BOX_PARTIAL;
+    }
+
+    /**
+     * Checks the centers of every block in a box of blocks against the frustum at once.
+     * @param minX Minimum X coordinate of the blocks
+     * @param minY Minimum Y coordinate of the blocks
+     * @param minZ Minimum Z coordinate of the blocks
+     * @param maxX Maximum X coordinate of the blocks
+     * @param maxY Maximum Y coordinate of the blocks
+     * @param maxZ Maximum Z coordinate of the blocks
+     * @return {@link FrustumVisibilityChecker#BOX_HIDDEN}, {@link FrustumVisibilityChecker#BOX_VISIBLE} or {@link FrustumVisibilityChecker#BOX_PARTIAL}
+     */
+    public int checkBlockBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return checkBox(minX + 0.5, minY + 0.5, minZ + 0.5, maxX + 0.5, maxY + 0.5, maxZ + 0.5);
+    }
+
+    /**
+     * Finds if the center of the block at the given coordinates is visible.
+     * @param x X coordinate of the block
+     * @param y Y coordinate of the block
+     * @param z Z coordinate of the block
+     * @return Whether the block's center is visible
+     */
+    public boolean isBlockVisible(int x, int y, int z) {
+        return isVisible(x + 0.5, y + 0.5, z + 0.5);
+    }
+
+    /**
+     * Finds how close the position is to the edge of the frustum, measured as the distance from the point where the ray to it crosses the portal plane to the edge of the window.
+     * Used to find how far the eye can move before the position's visibility might change.
+     * @param x X coordinate of the position
+     * @param y Y coordinate of the position
+     * @param z Z coordinate of the position
+     * @return The distance, or infinity if the position is on the same side of the plane as the eye, since it stays hidden wherever the eye moves on that side
+     */
+    public double getMargin(double x, double y, double z) {
+        double alongNormal = side * (component(normalAxis, x, y, z) - component(normalAxis, eyeX, eyeY, eyeZ));
+        if(alongNormal < nearPlaneDistance) {return Double.POSITIVE_INFINITY;}
+
+        double scale = nearPlaneDistance / alongNormal;
+        return Math.min(
+                getWindowMargin(firstWindowAxis, component(firstWindowAxis, x, y, z), scale),
+                getWindowMargin(secondWindowAxis, component(secondWindowAxis, x, y, z), scale)
+        );
+    }
+
+    /**
+     * Finds how quickly the point where the ray to the position crosses the portal plane moves as the eye moves towards or away from the plane.
+     * @param x X coordinate of the position
+     * @param y Y coordinate of the position
+     * @param z Z coordinate of the position
+     * @return The distance from the eye within the plane divided by the distance along the normal
+     */
+    public double getSlope(double x, double y, double z) {
+        double alongNormal = side * (component(normalAxis, x, y, z) - component(normalAxis, eyeX, eyeY, eyeZ));
+        double offset = Math.max(
+                Math.abs(component(firstWindowAxis, x, y, z) - component(firstWindowAxis, eyeX, eyeY, eyeZ)),
+                Math.abs(component(secondWindowAxis, x, y, z) - component(secondWindowAxis, eyeX, eyeY, eyeZ))
+        );
+        return offset / alongNormal;
+    }
+
+    /**
+     * Finds the smallest margin of every position in a box, as in {@link FrustumVisibilityChecker#getMargin(double, double, double)}.
+     * The box must have been fully visible or fully hidden in {@link FrustumVisibilityChecker#checkBox(double, double, double, double, double, double)}.
+     * @param minX Minimum X coordinate of the box
+     * @param minY Minimum Y coordinate of the box
+     * @param minZ Minimum Z coordinate of the box
+     * @param maxX Maximum X coordinate of the box
+     * @param maxY Maximum Y coordinate of the box
+     * @param maxZ Maximum Z coordinate of the box
+     * @param visible Whether the box was visible
+     * @return The smallest margin, or zero if the box crosses the portal plane
+     */
+    public double getBoxMargin(double minX, double minY, double minZ, double maxX, double maxY, double maxZ, boolean visible) {
+        int behindCorners = 0;
+        double visibleMargin = Double.POSITIVE_INFINITY;
+        // Smallest distance outside each edge of the window
+        double firstLow = Double.POSITIVE_INFINITY;
+        double firstHigh = Double.POSITIVE_INFINITY;
+        double secondLow = Double.POSITIVE_INFINITY;
+        double secondHigh = Double.POSITIVE_INFINITY;
+
+        for(int corner = 0; corner < 8; corner++) {
+            double x = (corner & 1) == 0 ? minX : maxX;
+            double y = (corner & 2) == 0 ? minY : maxY;
+            double z = (corner & 4) == 0 ? minZ : maxZ;
+
+            double alongNormal = side * (component(normalAxis, x, y, z) - component(normalAxis, eyeX, eyeY, eyeZ));
+            if(alongNormal < nearPlaneDistance) {
+                behindCorners++;
+                continue;
+            }
+
+            // Since the frustum is convex, the points where the rays to the box cross the plane are within the shape made by the corners' points
+            double scale = nearPlaneDistance / alongNormal;
+            double first = getWindowOffset(firstWindowAxis, component(firstWindowAxis, x, y, z), scale);
+            double second = getWindowOffset(secondWindowAxis, component(secondWindowAxis, x, y, z), scale);
+
+            visibleMargin = Math.min(visibleMargin, Math.min(size[firstWindowAxis] - Math.abs(first), size[secondWindowAxis] - Math.abs(second)));
+            firstLow = Math.min(firstLow, -first - size[firstWindowAxis]);
+            firstHigh = Math.min(firstHigh, first - size[firstWindowAxis]);
+            secondLow = Math.min(secondLow, -second - size[secondWindowAxis]);
+            secondHigh = Math.min(secondHigh, second - size[secondWindowAxis]);
+        }
+
+        if(behindCorners == 8) {return Double.POSITIVE_INFINITY;}
+        if(behindCorners > 0) {return 0.0;}
+
+        double margin = visible ? visibleMargin : Math.max(Math.max(firstLow, firstHigh), Math.max(secondLow, secondHigh));
+        return Math.max(margin, 0.0);
+    }
+
+    /**
+     * Finds the largest slope of every position in a box, as in {@link FrustumVisibilityChecker#getSlope(double, double, double)}.
+     * @param minX Minimum X coordinate of the box
+     * @param minY Minimum Y coordinate of the box
+     * @param minZ Minimum Z coordinate of the box
+     * @param maxX Maximum X coordinate of the box
+     * @param maxY Maximum Y coordinate of the box
+     * @param maxZ Maximum Z coordinate of the box
+     * @return An upper bound of the slope of every position in the box
+     */
+    public double getBoxSlope(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        // The offset is largest at one of the corners, and the distance along the normal is smallest at another, so this is an upper bound for every position in the box
+        double largestOffset = 0.0;
+        double smallestAlongNormal = Double.POSITIVE_INFINITY;
+        for(int corner = 0; corner < 8; corner++) {
+            double x = (corner & 1) == 0 ? minX : maxX;
+            double y = (corner & 2) == 0 ? minY : maxY;
+            double z = (corner & 4) == 0 ? minZ : maxZ;
+
+            smallestAlongNormal = Math.min(smallestAlongNormal, side * (component(normalAxis, x, y, z) - component(normalAxis, eyeX, eyeY, eyeZ)));
+            largestOffset = Math.max(largestOffset, Math.max(
+                    Math.abs(component(firstWindowAxis, x, y, z) - component(firstWindowAxis, eyeX, eyeY, eyeZ)),
+                    Math.abs(component(secondWindowAxis, x, y, z) - component(secondWindowAxis, eyeX, eyeY, eyeZ))
+            ));
+        }
+
+        return smallestAlongNormal <= 0.0 ? Double.POSITIVE_INFINITY : largestOffset / smallestAlongNormal;
+    }
+
+    // Offset of the point where the ray crosses the plane from the center of the window along an axis
+    private double getWindowOffset(int axis, double coordinate, double scale) {
+        double eyeCoordinate = component(axis, eyeX, eyeY, eyeZ);
+        return eyeCoordinate + (coordinate - eyeCoordinate) * scale - center[axis];
+    }
+
+    private double getWindowMargin(int axis, double coordinate, double scale) {
+        return Math.abs(size[axis] - Math.abs(getWindowOffset(axis, coordinate, scale)));
+    }
+
+    private static double component(int axis, double x, double y, double z) {
+        return axis == 0 ? x : axis == 1 ? y : z;
+    }
+}
@@ -12,6 +12,12 @@ import java.io.Serializable;
 public class Matrix implements Serializable {
     private static final long serialVersionUID = 1;
 
+    /**
+     * Returned by {@link Matrix#getRotationKey()} if the matrix can't be encoded.
+     */
+    public static final int NON_AXIS_ALIGNED = -1;
+    private static final double ROTATION_KEY_TOLERANCE = 0.0001;
+
     public double[][] m;
 
     public Matrix(double[][] matrix)  {
@@ -177,4 +183,26 @@ public class Matrix implements Serializable {
     public IntVector transform(IntVector in) {
         return transform(in.getX(), in.getY(), in.getZ());
     }
+
+    /**
+     * Encodes the 3x3 rotation part of this matrix into an integer, since each value is either -1, 0 or 1 for rotations that are multiples of 90 degrees.
+     * Portal rotations are always multiples of 90 degrees, but the matrices are made with trigonometry, so the values are rounded.
+     * @return The encoded rotation, or {@link Matrix#NON_AXIS_ALIGNED} if this matrix isn't a multiple of 90 degree rotation
+     */
+    public int getRotationKey() {
+        int key = 0;
+        for(int row = 0; row < 3; row++) {
+            for(int column = 0; column < 3; column++) {
+                double value = m[row][column];
+                long rounded = Math.round(value);
+                if(Math.abs(value - rounded) > ROTATION_KEY_TOLERANCE || Math.abs(rounded) > 1) {
+                    return NON_AXIS_ALIGNED;
+                }
+
+                key = key * 3 + (int) (rounded + 1);
+            }
+        }
+
+        return key;
+    }
 }
@@ -0,0 +1,23 @@
+package com.lauriethefish.betterportals.bukkit.nms;
+
+import com.comphenix.protocol.utility.MinecraftReflection;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.shared.util.ReflectionUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+public class BlockStateIdUtil {
+    // Block.getId(BlockState), found by its signature since the name is obfuscated on some servers
+    private static final Method GET_ID = ReflectionUtil.findMethodByTypes(MinecraftReflection.getBlockClass(), int.class,
+            Modifier.STATIC, Modifier.STATIC, new Class[]{MinecraftReflection.getIBlockDataClass()});
+
+    /**
+     * @param data The data to find the ID of
+     * @return The ID of <code>data</code> in the global block state palette, as used in chunk packets
+     */
+    public static int getGlobalId(@NotNull WrappedBlockData data) {
+        return (int) ReflectionUtil.invokeMethod(null, GET_ID, data.getHandle());
+    }
+}
@@ -0,0 +1,256 @@
+package com.lauriethefish.betterportals.bukkit.nms;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Replaces block states in the section data of a chunk packet, which uses the network format of paletted containers from 1.18 onwards.
+ * Each section is its non-air block count, followed by a paletted container of block states then one of biomes.
+ */
+public class ChunkSectionWriter {
+    private static final int SECTION_VOLUME = 4096;
+    // Containers with more bits per entry than these use the global palette
+    private static final int MAX_INDIRECT_BLOCK_BITS = 8;
+    private static final int MAX_INDIRECT_BIOME_BITS = 3;
+    // The client always uses at least this many bits for an indirect block palette
+    private static final int MIN_INDIRECT_BLOCK_BITS = 4;
+
+    private final byte[] input;
+    private int readIndex = 0;
+    private final ByteArrayOutputStream output;
+
+    // Bits per entry of the global palette, found from any section which uses it
+    private int globalBits = 0;
+
+    private ChunkSectionWriter(byte[] input) {
+        this.input = input;
+        this.output = new ByteArrayOutputStream(input.length + 1024);
+    }
+
+    /**
+     * @param buffer The section data of the chunk packet
+     * @param changes The global state IDs to write into each section, indexed by section then by <code>y << 8 | z << 4 | x</code>. -1 leaves a block unchanged, and a null array leaves the whole section unchanged
+     * @param isAir Whether a global state ID is air, used to find the non-air block count of each section
+     * @return The new section data, or null if a section could not be rewritten
+     * @throws IllegalArgumentException If the section data is malformed
+     */
+    public static @Nullable byte[] writeChanges(@NotNull byte[] buffer, @NotNull int[][] changes, @NotNull IntPredicate isAir) {
+        ChunkSectionWriter writer = new ChunkSectionWriter(buffer);
+        writer.findGlobalBits(changes.length);
+        for(int[] sectionChanges : changes) {
+            if(!writer.writeSection(sectionChanges, isAir)) {
+                return null;
+            }
+        }
+
+        // Copy anything after the sections unchanged
+        writer.output.write(buffer, writer.readIndex, buffer.length - writer.readIndex);
+        return writer.output.toByteArray();
+    }
+
+    // Skips through every section to find the bits per entry of the global palette, in case a section needs it after being changed
+    private void findGlobalBits(int sectionCount) {
+        for(int i = 0; i < sectionCount; i++) {
+            readIndex += 2;
+            skipContainer(MAX_INDIRECT_BLOCK_BITS);
+            skipContainer(MAX_INDIRECT_BIOME_BITS);
+        }
+        readIndex = 0;
+    }
+
+    private boolean writeSection(int[] sectionChanges, IntPredicate isAir) {
+        int start = readIndex;
+        if(sectionChanges == null) {
+            readIndex += 2;
+            skipContainer(MAX_INDIRECT_BLOCK_BITS);
+            skipContainer(MAX_INDIRECT_BIOME_BITS);
+            copyFrom(start);
+            return true;
+        }
+
+        readIndex += 2; // The block count is found again from the new states
+        int[] states = readBlockStates();
+        int nonAirCount = 0;
+        for(int i = 0; i < SECTION_VOLUME; i++) {
+            if(sectionChanges[i] != -1) {
+                states[i] = sectionChanges[i];
+            }
+            if(!isAir.test(states[i])) {
+                nonAirCount++;
+            }
+        }
+
+        output.write(nonAirCount >> 8);
+        output.write(nonAirCount);
+        if(!writeBlockStates(states)) {
+            return false;
+        }
+
+        int biomesStart = readIndex;
+        skipContainer(MAX_INDIRECT_BIOME_BITS);
+        copyFrom(biomesStart);
+        return true;
+    }
+
+    private void copyFrom(int start) {
+        output.write(input, start, readIndex - start);
+    }
+
+    private void skipContainer(int maxIndirectBits) {
+        int bits = readByte();
+        if(bits == 0) {
+            readVarInt();
+        }   else if(bits <= maxIndirectBits) {
+            int paletteLength = readVarInt();
+            for(int i = 0; i < paletteLength; i++) {
+                readVarInt();
+            }
+        }   else if(maxIndirectBits == MAX_INDIRECT_BLOCK_BITS) {
+            globalBits = bits;
+        }
+
+        int dataLength = readVarInt();
+        readIndex += dataLength * 8;
+    }
+
+    private int[] readBlockStates() {
+        int bits = readByte();
+        int[] palette = null;
+        int[] states = new int[SECTION_VOLUME];
+        if(bits == 0) {
+            Arrays.fill(states, readVarInt());
+        }   else if(bits <= MAX_INDIRECT_BLOCK_BITS) {
+            palette = new int[readVarInt()];
+            for(int i = 0; i < palette.length; i++) {
+                palette[i] = readVarInt();
+            }
+        }
+
+        int dataLength = readVarInt();
+        if(bits == 0) {
+            readIndex += dataLength * 8;
+            return states;
+        }
+
+        // Entries never span two longs
+        int valuesPerLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        if(dataLength < (SECTION_VOLUME + valuesPerLong - 1) / valuesPerLong) {
+            throw new IllegalArgumentException("Paletted container data was too short");
+        }
+        for(int l = 0; l < dataLength; l++) {
+            long value = readLong();
+            for(int j = 0; j < valuesPerLong; j++) {
+                int i = l * valuesPerLong + j;
+                if(i >= SECTION_VOLUME) {break;}
+
+                int entry = (int) (value >>> (j * bits) & mask);
+                if(palette != null) {
+                    if(entry >= palette.length) {
+                        throw new IllegalArgumentException("Paletted container entry was outside of the palette");
+                    }
+                    entry = palette[entry];
+                }
+                states[i] = entry;
+            }
+        }
+
+        return states;
+    }
+
+    private boolean writeBlockStates(int[] states) {
+        int[] palette = states.clone();
+        Arrays.sort(palette);
+        int paletteLength = 0;
+        for(int i = 0; i < palette.length; i++) {
+            if(i == 0 || palette[i] != palette[i - 1]) {
+                palette[paletteLength++] = palette[i];
+            }
+        }
+
+        if(paletteLength == 1) {
+            output.write(0);
+            writeVarInt(palette[0]);
+            writeVarInt(0);
+            return true;
+        }
+
+        int bits;
+        if(paletteLength <= 1 << MAX_INDIRECT_BLOCK_BITS) {
+            bits = Math.max(MIN_INDIRECT_BLOCK_BITS, 32 - Integer.numberOfLeadingZeros(paletteLength - 1));
+            output.write(bits);
+            writeVarInt(paletteLength);
+            for(int i = 0; i < paletteLength; i++) {
+                writeVarInt(palette[i]);
+            }
+        }   else if(globalBits > 0) {
+            bits = globalBits;
+            output.write(bits);
+            palette = null;
+        }   else    {
+            // The section needs the global palette, but we don't know how many bits it uses
+            return false;
+        }
+
+        int valuesPerLong = 64 / bits;
+        int dataLength = (SECTION_VOLUME + valuesPerLong - 1) / valuesPerLong;
+        writeVarInt(dataLength);
+        for(int l = 0; l < dataLength; l++) {
+            long value = 0;
+            for(int j = 0; j < valuesPerLong; j++) {
+                int i = l * valuesPerLong + j;
+                if(i >= SECTION_VOLUME) {break;}
+
+                long entry = palette == null ? states[i] : Arrays.binarySearch(palette, 0, paletteLength, states[i]);
+                value |= entry << (j * bits);
+            }
+            writeLong(value);
+        }
+        return true;
+    }
+
+    private int readByte() {
+        if(readIndex >= input.length) {
+            throw new IllegalArgumentException("Chunk section data ended unexpectedly");
+        }
+        return input[readIndex++] & 0xFF;
+    }
+
+    private int readVarInt() {
+        int result = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            result |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("VarInt was too long");
+    }
+
+    private long readLong() {
+        long result = 0;
+        for(int i = 0; i < 8; i++) {
+            result = result << 8 | readByte();
+        }
+        return result;
+    }
+
+    private void writeVarInt(int value) {
+        while((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    private void writeLong(long value) {
+        for(int shift = 56; shift >= 0; shift -= 8) {
+            output.write((int) (value >>> shift));
+        }
+    }
+}
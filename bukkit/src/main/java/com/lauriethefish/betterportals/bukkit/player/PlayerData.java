@@ -6,6 +6,7 @@ import com.lauriethefish.betterportals.bukkit.BetterPortals;
 import com.lauriethefish.betterportals.bukkit.portal.selection.ISelectionManager;
 import com.lauriethefish.betterportals.bukkit.player.view.IPlayerPortalView;
 import com.lauriethefish.betterportals.bukkit.player.view.PlayerPortalViewFactory;
+import com.lauriethefish.betterportals.bukkit.player.view.block.BlockChangeBudget;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalActivityManager;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
@@ -37,6 +38,7 @@ public class PlayerData implements IPlayerData  {
     private final IPortalActivityManager portalActivityManager;
 
     private final PlayerPortalViewFactory playerPortalViewFactory;
+    private final BlockChangeBudget blockChangeBudget;
 
     // A concurrent map is used so that removing a portal while updating portals doesn't cause an error
     private final Map<IPortal, IPlayerPortalView> portalViews = new ConcurrentHashMap<>();
@@ -44,7 +46,8 @@ public class PlayerData implements IPlayerData  {
     private boolean viewsFrozen;
 
     @Inject
-    public PlayerData(@Assisted Player player, ISelectionManager selection, IPortalManager portalManager, IPortalPredicateManager portalPredicateManager, BetterPortals pl, Logger logger, IPortalActivityManager portalActivityManager, PlayerPortalViewFactory playerPortalViewFactory) {
+    public PlayerData(@Assisted Player player, ISelectionManager selection, IPortalManager portalManager, IPortalPredicateManager portalPredicateManager, BetterPortals pl, Logger logger, IPortalActivityManager portalActivityManager, PlayerPortalViewFactory playerPortalViewFactory,
+                      BlockChangeBudget blockChangeBudget) {
         this.player = player;
         this.selection = selection;
         this.portalManager = portalManager;
@@ -53,6 +56,7 @@ public class PlayerData implements IPlayerData  {
         this.logger = logger;
         this.portalActivityManager = portalActivityManager;
         this.playerPortalViewFactory = playerPortalViewFactory;
+        this.blockChangeBudget = blockChangeBudget;
 
         permanentData = loadPermanentDataYml();
     }
@@ -127,6 +131,7 @@ public class PlayerData implements IPlayerData  {
     @Override
     public void onLogout() {
         deactivateViews(true);
+        blockChangeBudget.remove(player.getUniqueId());
     }
 
 
@@ -1,8 +1,12 @@
 package com.lauriethefish.betterportals.bukkit.player;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Key;
+import com.google.inject.Provides;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
+import com.google.inject.name.Named;
 import com.google.inject.name.Names;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.portal.selection.ISelectionManager;
 import com.lauriethefish.betterportals.bukkit.portal.selection.IPortalSelection;
 import com.lauriethefish.betterportals.bukkit.portal.selection.SelectionManager;
@@ -10,16 +14,24 @@ import com.lauriethefish.betterportals.bukkit.portal.selection.PortalSelection;
 import com.lauriethefish.betterportals.bukkit.player.view.IPlayerPortalView;
 import com.lauriethefish.betterportals.bukkit.player.view.PlayerPortalView;
 import com.lauriethefish.betterportals.bukkit.player.view.PlayerPortalViewFactory;
+import com.lauriethefish.betterportals.bukkit.player.view.block.ChunkViewInterceptor;
 import com.lauriethefish.betterportals.bukkit.player.view.block.IPlayerBlockStates;
+import com.lauriethefish.betterportals.bukkit.player.view.block.IndexedPlayerBlockStates;
 import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockStates;
 import org.bukkit.Bukkit;
 
 public class PlayerModule extends AbstractModule {
     @Override
     public void configure() {
+        // Indexed block states store one bit per block in the portal's block map, rather than a map of block positions
+        // Both are bound, and the config decides which is used when each view is created
+        install(new FactoryModuleBuilder()
+                .implement(IPlayerBlockStates.class, IndexedPlayerBlockStates.class)
+                .build(Key.get(IPlayerBlockStates.Factory.class, Names.named("indexed")))
+        );
         install(new FactoryModuleBuilder()
                 .implement(IPlayerBlockStates.class, PlayerBlockStates.class)
-                .build(IPlayerBlockStates.Factory.class)
+                .build(Key.get(IPlayerBlockStates.Factory.class, Names.named("mapped")))
         );
         install(new FactoryModuleBuilder()
                 .implement(IPlayerData.class, PlayerData.class)
@@ -34,8 +46,17 @@ public class PlayerModule extends AbstractModule {
         double blockSendUpdateDistance = Bukkit.getServer().getViewDistance() * 25;
         bind(double.class).annotatedWith(Names.named("blockSendUpdateDistance")).toInstance(blockSendUpdateDistance);
         bind(IPlayerDataManager.class).to(PlayerDataManager.class).asEagerSingleton();
+        // Created eagerly so that it is listening for chunk packets before any portals are viewed
+        bind(ChunkViewInterceptor.class).asEagerSingleton();
 
         bind(ISelectionManager.class).to(SelectionManager.class);
         bind(IPortalSelection.class).to(PortalSelection.class);
     }
+
+    @Provides
+    IPlayerBlockStates.Factory provideBlockStatesFactory(RenderConfig renderConfig,
+                                                         @Named("indexed") IPlayerBlockStates.Factory indexedFactory,
+                                                         @Named("mapped") IPlayerBlockStates.Factory mappedFactory) {
+        return renderConfig.isIndexedBlockStates() ? indexedFactory : mappedFactory;
+    }
 }
@@ -7,6 +7,7 @@ import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.player.view.block.IPlayerBlockView;
 import com.lauriethefish.betterportals.bukkit.player.view.entity.IPlayerEntityView;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.util.StringUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Bukkit;
@@ -22,14 +23,18 @@ public class PlayerPortalView implements IPlayerPortalView  {
     private final IPlayerBlockView blockView;
     private final IPlayerEntityView entityView;
 
+    private final BlockUpdateFinisher blockUpdateFinisher;
+
     private Location previousPosition = null;
-    private int ticksSinceStarted = 0;
+    private int ticksUntilRefresh = 0;
 
     @Inject
-    public PlayerPortalView(@Assisted Player player, @Assisted IPortal viewedPortal, ViewFactory viewFactory, Logger logger, RenderConfig renderConfig, MiscConfig miscConfig) {
+    public PlayerPortalView(@Assisted Player player, @Assisted IPortal viewedPortal, ViewFactory viewFactory, Logger logger, RenderConfig renderConfig, MiscConfig miscConfig,
+                            BlockUpdateFinisher blockUpdateFinisher) {
         this.player = player;
         this.logger = logger;
         this.renderConfig = renderConfig;
+        this.blockUpdateFinisher = blockUpdateFinisher;
 
         this.blockView = viewFactory.createBlockView(player, viewedPortal);
         if(!miscConfig.isEntitySupportEnabled()) {
@@ -57,9 +62,11 @@ public class PlayerPortalView implements IPlayerPortalView  {
         boolean moved = previousPosition == null || !player.getLocation().toVector().equals(previousPosition.toVector());
 
         // We refresh the block view every N ticks so that if the client doesn't change some of the blocks, they will be resent
-        if(ticksSinceStarted % renderConfig.getBlockStateRefreshInterval() == 0) {
+        // Refreshes are less frequent if the view update threads are falling behind
+        if(ticksUntilRefresh <= 0) {
             blockView.update(true);
-        }   else if(moved) { // Otherwise, an update only happens when we move to save on performance
+            ticksUntilRefresh = (int) Math.ceil(renderConfig.getBlockStateRefreshInterval() * blockUpdateFinisher.getRefreshStretch());
+        }   else if(moved || blockView.hasPendingChanges()) { // Otherwise, an update only happens when we move, or have changes still to send, to save on performance
             blockView.update(false);
         }
 
@@ -68,7 +75,7 @@ public class PlayerPortalView implements IPlayerPortalView  {
             entityView.update();
         }
 
-        ticksSinceStarted++;
+        ticksUntilRefresh--;
         previousPosition = player.getLocation();
     }
 
@@ -0,0 +1,68 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the number of portal block changes sent to each player per tick, shared between all of the portals that they're viewing.
+ * Each player's allowance refills at {@link RenderConfig#getMaxBlockChangesPerTick()} changes per tick, since views are updated on other threads and not necessarily once per tick.
+ * Thread safe.
+ */
+@Singleton
+public class BlockChangeBudget {
+    private static final double NANOS_PER_TICK = 50_000_000.0;
+
+    private static class Allowance {
+        double available;
+        long lastRefill = System.nanoTime();
+
+        Allowance(double available) {
+            this.available = available;
+        }
+    }
+
+    private final RenderConfig renderConfig;
+    private final Map<UUID, Allowance> allowances = new ConcurrentHashMap<>();
+
+    @Inject
+    public BlockChangeBudget(RenderConfig renderConfig) {
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * Takes as many changes as possible, up to <code>requested</code>, from the player's allowance.
+     * @param playerId ID of the player that the changes will be sent to
+     * @param requested The number of changes that the view would like to send
+     * @return The number of changes that may be sent now. The rest should be sent in a later update
+     */
+    public int take(@NotNull UUID playerId, int requested) {
+        int perTick = renderConfig.getMaxBlockChangesPerTick();
+        if(perTick <= 0 || requested == 0) {return requested;}
+
+        Allowance allowance = allowances.computeIfAbsent(playerId, id -> new Allowance(perTick));
+        synchronized(allowance) {
+            // Unused changes only carry over for a tick, otherwise an idle player would build up a burst
+            long now = System.nanoTime();
+            allowance.available = Math.min(perTick, allowance.available + (now - allowance.lastRefill) / NANOS_PER_TICK * perTick);
+            allowance.lastRefill = now;
+
+            int allowed = Math.min(requested, (int) allowance.available);
+            allowance.available -= allowed;
+            return allowed;
+        }
+    }
+
+    /**
+     * Discards the allowance of a player who has logged out.
+     * @param playerId ID of the player
+     */
+    public void remove(@NotNull UUID playerId) {
+        allowances.remove(playerId);
+    }
+}
@@ -0,0 +1,222 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.wrappers.BlockPosition;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.BetterPortals;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Finds when a player's client may no longer be showing the blocks sent by their portal views, so that only the affected chunk sections are resent.
+ * This happens when the player interacts with a block, since the client predicts the result, and when the server sends its own chunk or block change packets.
+ * Our own block change packets are sent through {@link BlockDesyncTracker#sendOwnPacket(Player, PacketContainer)}, so that they can be told apart from the server's.
+ * Also keeps track of the block views of each player, which are registered whether or not desyncs are being tracked.
+ */
+@Singleton
+public class BlockDesyncTracker implements Listener {
+    private final RenderConfig renderConfig;
+    private final Logger logger;
+
+    private final Map<UUID, Set<PlayerBlockView>> viewsByPlayer = new ConcurrentHashMap<>();
+    // The handles of the packets we sent to each player which haven't reached our listener yet, and how many times each was sent
+    // Compared by identity, since packets from the cache are shared between players and may be sent again before the last send is processed
+    private final Map<UUID, Map<Object, Integer>> ownPackets = new ConcurrentHashMap<>();
+    // Events of our own packets, found before other listeners could replace the packet. Weak so that events which never reach the monitor listener aren't kept
+    private final Set<PacketEvent> ownPacketEvents = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    @Inject
+    public BlockDesyncTracker(BetterPortals pl, IEventRegistrar eventRegistrar, RenderConfig renderConfig, Logger logger) {
+        this.renderConfig = renderConfig;
+        this.logger = logger;
+
+        eventRegistrar.register(this);
+        // Our packets are recognised before other plugins' listeners run, since they may replace the packet with one that has a different handle
+        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(pl, ListenerPriority.LOWEST, PacketType.Play.Server.MULTI_BLOCK_CHANGE) {
+            @Override
+            public void onPacketSending(PacketEvent event) {
+                onPacketSendingStarted(event);
+            }
+        });
+        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(pl, ListenerPriority.MONITOR,
+                PacketType.Play.Server.BLOCK_CHANGE, PacketType.Play.Server.MULTI_BLOCK_CHANGE, PacketType.Play.Server.MAP_CHUNK) {
+            @Override
+            public void onPacketSending(PacketEvent event) {
+                onServerPacket(event);
+            }
+        });
+    }
+
+    /**
+     * Starts sending desyncs of <code>player</code>'s client to <code>view</code>.
+     * @param player The player viewing the portal
+     * @param view The view to send desyncs to
+     */
+    public void register(@NotNull Player player, @NotNull PlayerBlockView view) {
+        viewsByPlayer.computeIfAbsent(player.getUniqueId(), id -> ConcurrentHashMap.newKeySet()).add(view);
+    }
+
+    /**
+     * Stops sending desyncs to <code>view</code>.
+     * @param player The player viewing the portal
+     * @param view The view to stop sending desyncs to
+     */
+    public void unregister(@NotNull Player player, @NotNull PlayerBlockView view) {
+        viewsByPlayer.computeIfPresent(player.getUniqueId(), (id, views) -> {
+            views.remove(view);
+            return views.isEmpty() ? null : views;
+        });
+    }
+
+    /**
+     * @param player The player to find the views of
+     * @return The block views of each portal that <code>player</code> is viewing
+     */
+    public @NotNull Collection<PlayerBlockView> getViews(@NotNull Player player) {
+        Set<PlayerBlockView> views = viewsByPlayer.get(player.getUniqueId());
+        return views == null ? Collections.emptySet() : views;
+    }
+
+    /**
+     * Sends <code>packet</code> to <code>player</code>, without it counting as a desync.
+     * Packet listeners are still called, so other plugins can see our block changes.
+     * @param player The player to send the packet to
+     * @param packet The block change packet to send
+     */
+    public void sendOwnPacket(@NotNull Player player, @NotNull PacketContainer packet) {
+        Object handle = packet.getHandle();
+        Map<Object, Integer> playerPackets = ownPackets.computeIfAbsent(player.getUniqueId(), id -> new IdentityHashMap<>());
+        synchronized(playerPackets) {
+            playerPackets.merge(handle, 1, Integer::sum);
+        }
+
+        try {
+            ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
+        }   catch(RuntimeException ex) {
+            removeOwnPacket(player, handle);
+            throw ex;
+        }
+    }
+
+    // Returns whether the packet was sent by us, and stops expecting it if so
+    private boolean removeOwnPacket(Player player, Object handle) {
+        Map<Object, Integer> playerPackets = ownPackets.get(player.getUniqueId());
+        if(playerPackets == null) {return false;}
+
+        synchronized(playerPackets) {
+            Integer remaining = playerPackets.get(handle);
+            if(remaining == null) {return false;}
+
+            if(remaining == 1) {
+                playerPackets.remove(handle);
+            }   else    {
+                playerPackets.put(handle, remaining - 1);
+            }
+            return true;
+        }
+    }
+
+    private void forEachView(Player player, Consumer<PlayerBlockView> action) {
+        if(!renderConfig.isSelectiveBlockRefresh()) {return;}
+
+        // Views of portals in a world that the player just left would otherwise resend their blocks into the new world
+        World world = player.getWorld();
+        for(PlayerBlockView view : getViews(player)) {
+            if(view.isInWorld(world)) {
+                action.accept(view);
+            }
+        }
+    }
+
+    private void onBlockDesync(Player player, Block block) {
+        forEachView(player, view -> view.onSectionDesync(block.getX() >> 4, block.getY() >> 4, block.getZ() >> 4));
+    }
+
+    // Called on the thread sending the packet before other listeners, so the packet is still the one that was sent
+    private void onPacketSendingStarted(PacketEvent event) {
+        if(event.isPlayerTemporary()) {return;}
+
+        // Checked regardless of cancellation, since cancelled packets still need to stop being expected
+        if(removeOwnPacket(event.getPlayer(), event.getPacket().getHandle())) {
+            ownPacketEvents.add(event);
+        }
+    }
+
+    // Called on the thread sending the packet, which may not be the main thread
+    private void onServerPacket(PacketEvent event) {
+        // The same event is given to every listener, even if the packet was replaced
+        if(ownPacketEvents.remove(event)) {return;}
+        if(event.isCancelled() || event.isPlayerTemporary()) {return;}
+
+        PacketContainer packet = event.getPacket();
+
+        PacketType type = event.getPacketType();
+        if(type == PacketType.Play.Server.MAP_CHUNK) {
+            // The interceptor writes the views into the chunk instead, and sends the desyncs itself if it can't
+            if(renderConfig.isChunkViewBaking()) {return;}
+
+            int chunkX = packet.getIntegers().read(0);
+            int chunkZ = packet.getIntegers().read(1);
+            logger.finest("Chunk %d, %d resent to player", chunkX, chunkZ);
+            forEachView(event.getPlayer(), view -> view.onColumnDesync(chunkX, chunkZ));
+        }   else if(type == PacketType.Play.Server.BLOCK_CHANGE) {
+            BlockPosition position = packet.getBlockPositionModifier().read(0);
+            forEachView(event.getPlayer(), view -> view.onSectionDesync(position.getX() >> 4, position.getY() >> 4, position.getZ() >> 4));
+        }   else    {
+            BlockPosition section = packet.getSectionPositions().read(0);
+            forEachView(event.getPlayer(), view -> view.onSectionDesync(section.getX(), section.getY(), section.getZ()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        // Packets sent just before the player left may never reach the listener
+        ownPackets.remove(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerInteract(PlayerInteractEvent event) {
+        Block block = event.getClickedBlock();
+        if(block == null) {return;}
+
+        onBlockDesync(event.getPlayer(), block);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onBlockBreak(BlockBreakEvent event) {
+        onBlockDesync(event.getPlayer(), event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        onBlockDesync(event.getPlayer(), event.getBlock());
+    }
+}
@@ -0,0 +1,289 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.ViewableCells;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
+import com.lauriethefish.betterportals.bukkit.math.FrustumVisibilityChecker;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Finds which of the viewable states of a portal are visible to one player.
+ * After classifying every state, the distance of each cell and state from the edge of the frustum is stored.
+ * When the eye moves slightly, only the cells and states close enough to the edge that their visibility might have changed are checked again.
+ * Not thread safe.
+ */
+public class BlockVisibilityClassifier {
+    // Past this distance from where every state was last classified, most states would need checking again anyway
+    private static final double MAX_INCREMENTAL_DISTANCE = 1.0;
+    // Leaves room for rounding, and for the margins being stored as floats
+    private static final double MARGIN_SLACK = 0.001;
+
+    private static final byte CELL_HIDDEN = 0;
+    private static final byte CELL_VISIBLE = 1;
+    private static final byte CELL_PARTIAL = 2;
+
+    // Whether each viewable state is currently visible, and the states that this is for
+    private boolean[] visibleStates = new boolean[0];
+    private ViewableStates currentStates = null;
+    /**
+     * The viewable indices of the states which changed visibility during the last incremental classification
+     */
+    @Getter private final IntList changed = new IntList();
+
+    // The below values are from the last time that every state was classified
+    private ViewableStates lastStates = null;
+    private double lastEyeX;
+    private double lastEyeY;
+    private double lastEyeZ;
+    private double lastEyeDistance;
+    private boolean lastEdgeCasesPossible;
+
+    private boolean[] lastVisibleStates = new boolean[0];
+    private float[] stateMargins = new float[0];
+    private float[] stateSlopes = new float[0];
+
+    private byte[] cellResults = new byte[0];
+    private float[] cellMargins = new float[0];
+    private float[] cellSlopes = new float[0];
+    // Whether the states in each cell may differ from the last full classification, since they have been checked since
+    private boolean[] cellsChecked = new boolean[0];
+
+    // Movement of the eye since the last full classification
+    private double movedAlongNormal;
+    private double movedAlongWindow;
+    private double movedTotal;
+
+    /**
+     * Finds which of <code>viewableStates</code> are visible through the portal.
+     * @param checker Checker for the current eye position
+     * @param viewableStates States to classify
+     * @return true if every state was classified, false if only the states in {@link BlockVisibilityClassifier#getChanged()} changed visibility
+     */
+    public boolean classify(@NotNull FrustumVisibilityChecker checker, @NotNull ViewableStates viewableStates) {
+        changed.clear();
+
+        if(!canClassifyIncrementally(checker, viewableStates)) {
+            classifyAll(checker, viewableStates);
+            currentStates = viewableStates;
+            return true;
+        }
+
+        PackedBlockStates packedStates = viewableStates.getBlockStates();
+        ViewableCells cells = viewableStates.getCells();
+        for(int cell = 0; cell < cells.getCellCount(); cell++) {
+            if(cellResults[cell] != CELL_PARTIAL) {
+                if(needsChecking(cellMargins[cell], cellSlopes[cell])) {
+                    checkCell(checker, viewableStates, packedStates, cells, cell, true);
+                    cellsChecked[cell] = true;
+                }   else if(cellsChecked[cell]) {
+                    // The eye has moved back, so the states are the same as in the last full classification
+                    restoreCell(cells, cell, cellResults[cell] == CELL_VISIBLE);
+                    cellsChecked[cell] = false;
+                }
+                continue;
+            }
+
+            for(int i = cells.getCellStart(cell); i < cells.getCellEnd(cell); i++) {
+                int viewableIndex = cells.getViewableIndex(i);
+                boolean visible = needsChecking(stateMargins[viewableIndex], stateSlopes[viewableIndex])
+                        ? checkState(checker, viewableStates, packedStates, viewableIndex)
+                        : lastVisibleStates[viewableIndex];
+
+                setVisible(viewableIndex, visible, true);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Uses visibility found elsewhere, for instance by another view, instead of classifying the states.
+     * Since the margins don't match the new visibility, the next classification checks every state.
+     * @param viewableStates The states that the result is for
+     * @param result Whether each of the states is visible
+     * @return true if every state changed, false if only the states in {@link BlockVisibilityClassifier#getChanged()} changed visibility
+     */
+    public boolean apply(@NotNull ViewableStates viewableStates, @NotNull boolean[] result) {
+        changed.clear();
+        lastStates = null;
+
+        int viewableCount = viewableStates.size();
+        boolean allChanged = viewableStates != currentStates;
+        if(visibleStates.length < viewableCount) {
+            // The margins are resized too, so that the arrays stay the same length for the next full classification
+            visibleStates = new boolean[viewableCount];
+            lastVisibleStates = new boolean[viewableCount];
+            stateMargins = new float[viewableCount];
+            stateSlopes = new float[viewableCount];
+        }
+
+        for(int i = 0; i < viewableCount; i++) {
+            setVisible(i, result[i], !allChanged);
+        }
+
+        currentStates = viewableStates;
+        return allChanged;
+    }
+
+    /**
+     * @param viewableCount The number of viewable states
+     * @return A copy of the visibility from the last classification, which can be shared with other views
+     */
+    public @NotNull boolean[] copyVisibleStates(int viewableCount) {
+        return Arrays.copyOf(visibleStates, viewableCount);
+    }
+
+    /**
+     * @param viewableIndex Index of the state in the {@link ViewableStates}
+     * @return Whether the state was visible in the last classification
+     */
+    public boolean isVisible(int viewableIndex) {
+        return visibleStates[viewableIndex];
+    }
+
+    /**
+     * Makes the next classification check every state, for instance since the player's block states were reset.
+     */
+    public void invalidate() {
+        lastStates = null;
+        currentStates = null;
+    }
+
+    private boolean canClassifyIncrementally(FrustumVisibilityChecker checker, ViewableStates viewableStates) {
+        // The ray cast's edge cases can't be predicted from the margins
+        if(viewableStates != lastStates || lastEdgeCasesPossible || checker.isEdgeCasesPossible()) {return false;}
+
+        double movedX = checker.getEyeX() - lastEyeX;
+        double movedY = checker.getEyeY() - lastEyeY;
+        double movedZ = checker.getEyeZ() - lastEyeZ;
+        movedTotal = Math.sqrt(movedX * movedX + movedY * movedY + movedZ * movedZ);
+
+        int normalAxis = checker.getNormalAxis();
+        movedAlongNormal = Math.abs(normalAxis == 0 ? movedX : normalAxis == 1 ? movedY : movedZ);
+        movedAlongWindow = Math.max(
+                normalAxis == 0 ? 0.0 : Math.abs(movedX),
+                Math.max(normalAxis == 1 ? 0.0 : Math.abs(movedY), normalAxis == 2 ? 0.0 : Math.abs(movedZ))
+        );
+
+        // Moving at most half of the way to the plane keeps the eye on the same side, and limits how much the slopes can increase
+        return movedTotal <= MAX_INCREMENTAL_DISTANCE && movedAlongNormal <= lastEyeDistance / 2.0;
+    }
+
+    // The point where the ray crosses the plane moves at most the distance moved along the window, plus the distance moved along the normal multiplied by the slope
+    // Since the eye has moved at most half of the way to the plane, the slope can have at most doubled, plus the distance moved along the window
+    private boolean needsChecking(float margin, float slope) {
+        if(margin == Float.POSITIVE_INFINITY) {return false;}
+
+        double maxMovement = movedAlongWindow + 2.0 * movedAlongNormal * (slope + movedTotal / lastEyeDistance);
+        return !(margin > maxMovement + MARGIN_SLACK);
+    }
+
+    private void classifyAll(FrustumVisibilityChecker checker, ViewableStates viewableStates) {
+        int viewableCount = viewableStates.size();
+        if(visibleStates.length < viewableCount) {
+            visibleStates = new boolean[viewableCount];
+            lastVisibleStates = new boolean[viewableCount];
+            stateMargins = new float[viewableCount];
+            stateSlopes = new float[viewableCount];
+        }
+
+        ViewableCells cells = viewableStates.getCells();
+        int cellCount = cells.getCellCount();
+        if(cellResults.length < cellCount) {
+            cellResults = new byte[cellCount];
+            cellMargins = new float[cellCount];
+            cellSlopes = new float[cellCount];
+            cellsChecked = new boolean[cellCount];
+        }
+
+        PackedBlockStates packedStates = viewableStates.getBlockStates();
+        for(int cell = 0; cell < cellCount; cell++) {
+            checkCell(checker, viewableStates, packedStates, cells, cell, false);
+            cellsChecked[cell] = false;
+        }
+
+        lastStates = viewableStates;
+        lastEyeX = checker.getEyeX();
+        lastEyeY = checker.getEyeY();
+        lastEyeZ = checker.getEyeZ();
+        lastEyeDistance = checker.getEyeDistance();
+        lastEdgeCasesPossible = checker.isEdgeCasesPossible();
+    }
+
+    // Checks the cell as a whole, then each of its states if it is partially visible
+    // If incremental, the states of the last full classification are kept, and changes are recorded
+    private void checkCell(FrustumVisibilityChecker checker, ViewableStates viewableStates, PackedBlockStates packedStates, ViewableCells cells, int cell, boolean incremental) {
+        double minX = cells.getMin(cell, 0) + 0.5;
+        double minY = cells.getMin(cell, 1) + 0.5;
+        double minZ = cells.getMin(cell, 2) + 0.5;
+        double maxX = cells.getMax(cell, 0) + 0.5;
+        double maxY = cells.getMax(cell, 1) + 0.5;
+        double maxZ = cells.getMax(cell, 2) + 0.5;
+
+        int result = checker.checkBox(minX, minY, minZ, maxX, maxY, maxZ);
+        int cellEnd = cells.getCellEnd(cell);
+        if(result != FrustumVisibilityChecker.BOX_PARTIAL) {
+            boolean visible = result == FrustumVisibilityChecker.BOX_VISIBLE;
+            for(int i = cells.getCellStart(cell); i < cellEnd; i++) {
+                setVisible(cells.getViewableIndex(i), visible, incremental);
+            }
+
+            if(!incremental) {
+                cellResults[cell] = visible ? CELL_VISIBLE : CELL_HIDDEN;
+                cellMargins[cell] = (float) checker.getBoxMargin(minX, minY, minZ, maxX, maxY, maxZ, visible);
+                cellSlopes[cell] = (float) checker.getBoxSlope(minX, minY, minZ, maxX, maxY, maxZ);
+            }
+            return;
+        }
+
+        if(!incremental) {
+            cellResults[cell] = CELL_PARTIAL;
+        }
+
+        IntVector originPos = packedStates.getOriginPos();
+        for(int i = cells.getCellStart(cell); i < cellEnd; i++) {
+            int viewableIndex = cells.getViewableIndex(i);
+            boolean visible = checkState(checker, viewableStates, packedStates, viewableIndex);
+            setVisible(viewableIndex, visible, incremental);
+
+            if(!incremental) {
+                int mapIndex = viewableStates.getMapIndex(viewableIndex);
+                double x = originPos.getX() + packedStates.getRelativeX(mapIndex) + 0.5;
+                double y = originPos.getY() + packedStates.getRelativeY(mapIndex) + 0.5;
+                double z = originPos.getZ() + packedStates.getRelativeZ(mapIndex) + 0.5;
+
+                lastVisibleStates[viewableIndex] = visible;
+                stateMargins[viewableIndex] = (float) checker.getMargin(x, y, z);
+                stateSlopes[viewableIndex] = (float) checker.getSlope(x, y, z);
+            }
+        }
+    }
+
+    private boolean checkState(FrustumVisibilityChecker checker, ViewableStates viewableStates, PackedBlockStates packedStates, int viewableIndex) {
+        IntVector originPos = packedStates.getOriginPos();
+        int mapIndex = viewableStates.getMapIndex(viewableIndex);
+        return checker.isBlockVisible(
+                originPos.getX() + packedStates.getRelativeX(mapIndex),
+                originPos.getY() + packedStates.getRelativeY(mapIndex),
+                originPos.getZ() + packedStates.getRelativeZ(mapIndex)
+        );
+    }
+
+    private void restoreCell(ViewableCells cells, int cell, boolean visible) {
+        for(int i = cells.getCellStart(cell); i < cells.getCellEnd(cell); i++) {
+            setVisible(cells.getViewableIndex(i), visible, true);
+        }
+    }
+
+    private void setVisible(int viewableIndex, boolean visible, boolean recordChanges) {
+        if(recordChanges && visibleStates[viewableIndex] != visible) {
+            changed.add(viewableIndex);
+        }
+        visibleStates[viewableIndex] = visible;
+    }
+}
@@ -0,0 +1,160 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.comphenix.protocol.wrappers.WrappedLevelChunkData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.BetterPortals;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.nms.BlockStateIdUtil;
+import com.lauriethefish.betterportals.bukkit.nms.ChunkSectionWriter;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the blocks shown through each portal into chunk packets before they're sent to the viewing player, for instance after joining, teleporting or respawning.
+ * Otherwise, the player would see the chunk without the portal view until the blocks are resent with block change packets.
+ * This depends on the network format of chunks, so if anything goes wrong it is disabled and the views' sections are resent after the chunk instead.
+ */
+@Singleton
+public class ChunkViewInterceptor {
+    private final RenderConfig renderConfig;
+    private final BlockDesyncTracker desyncTracker;
+    private final Logger logger;
+
+    private volatile boolean failed = false;
+    // Global IDs of the air states, which don't count towards the block count of each section
+    private volatile int[] airIds = null;
+
+    @Inject
+    public ChunkViewInterceptor(BetterPortals pl, RenderConfig renderConfig, BlockDesyncTracker desyncTracker, Logger logger) {
+        this.renderConfig = renderConfig;
+        this.desyncTracker = desyncTracker;
+        this.logger = logger;
+
+        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(pl, ListenerPriority.HIGH, PacketType.Play.Server.MAP_CHUNK) {
+            @Override
+            public void onPacketSending(PacketEvent event) {
+                onChunkSending(event);
+            }
+        });
+    }
+
+    private boolean isAir(int globalId) {
+        for(int airId : airIds) {
+            if(airId == globalId) {return true;}
+        }
+        return false;
+    }
+
+    // Called on the thread sending the chunk, which may not be the main thread
+    private void onChunkSending(PacketEvent event) {
+        if(!renderConfig.isChunkViewBaking() || event.isCancelled() || event.isPlayerTemporary()) {return;}
+
+        Player player = event.getPlayer();
+        // Chunk packets are always for the world the player is in, so views of portals in the world they just left are skipped
+        World world = player.getWorld();
+        List<PlayerBlockView> views = new ArrayList<>();
+        for(PlayerBlockView view : desyncTracker.getViews(player)) {
+            if(view.isInWorld(world)) {
+                views.add(view);
+            }
+        }
+        if(views.isEmpty()) {return;}
+
+        PacketContainer packet = event.getPacket();
+        int chunkX = packet.getIntegers().read(0);
+        int chunkZ = packet.getIntegers().read(1);
+
+        List<PlayerBlockView> missedViews = new ArrayList<>();
+        if(failed) {
+            missedViews.addAll(views);
+        }   else    {
+            try {
+                writeViews(packet, world, chunkX, chunkZ, views, missedViews);
+            }   catch(RuntimeException | LinkageError ex) {
+                failed = true;
+                logger.warning("Failed to write portal views into chunk packets, so they will be resent after each chunk instead: %s: %s", ex.getClass().getName(), ex.getMessage());
+                ex.printStackTrace();
+
+                missedViews.clear();
+                missedViews.addAll(views);
+            }
+        }
+
+        // The views which couldn't be written into the chunk resend their sections once it arrives instead
+        for(PlayerBlockView view : missedViews) {
+            view.onColumnDesync(chunkX, chunkZ);
+        }
+    }
+
+    private void writeViews(PacketContainer packet, World world, int chunkX, int chunkZ, Collection<PlayerBlockView> views, List<PlayerBlockView> missedViews) {
+        if(airIds == null) {
+            airIds = new int[]{
+                    BlockStateIdUtil.getGlobalId(WrappedBlockData.createData(Material.AIR)),
+                    BlockStateIdUtil.getGlobalId(WrappedBlockData.createData(Material.CAVE_AIR)),
+                    BlockStateIdUtil.getGlobalId(WrappedBlockData.createData(Material.VOID_AIR))
+            };
+        }
+
+        int minSectionY = HeightUtil.getMinHeight(world) >> 4;
+        int sectionCount = (HeightUtil.getMaxHeight(world) >> 4) - minSectionY;
+        int[][] changes = new int[sectionCount][];
+        Map<WrappedBlockData, Integer> globalIds = new IdentityHashMap<>();
+
+        boolean anyChanges = false;
+        for(PlayerBlockView view : views) {
+            boolean collected = view.collectShownStates(chunkX, chunkZ, (x, y, z, data) -> {
+                int section = (y >> 4) - minSectionY;
+                if(section < 0 || section >= sectionCount) {return;}
+
+                int[] sectionChanges = changes[section];
+                if(sectionChanges == null) {
+                    sectionChanges = new int[4096];
+                    Arrays.fill(sectionChanges, -1);
+                    changes[section] = sectionChanges;
+                }
+                sectionChanges[(y & 0xF) << 8 | (z & 0xF) << 4 | (x & 0xF)] = globalIds.computeIfAbsent(data, BlockStateIdUtil::getGlobalId);
+            });
+
+            if(!collected) {
+                missedViews.add(view);
+            }
+        }
+
+        for(int[] sectionChanges : changes) {
+            anyChanges |= sectionChanges != null;
+        }
+        if(!anyChanges) {return;}
+
+        // Modern servers create a new chunk packet for each player, so it's safe to modify it in place
+        WrappedLevelChunkData.ChunkData chunkData = packet.getLevelChunkData().read(0);
+        byte[] newBuffer = ChunkSectionWriter.writeChanges(chunkData.getBuffer(), changes, this::isAir);
+        if(newBuffer == null) {
+            logger.finer("Unable to write portal views into chunk %d, %d", chunkX, chunkZ);
+            missedViews.clear();
+            missedViews.addAll(views);
+            return;
+        }
+
+        chunkData.setBuffer(newBuffer);
+        packet.getLevelChunkData().write(0, chunkData);
+        logger.finest("Wrote portal views into chunk %d, %d", chunkX, chunkZ);
+    }
+}
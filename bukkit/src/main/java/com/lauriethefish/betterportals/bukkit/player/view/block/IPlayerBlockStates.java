@@ -1,8 +1,9 @@
 package com.lauriethefish.betterportals.bukkit.player.view.block;
 
-import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import org.bukkit.entity.Player;
-import org.bukkit.util.Vector;
 
 // Implementors of this class must make sure that it is thread safe
 // Manages the current blocks that the player can see
@@ -12,11 +13,16 @@ public interface IPlayerBlockStates {
     void resetAndUpdate(int minChunkX, int maxChunkY);
 
     // Note: these methods just update the array, they won't actually send any packets
+    // Blocks are referred to by their map index, and the block states are used to find their position and origin data when resetting
     // Returns if the block was not viewable last tick, AKA whether or not an update packet is needed
-    boolean setViewable(Vector position, IViewableBlockInfo block);
+    boolean setViewable(PackedBlockStates blockStates, int mapIndex);
 
     // Returns if the block was viewable last tick, AKA whether or not an update packet is needed
-    boolean setNonViewable(Vector position, IViewableBlockInfo block);
+    boolean setNonViewable(PackedBlockStates blockStates, int mapIndex);
+
+    // Removes any viewed blocks that are no longer in the viewable states, since they have been retracted from the block map
+    // Returns the map indices of the removed blocks, which need to be reset to their origin data
+    IntList removeRetracted(ViewableStates viewableStates);
 
     interface Factory {
         IPlayerBlockStates create(Player player);
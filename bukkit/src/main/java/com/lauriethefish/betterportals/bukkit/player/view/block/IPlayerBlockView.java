@@ -4,4 +4,5 @@ public interface IPlayerBlockView {
     void update(boolean refresh); // If refresh is true, all blocks will be resent to the player regardless of if they've already seen the changes
     void onDeactivate(boolean shouldResetStates);
     void finishReset();
+    boolean hasPendingChanges(); // If true, some block changes were held back to stay within the player's budget, so another update is needed to send them
 }
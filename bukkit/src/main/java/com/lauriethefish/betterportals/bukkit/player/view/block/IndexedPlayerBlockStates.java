@@ -0,0 +1,104 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.bukkit.block.BlockStatePalette;
+import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Stores whether each block is viewed as a single bit, indexed by its map index.
+ * Unlike {@link PlayerBlockStates}, this doesn't need to allocate a position or hash it for each block on every update.
+ * Positions are only found when resetting the viewed blocks.
+ */
+public class IndexedPlayerBlockStates implements IPlayerBlockStates {
+    private final Player player;
+    private final IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory;
+    private final Logger logger;
+
+    // Set for the map index of each viewed block
+    private final BitSet viewedStates = new BitSet();
+    // All of the viewed states come from the same portal, so the latest block states are used to find their position and origin data when resetting
+    private PackedBlockStates blockStates;
+    // Origin data of each viewed block when it was made viewable, indexed by map index.
+    // Used when resetting if the latest block states don't have the origin data, e.g. after the block map was reset, so that the block is never left showing the destination
+    private WrappedBlockData[] viewedOriginData = new WrappedBlockData[0];
+
+    @Inject
+    public IndexedPlayerBlockStates(@Assisted Player player, IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, Logger logger) {
+        this.player = player;
+        this.multiBlockChangeManagerFactory = multiBlockChangeManagerFactory;
+        this.logger = logger;
+    }
+
+    @Override
+    public void resetAndUpdate(int minChunkY, int maxChunkY) {
+        if(viewedStates.isEmpty()) {
+            logger.finer("No states to reset!");
+            return;
+        }
+
+        // Use a MultiBlockChangeManager to actually send the changes
+        IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
+
+        logger.finest("Resetting %d blocks", viewedStates.cardinality());
+        for(int mapIndex = viewedStates.nextSetBit(0); mapIndex >= 0; mapIndex = viewedStates.nextSetBit(mapIndex + 1)) {
+            if(blockStates.getOriginId(mapIndex) != BlockStatePalette.NONE) {
+                multiBlockChangeManager.addChange(blockStates, mapIndex, false);
+            }   else if(viewedOriginData[mapIndex] != null) {
+                multiBlockChangeManager.addChange(blockStates.getOriginCenterPos(mapIndex), viewedOriginData[mapIndex]);
+            }   else    {
+                logger.finer("Unable to reset block with map index %d, its origin data is unknown", mapIndex);
+            }
+        }
+        multiBlockChangeManager.sendChanges();
+
+        viewedStates.clear();
+        Arrays.fill(viewedOriginData, null);
+    }
+
+    @Override
+    public boolean setViewable(PackedBlockStates blockStates, int mapIndex) {
+        this.blockStates = blockStates;
+        if(viewedStates.get(mapIndex)) {return false;}
+
+        viewedStates.set(mapIndex);
+        if(mapIndex >= viewedOriginData.length) {
+            viewedOriginData = Arrays.copyOf(viewedOriginData, Math.max(mapIndex + 1, viewedOriginData.length * 2));
+        }
+        viewedOriginData[mapIndex] = blockStates.getWrappedOriginData(mapIndex);
+        return true;
+    }
+
+    @Override
+    public boolean setNonViewable(PackedBlockStates blockStates, int mapIndex) {
+        this.blockStates = blockStates;
+        if(!viewedStates.get(mapIndex)) {return false;}
+
+        viewedStates.clear(mapIndex);
+        viewedOriginData[mapIndex] = null;
+        return true;
+    }
+
+    @Override
+    public IntList removeRetracted(ViewableStates viewableStates) {
+        IntList removed = new IntList();
+        for(int mapIndex = viewedStates.nextSetBit(0); mapIndex >= 0; mapIndex = viewedStates.nextSetBit(mapIndex + 1)) {
+            if(!viewableStates.contains(mapIndex)) {
+                viewedStates.clear(mapIndex);
+                viewedOriginData[mapIndex] = null;
+                removed.add(mapIndex);
+            }
+        }
+
+        return removed;
+    }
+}
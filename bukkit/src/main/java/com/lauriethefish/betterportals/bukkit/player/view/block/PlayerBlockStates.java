@@ -1,14 +1,18 @@
 package com.lauriethefish.betterportals.bukkit.player.view.block;
 
+import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
-import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 public class PlayerBlockStates implements IPlayerBlockStates {
@@ -16,7 +20,21 @@ public class PlayerBlockStates implements IPlayerBlockStates {
     private final IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory;
     private final Logger logger;
 
-    private final Map<Vector, IViewableBlockInfo> viewedStates = new HashMap<>();
+    private static class ViewedState {
+        final int mapIndex;
+        // Origin data when the block was made viewable, used when resetting if the latest block states don't have the origin data, e.g. after the block map was reset
+        final WrappedBlockData originData;
+
+        ViewedState(int mapIndex, WrappedBlockData originData) {
+            this.mapIndex = mapIndex;
+            this.originData = originData;
+        }
+    }
+
+    // Map index and origin data of each viewed position
+    private final Map<Vector, ViewedState> viewedStates = new HashMap<>();
+    // All of the viewed states come from the same portal, so the latest block states are used to find their origin data when resetting
+    private PackedBlockStates blockStates;
 
     @Inject
     public PlayerBlockStates(@Assisted Player player, IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, Logger logger) {
@@ -36,8 +54,18 @@ public class PlayerBlockStates implements IPlayerBlockStates {
         IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
 
         logger.finest("Resetting %d blocks", viewedStates.size());
-        for(Map.Entry<Vector, IViewableBlockInfo> entry : viewedStates.entrySet()) {
-            multiBlockChangeManager.addChangeOrigin(entry.getKey(), entry.getValue());
+        for(Map.Entry<Vector, ViewedState> entry : viewedStates.entrySet()) {
+            ViewedState viewedState = entry.getValue();
+            WrappedBlockData originData = blockStates.getWrappedOriginData(viewedState.mapIndex);
+            if(originData == null) {
+                originData = viewedState.originData;
+            }
+
+            if(originData != null) {
+                multiBlockChangeManager.addChange(entry.getKey(), originData);
+            }   else    {
+                logger.finer("Unable to reset block at %s, its origin data is unknown", entry.getKey());
+            }
         }
         multiBlockChangeManager.sendChanges();
 
@@ -45,12 +73,33 @@ public class PlayerBlockStates implements IPlayerBlockStates {
     }
 
     @Override
-    public boolean setViewable(Vector position, IViewableBlockInfo block) {
-        return viewedStates.put(position, block) == null;
+    public boolean setViewable(PackedBlockStates blockStates, int mapIndex) {
+        this.blockStates = blockStates;
+        Vector position = blockStates.getOriginCenterPos(mapIndex);
+        if(viewedStates.containsKey(position)) {return false;}
+
+        viewedStates.put(position, new ViewedState(mapIndex, blockStates.getWrappedOriginData(mapIndex)));
+        return true;
     }
 
     @Override
-    public boolean setNonViewable(Vector position, IViewableBlockInfo block) {
-        return viewedStates.remove(position, block);
+    public boolean setNonViewable(PackedBlockStates blockStates, int mapIndex) {
+        this.blockStates = blockStates;
+        return viewedStates.remove(blockStates.getOriginCenterPos(mapIndex)) != null;
+    }
+
+    @Override
+    public IntList removeRetracted(ViewableStates viewableStates) {
+        IntList removed = new IntList();
+        Iterator<ViewedState> iterator = viewedStates.values().iterator();
+        while(iterator.hasNext()) {
+            int mapIndex = iterator.next().mapIndex;
+            if(!viewableStates.contains(mapIndex)) {
+                iterator.remove();
+                removed.add(mapIndex);
+            }
+        }
+
+        return removed;
     }
 }
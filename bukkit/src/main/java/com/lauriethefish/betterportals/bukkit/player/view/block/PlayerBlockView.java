@@ -5,14 +5,18 @@ import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.block.DestinationStates;
 import com.lauriethefish.betterportals.bukkit.block.IBlockMap;
-import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
-import com.lauriethefish.betterportals.bukkit.math.PlaneIntersectionChecker;
+import com.lauriethefish.betterportals.bukkit.math.FrustumVisibilityChecker;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
+import com.lauriethefish.betterportals.bukkit.util.IntList;
 import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
@@ -20,13 +24,23 @@ import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class PlayerBlockView implements IPlayerBlockView   {
+    // Added to the priority of resends, so that they're sent after every actual change
+    private static final long RESEND_PRIORITY_OFFSET = 1L << 30;
+
     private final Player player;
     private final IPortal portal;
 
@@ -47,21 +61,70 @@ public class PlayerBlockView implements IPlayerBlockView   {
     // Used to avoid a situation where the portal is no longer viewable and the blocks were reset, then an async update comes in and resends them
     private volatile boolean didDeactivate = false;
 
+    // Retraction count of the last viewable states, used to find when blocks have been removed from the block map
+    private int lastRetractionCount = 0;
+
+    // Keeps the visibility of each state between updates, so that small movements only need to check the states near the edge of the view
+    private final BlockVisibilityClassifier visibilityClassifier = new BlockVisibilityClassifier();
+    private final SharedVisibilityCache sharedVisibilityCache;
+    // The grid cell of the eye in the last update, if sharing visibility
+    private IntVector lastEyeCell = null;
+    private ViewableStates lastEyeCellStates = null;
+
+    private final BlockChangeBudget blockChangeBudget;
+    // Indices of viewable states whose changes were held back by the budget, and need sending in a later update
+    private final IntList pendingChanges = new IntList();
+    private volatile boolean hasPendingChanges = false;
+
+    private final BlockDesyncTracker desyncTracker;
+    private final boolean selectiveRefresh;
+    // Keys of the sections that the client may no longer be showing the sent states in
+    private final Set<Long> desyncedSections = ConcurrentHashMap.newKeySet();
+    private final SectionChecksums sectionChecksums = new SectionChecksums();
+    // The viewable states that the visibility classifier and pending changes were last found for
+    private ViewableStates sentStates = null;
+    // Bounds of the chunk sections containing the portal's block map, used to ignore desyncs elsewhere
+    private final int minSectionX;
+    private final int minSectionY;
+    private final int minSectionZ;
+    private final int maxSectionX;
+    private final int maxSectionY;
+    private final int maxSectionZ;
+    private final World originWorld;
+
     @Inject
     public PlayerBlockView(@Assisted Player player, @Assisted IPortal portal,
                            IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, IPlayerBlockStates.Factory blockStatesFactory,
-                           Logger logger, BlockUpdateFinisher updateFinisher, RenderConfig renderConfig) {
+                           Logger logger, BlockUpdateFinisher updateFinisher, RenderConfig renderConfig,
+                           SharedVisibilityCache sharedVisibilityCache, BlockChangeBudget blockChangeBudget, BlockDesyncTracker desyncTracker) {
         this.player = player;
         this.portal = portal;
         this.multiBlockChangeManagerFactory = multiBlockChangeManagerFactory;
         this.blockStates = blockStatesFactory.create(player);
         this.logger = logger;
         this.updateFinisher = updateFinisher;
+        this.sharedVisibilityCache = sharedVisibilityCache;
+        this.blockChangeBudget = blockChangeBudget;
+        this.desyncTracker = desyncTracker;
+        this.selectiveRefresh = renderConfig.isSelectiveBlockRefresh();
         this.shouldHidePortalBlocks = portal.isNetherPortal() && renderConfig.isPortalBlocksHidden();
 
-        World viewWorld = player.getWorld();
-        minChunkY = HeightUtil.getMinHeight(viewWorld) >> 4;
-        maxChunkY = HeightUtil.getMaxHeight(viewWorld) >> 4;
+        // The blocks are shown in the portal's origin world, which the player may have already left
+        originWorld = portal.getOriginPos().getWorld();
+        minChunkY = HeightUtil.getMinHeight(originWorld) >> 4;
+        maxChunkY = HeightUtil.getMaxHeight(originWorld) >> 4;
+
+        IntVector originPos = new IntVector(portal.getOriginPos().getVector());
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+        minSectionX = (originPos.getX() - maxXZ) >> 4;
+        minSectionY = (originPos.getY() - maxY) >> 4;
+        minSectionZ = (originPos.getZ() - maxXZ) >> 4;
+        maxSectionX = (originPos.getX() + maxXZ) >> 4;
+        maxSectionY = (originPos.getY() + maxY) >> 4;
+        maxSectionZ = (originPos.getZ() + maxXZ) >> 4;
+
+        desyncTracker.register(player, this);
     }
 
     // Called whenever the player moves
@@ -80,15 +143,121 @@ public class PlayerBlockView implements IPlayerBlockView   {
         statesLock.lock();
         try {
             blockStates.resetAndUpdate(minChunkY, maxChunkY);
+            visibilityClassifier.invalidate();
+            lastEyeCell = null;
+            onStatesReset();
         }   finally {
             statesLock.unlock();
         }
     }
 
+    @Override
+    public boolean hasPendingChanges() {
+        return hasPendingChanges || !desyncedSections.isEmpty();
+    }
+
+    /**
+     * Called when the client may no longer be showing the sent states in a chunk section.
+     * The visible states in the section are resent in the next update.
+     * @param sectionX X coordinate of the section
+     * @param sectionY Y coordinate of the section
+     * @param sectionZ Z coordinate of the section
+     */
+    public void onSectionDesync(int sectionX, int sectionY, int sectionZ) {
+        if(!selectiveRefresh) {return;} // Desyncs are fixed by the regular refreshes instead
+        if(sectionX < minSectionX || sectionX > maxSectionX || sectionZ < minSectionZ || sectionZ > maxSectionZ) {return;}
+        if(sectionY < minSectionY || sectionY > maxSectionY) {return;}
+
+        desyncedSections.add(SectionChecksums.getSectionKey(sectionX, sectionY, sectionZ));
+    }
+
+    /**
+     * Receives the states shown to the player in a chunk.
+     */
+    public interface ShownStateConsumer {
+        void accept(int x, int y, int z, @NotNull WrappedBlockData data);
+    }
+
+    /**
+     * Views stay registered until the next main update after the player changes world, so chunks and block changes from other worlds must be skipped.
+     * @param world The world to check
+     * @return Whether the blocks of this view are shown in <code>world</code>
+     */
+    public boolean isInWorld(@NotNull World world) {
+        return world.equals(originWorld);
+    }
+
+    /**
+     * Finds the states currently shown to the player in a chunk, so that they can be written into the chunk before it is sent.
+     * The chunk must be in the portal's origin world, see {@link PlayerBlockView#isInWorld(World)}.
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @param consumer Called with the absolute position and data of each shown state in the chunk
+     * @return False if the states couldn't be found without waiting for an update to finish
+     */
+    public boolean collectShownStates(int chunkX, int chunkZ, @NotNull ShownStateConsumer consumer) {
+        if(chunkX < minSectionX || chunkX > maxSectionX || chunkZ < minSectionZ || chunkZ > maxSectionZ) {return true;}
+        // This is called while sending the chunk, so we can't wait for an update to finish
+        if(!statesLock.tryLock()) {return false;}
+
+        try {
+            ViewableStates viewableStates = sentStates;
+            if(viewableStates == null) {return true;}
+
+            // Changes held back by the budget haven't been shown yet
+            BitSet pending = new BitSet();
+            for(int n = 0; n < pendingChanges.size(); n++) {
+                pending.set(pendingChanges.get(n));
+            }
+
+            PackedBlockStates packedStates = viewableStates.getBlockStates();
+            DestinationStates destinationStates = packedStates.getDestinationStates();
+            IntVector originPos = packedStates.getOriginPos();
+            for(int i = 0; i < viewableStates.size(); i++) {
+                if(visibilityClassifier.isVisible(i) == pending.get(i)) {continue;}
+
+                int mapIndex = viewableStates.getMapIndex(i);
+                int x = originPos.getX() + packedStates.getRelativeX(mapIndex);
+                int z = originPos.getZ() + packedStates.getRelativeZ(mapIndex);
+                if(x >> 4 != chunkX || z >> 4 != chunkZ) {continue;}
+
+                WrappedBlockData renderedData = destinationStates.getWrappedRenderedData(packedStates.getRenderedDestId(mapIndex));
+                if(renderedData != null) {
+                    consumer.accept(x, originPos.getY() + packedStates.getRelativeY(mapIndex), z, renderedData);
+                }
+            }
+            return true;
+        }   finally {
+            statesLock.unlock();
+        }
+    }
+
+    /**
+     * Called when a whole chunk is sent to the client again, which replaces every sent state in the chunk.
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     */
+    public void onColumnDesync(int chunkX, int chunkZ) {
+        for(int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+            onSectionDesync(chunkX, sectionY, chunkZ);
+        }
+    }
+
+    // Changes that were held back are cancelled by a reset, since the player is sent the origin states instead
+    // Must be called with the states lock held
+    private void onStatesReset() {
+        sentStates = null;
+        pendingChanges.clear();
+        hasPendingChanges = false;
+        desyncedSections.clear();
+        sectionChecksums.clear();
+    }
+
     // Called whenever the player is no longer activating the portal
     @Override
     public void onDeactivate(boolean shouldResetStates) {
         didDeactivate = true;
+        desyncTracker.unregister(player, this);
         logger.finer("Player block view deactivating. Should reset states: %b", shouldResetStates);
 
         if(shouldResetStates) {
@@ -102,6 +271,9 @@ public class PlayerBlockView implements IPlayerBlockView   {
                 logger.finest("Resetting immediately!");
                 try {
                     blockStates.resetAndUpdate(minChunkY, maxChunkY);
+                    visibilityClassifier.invalidate();
+                    lastEyeCell = null;
+                    onStatesReset();
                 } finally {
                     statesLock.unlock();
                 }
@@ -124,48 +296,93 @@ public class PlayerBlockView implements IPlayerBlockView   {
             IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
             List<PacketContainer> queuedTileEntityUpdates = new ArrayList<>();
 
-            PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(playerPosition);
-
             IBlockMap viewableBlockArray = portal.getViewableBlocks();
-            List<IViewableBlockInfo> viewableStates = viewableBlockArray.getViewableStates();
+            ViewableStates viewableStates = viewableBlockArray.getViewableStates();
             if(viewableStates == null) {
                 return;
             }
+            PackedBlockStates packedStates = viewableStates.getBlockStates();
 
-            for (IViewableBlockInfo blockInfo : viewableStates) {
-                Vector position = blockInfo.getOriginPos().getCenterPos();
-
-                boolean visible = intersectionChecker.checkIfIntersects(position);
-
-                // If visible/non-visible, change to the new state
-                // However, don't bother resending the packet again if the block has already been changed
-                // (unless we're refreshing the sent blocks)
-                if (visible) {
-                    if (blockStates.setViewable(position, blockInfo) || refresh) {
-                        multiBlockChangeManager.addChangeDestination(position, blockInfo);
-
-                        PacketContainer nbtUpdatePacket = viewableBlockArray.getDestinationTileEntityPacket(blockInfo.getOriginPos());
-                        if (nbtUpdatePacket != null) {
-                            if (nbtUpdatePacket.getBlocks() != null)
-                                continue;
-                            queuedTileEntityUpdates.add(nbtUpdatePacket);
-                            logger.fine("Queueing tile state update at destination");
-                        }
+            // Blocks that were removed from the block map must be reset, since they won't be in the loop below
+            if(viewableStates.getRetractionCount() != lastRetractionCount) {
+                lastRetractionCount = viewableStates.getRetractionCount();
+
+                IntList retracted = blockStates.removeRetracted(viewableStates);
+                logger.finer("Resetting %d retracted blocks", retracted.size());
+                for(int i = 0; i < retracted.size(); i++) {
+                    int mapIndex = retracted.get(i);
+                    multiBlockChangeManager.addChange(packedStates, mapIndex, false);
+
+                    PacketContainer nbtUpdatePacket = viewableBlockArray.getOriginTileEntityPacket(packedStates.getOriginPos(mapIndex));
+                    if(nbtUpdatePacket != null) {
+                        queuedTileEntityUpdates.add(nbtUpdatePacket);
                     }
-                } else {
-                    if (blockStates.setNonViewable(position, blockInfo)) {
-                        multiBlockChangeManager.addChangeOrigin(position, blockInfo);
-
-                        PacketContainer nbtUpdatePacket = viewableBlockArray.getOriginTileEntityPacket(blockInfo.getOriginPos());
-                        if (nbtUpdatePacket != null) {
-                            if (nbtUpdatePacket.getBlocks() != null)
-                                continue;
-                            queuedTileEntityUpdates.add(nbtUpdatePacket);
-                            logger.fine("Queueing tile state update at origin");
-                        }
+                }
+            }
+
+            // If only some states were checked again, the others already have the right state, so only those which changed need updating
+            // When refreshing selectively, only the sections which may have changed are resent, rather than every visible state
+            boolean resendAll = refresh && !selectiveRefresh;
+            boolean updateAll = findVisibleStates(viewableStates) || resendAll;
+            IntList changes = new IntList();
+            if(updateAll) {
+                for(int i = 0; i < viewableStates.size(); i++) {
+                    findChange(viewableStates, i, resendAll, changes);
+                }
+            }   else    {
+                IntList changedStates = visibilityClassifier.getChanged();
+                for(int n = 0; n < changedStates.size(); n++) {
+                    findChange(viewableStates, changedStates.get(n), false, changes);
+                }
+
+                // Changes held back by the budget last update are sent once there's room, even if their visibility didn't change again
+                for(int n = 0; n < pendingChanges.size(); n++) {
+                    findChange(viewableStates, pendingChanges.get(n), false, changes);
+                }
+            }
+            pendingChanges.clear();
+
+            if(selectiveRefresh) {
+                findSectionResends(viewableStates, refresh, changes);
+            }
+
+            // If there are too many changes to send this tick, send those closest to the portal first and hold back the rest
+            int allowed = blockChangeBudget.take(player.getUniqueId(), changes.size());
+            int[] orderedChanges = allowed < changes.size() ? prioritise(viewableStates, changes) : changes.toArray();
+            if(allowed < changes.size()) {
+                logger.finer("Holding back %d block changes", changes.size() - allowed);
+            }
+
+            for(int n = 0; n < orderedChanges.length; n++) {
+                int change = orderedChanges[n];
+                int i = change < 0 ? ~change : change;
+                int mapIndex = viewableStates.getMapIndex(i);
+                boolean visible = visibilityClassifier.isVisible(i);
+
+                if(n >= allowed) {
+                    // Resends of states that didn't change can wait until the next refresh, unless the section is known to have desynced
+                    if(change >= 0) {
+                        undoChange(packedStates, mapIndex, visible);
+                        pendingChanges.add(i);
+                    }   else if(selectiveRefresh) {
+                        desyncedSections.add(SectionChecksums.getSectionKey(packedStates, mapIndex));
                     }
+                    continue;
+                }
+
+                multiBlockChangeManager.addChange(packedStates, mapIndex, visible);
+
+                IntVector originPos = packedStates.getOriginPos(mapIndex);
+                PacketContainer nbtUpdatePacket = visible ? viewableBlockArray.getDestinationTileEntityPacket(originPos) : viewableBlockArray.getOriginTileEntityPacket(originPos);
+                if (nbtUpdatePacket != null) {
+                    if (nbtUpdatePacket.getBlocks() != null)
+                        continue;
+                    queuedTileEntityUpdates.add(nbtUpdatePacket);
+                    logger.fine("Queueing tile state update at %s", visible ? "destination" : "origin");
                 }
             }
+            hasPendingChanges = !pendingChanges.isEmpty();
+            sentStates = viewableStates;
 
             // Show the player the changed states
             multiBlockChangeManager.sendChanges();
@@ -184,6 +401,121 @@ public class PlayerBlockView implements IPlayerBlockView   {
         }
     }
 
+    // If visible/non-visible, change to the new state
+    // However, don't bother resending the packet again if the block has already been changed (unless we're refreshing the sent blocks)
+    // Resends of states which didn't change are added as the complement of their index
+    private void findChange(ViewableStates viewableStates, int i, boolean refresh, IntList changes) {
+        PackedBlockStates packedStates = viewableStates.getBlockStates();
+        int mapIndex = viewableStates.getMapIndex(i);
+        if(visibilityClassifier.isVisible(i)) {
+            if(blockStates.setViewable(packedStates, mapIndex)) {
+                changes.add(i);
+            }   else if(refresh) {
+                changes.add(~i);
+            }
+        }   else if(blockStates.setNonViewable(packedStates, mapIndex)) {
+            changes.add(i);
+        }
+    }
+
+    // Adds resends of the visible states in sections which may have desynced, or whose states have changed since the last refresh
+    private void findSectionResends(ViewableStates viewableStates, boolean refresh, IntList changes) {
+        Set<Long> resendSections = new HashSet<>();
+        // The checksums are first found when the blocks are first sent, so that the first refresh only resends sections which changed since
+        if(!sectionChecksums.isInitialised()) {
+            sectionChecksums.update(viewableStates, visibilityClassifier);
+        }   else if(refresh) {
+            resendSections.addAll(sectionChecksums.update(viewableStates, visibilityClassifier));
+        }
+
+        for(Iterator<Long> iterator = desyncedSections.iterator(); iterator.hasNext(); ) {
+            resendSections.add(iterator.next());
+            iterator.remove();
+        }
+        if(resendSections.isEmpty()) {return;}
+        logger.finer("Resending %d chunk sections", resendSections.size());
+
+        // States which changed in this update are already being sent
+        BitSet alreadySent = new BitSet(viewableStates.size());
+        for(int n = 0; n < changes.size(); n++) {
+            int change = changes.get(n);
+            alreadySent.set(change < 0 ? ~change : change);
+        }
+
+        PackedBlockStates packedStates = viewableStates.getBlockStates();
+        for(int i = 0; i < viewableStates.size(); i++) {
+            if(!visibilityClassifier.isVisible(i) || alreadySent.get(i)) {continue;}
+
+            if(resendSections.contains(SectionChecksums.getSectionKey(packedStates, viewableStates.getMapIndex(i)))) {
+                changes.add(~i);
+            }
+        }
+    }
+
+    // Sets a state that is being held back to what the player can actually see
+    private void undoChange(PackedBlockStates packedStates, int mapIndex, boolean visible) {
+        if(visible) {
+            blockStates.setNonViewable(packedStates, mapIndex);
+        }   else    {
+            blockStates.setViewable(packedStates, mapIndex);
+        }
+    }
+
+    // Orders the changes by distance from the portal, with resends of states that didn't change last
+    private int[] prioritise(ViewableStates viewableStates, IntList changes) {
+        PackedBlockStates packedStates = viewableStates.getBlockStates();
+        long[] keys = new long[changes.size()];
+        for(int n = 0; n < keys.length; n++) {
+            int change = changes.get(n);
+            int mapIndex = viewableStates.getMapIndex(change < 0 ? ~change : change);
+            int x = packedStates.getRelativeX(mapIndex);
+            int y = packedStates.getRelativeY(mapIndex);
+            int z = packedStates.getRelativeZ(mapIndex);
+
+            long priority = x * x + y * y + z * z;
+            if(change < 0) {
+                priority += RESEND_PRIORITY_OFFSET;
+            }
+            // The change is kept in the lower bits so that it can be found after sorting
+            keys[n] = priority << 32 | (change & 0xFFFFFFFFL);
+        }
+        Arrays.sort(keys);
+
+        int[] result = new int[keys.length];
+        for(int n = 0; n < keys.length; n++) {
+            result[n] = (int) keys[n];
+        }
+        return result;
+    }
+
+    // Finds which states are visible, sharing the results with other views if enabled
+    // Returns true if every state may have changed, false if only the states in the classifier's changed list did
+    private boolean findVisibleStates(ViewableStates viewableStates) {
+        if(!sharedVisibilityCache.isEnabled()) {
+            FrustumVisibilityChecker visibilityChecker = portal.getTransformations().createVisibilityChecker(playerPosition);
+            return visibilityClassifier.classify(visibilityChecker, viewableStates);
+        }
+
+        // Every eye in the same grid cell sees the same blocks, so nothing has changed if we're still in the last cell
+        IntVector eyeCell = sharedVisibilityCache.quantise(playerPosition);
+        if(eyeCell.equals(lastEyeCell) && viewableStates == lastEyeCellStates) {
+            visibilityClassifier.getChanged().clear();
+            return false;
+        }
+        lastEyeCell = eyeCell;
+        lastEyeCellStates = viewableStates;
+
+        boolean[] sharedResult = sharedVisibilityCache.get(viewableStates, eyeCell);
+        if(sharedResult != null) {
+            return visibilityClassifier.apply(viewableStates, sharedResult);
+        }
+
+        FrustumVisibilityChecker visibilityChecker = portal.getTransformations().createVisibilityChecker(sharedVisibilityCache.getCellCenter(eyeCell));
+        boolean updateAll = visibilityClassifier.classify(visibilityChecker, viewableStates);
+        sharedVisibilityCache.put(viewableStates, eyeCell, visibilityClassifier.copyVisibleStates(viewableStates.size()));
+        return updateAll;
+    }
+
     // Gets the right rotation of portal block depending on the portal's direction
     private WrappedBlockData getPortalBlockData() {
         PortalDirection portalDirection = portal.getOriginPos().getDirection();
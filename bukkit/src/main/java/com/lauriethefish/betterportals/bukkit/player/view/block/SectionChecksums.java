@@ -0,0 +1,89 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a checksum of the visible states shown to a player in each chunk section.
+ * When refreshing, only the sections whose checksum has changed since the last refresh need resending, for instance because a destination block changed.
+ * Not thread safe.
+ */
+class SectionChecksums {
+    private Map<Long, Integer> checksums = new HashMap<>();
+    private boolean initialised = false;
+
+    /**
+     * @param sectionX X coordinate of the chunk section
+     * @param sectionY Y coordinate of the chunk section
+     * @param sectionZ Z coordinate of the chunk section
+     * @return A key identifying the section
+     */
+    static long getSectionKey(int sectionX, int sectionY, int sectionZ) {
+        return ((long) sectionX & 0x3FFFFF) << 42 | ((long) sectionZ & 0x3FFFFF) << 20 | (sectionY & 0xFFFFF);
+    }
+
+    /**
+     * @param blockStates The states containing the block
+     * @param mapIndex Index of the block in the map
+     * @return The key of the section containing the block at <code>mapIndex</code>
+     */
+    static long getSectionKey(PackedBlockStates blockStates, int mapIndex) {
+        IntVector originPos = blockStates.getOriginPos();
+        return getSectionKey(
+                (originPos.getX() + blockStates.getRelativeX(mapIndex)) >> 4,
+                (originPos.getY() + blockStates.getRelativeY(mapIndex)) >> 4,
+                (originPos.getZ() + blockStates.getRelativeZ(mapIndex)) >> 4
+        );
+    }
+
+    /**
+     * Finds the checksum of each section from the currently visible states, and replaces the previous checksums.
+     * @param viewableStates The viewable states of the portal
+     * @param visibilityClassifier Classifier containing the visibility of each state
+     * @return The keys of the sections with visible states whose checksum differs from the previous one
+     */
+    Set<Long> update(ViewableStates viewableStates, BlockVisibilityClassifier visibilityClassifier) {
+        PackedBlockStates blockStates = viewableStates.getBlockStates();
+        Map<Long, Integer> newChecksums = new HashMap<>();
+        for(int i = 0; i < viewableStates.size(); i++) {
+            if(!visibilityClassifier.isVisible(i)) {continue;}
+
+            int mapIndex = viewableStates.getMapIndex(i);
+            // Summing the hashes means that the order that the states are visited in doesn't matter
+            int hash = (mapIndex * 31 + blockStates.getRenderedDestId(mapIndex)) * 0x9E3779B1;
+            newChecksums.merge(getSectionKey(blockStates, mapIndex), hash, Integer::sum);
+        }
+
+        Set<Long> changed = new HashSet<>();
+        for(Map.Entry<Long, Integer> entry : newChecksums.entrySet()) {
+            if(!entry.getValue().equals(checksums.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+
+        checksums = newChecksums;
+        initialised = true;
+        return changed;
+    }
+
+    /**
+     * Forgets the checksums after the states shown to the player are reset.
+     */
+    void clear() {
+        checksums.clear();
+        initialised = false;
+    }
+
+    /**
+     * @return Whether the checksums have been found since they were created or last cleared
+     */
+    boolean isInitialised() {
+        return initialised;
+    }
+}
@@ -0,0 +1,93 @@
+package com.lauriethefish.betterportals.bukkit.player.view.block;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStates;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shares the visibility results of each portal between players whose eyes are close together, for instance players standing in front of a hub portal.
+ * Eye positions are quantised to a grid of {@link RenderConfig#getVisibilityGridSize()}, and every eye in a grid cell sees the blocks visible from the center of the cell.
+ * The results are stored in the {@link ViewableStates} that they were found for, so are discarded when the portal's block map changes.
+ * Thread safe.
+ */
+@Singleton
+public class SharedVisibilityCache {
+    // Limits the memory used by a portal with lots of players spread out in front of it
+    private static final int MAX_RESULTS_PER_STATES = 64;
+
+    private final RenderConfig renderConfig;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Inject
+    public SharedVisibilityCache(RenderConfig renderConfig) {
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * @return Whether results are shared. If false, each player's eye position is used exactly
+     */
+    public boolean isEnabled() {
+        return renderConfig.isSharedVisibility();
+    }
+
+    /**
+     * @param eyePos The exact eye position
+     * @return The grid cell containing <code>eyePos</code>
+     */
+    public @NotNull IntVector quantise(@NotNull Vector eyePos) {
+        double gridSize = renderConfig.getVisibilityGridSize();
+        return new IntVector(eyePos.getX() / gridSize, eyePos.getY() / gridSize, eyePos.getZ() / gridSize);
+    }
+
+    /**
+     * @param eyeCell A grid cell from {@link SharedVisibilityCache#quantise(Vector)}
+     * @return The eye position that visibility is checked from for every eye in the cell
+     */
+    public @NotNull Vector getCellCenter(@NotNull IntVector eyeCell) {
+        double gridSize = renderConfig.getVisibilityGridSize();
+        return new Vector((eyeCell.getX() + 0.5) * gridSize, (eyeCell.getY() + 0.5) * gridSize, (eyeCell.getZ() + 0.5) * gridSize);
+    }
+
+    /**
+     * @param viewableStates The states that the visibility was found for
+     * @param eyeCell The grid cell of the eye
+     * @return Whether each of the viewable states is visible from the cell, or null if not yet found. Must not be modified
+     */
+    public @Nullable boolean[] get(@NotNull ViewableStates viewableStates, @NotNull IntVector eyeCell) {
+        boolean[] result = viewableStates.getSharedVisibility().get(eyeCell);
+        (result == null ? misses : hits).incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Shares the visibility of the states from a grid cell with other views.
+     * @param viewableStates The states that the visibility was found for
+     * @param eyeCell The grid cell of the eye
+     * @param result Whether each of the viewable states is visible from the cell. Must not be modified afterwards
+     */
+    public void put(@NotNull ViewableStates viewableStates, @NotNull IntVector eyeCell, @NotNull boolean[] result) {
+        Map<IntVector, boolean[]> results = viewableStates.getSharedVisibility();
+        if(results.size() >= MAX_RESULTS_PER_STATES) {return;}
+
+        results.put(eyeCell, result);
+    }
+
+    /**
+     * @return The proportion of lookups that found a shared result, between 0 and 1
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+}
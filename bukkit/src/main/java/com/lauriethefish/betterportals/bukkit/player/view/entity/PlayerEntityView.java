@@ -2,19 +2,19 @@ package com.lauriethefish.betterportals.bukkit.player.view.entity;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.bukkit.entity.EntitySnapshot;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityInfo;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.entity.faking.IEntityPacketManipulator;
-import com.lauriethefish.betterportals.bukkit.math.PlaneIntersectionChecker;
+import com.lauriethefish.betterportals.bukkit.math.FrustumVisibilityChecker;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.shared.logging.Logger;
-import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
-import org.bukkit.metadata.MetadataValue;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -45,15 +45,18 @@ public class PlayerEntityView implements IPlayerEntityView  {
     }
 
     private void updateHiddenEntities() {
-        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
+        FrustumVisibilityChecker visibilityChecker = portal.getTransformations().createVisibilityChecker(player.getEyeLocation().toVector());
+        EntitySnapshot snapshot = portal.getEntityList().getSnapshot();
+        List<Entity> originEntities = snapshot.getOriginEntities();
 
         Set<Entity> nowHidden = new HashSet<>();
 
-        for(Entity entity : portal.getEntityList().getOriginEntities()) {
+        for(int i = 0; i < originEntities.size(); i++) {
+            Entity entity = originEntities.get(i);
             if(entity == player) {continue;}
 
             // If the line from the player's position to the entity intersects the portal, then hide it since it'll spoil the effect by appearing in front of the blocks
-            boolean shouldBeHidden = intersectionChecker.checkIfIntersects(entity.getLocation().toVector());
+            boolean shouldBeHidden = visibilityChecker.isVisible(snapshot.getOriginX(i), snapshot.getOriginY(i), snapshot.getOriginZ(i));
             if(!shouldBeHidden) {continue;}
 
             nowHidden.add(entity);
@@ -73,18 +76,17 @@ public class PlayerEntityView implements IPlayerEntityView  {
     }
 
     private void updateReplicatedEntities() {
-        PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
+        FrustumVisibilityChecker visibilityChecker = portal.getTransformations().createVisibilityChecker(player.getEyeLocation().toVector());
+        // Vanished entities are already excluded, and the positions already moved to the origin
+        EntitySnapshot snapshot = portal.getEntityList().getSnapshot();
+        List<Entity> destinationEntities = snapshot.getDestinationEntities();
 
         // Start tracking newly replicated entities
         Set<Entity> nowReplicated = new HashSet<>();
-        for(Entity entity : portal.getEntityList().getDestinationEntities()) {
-            if(isVanished(entity)) {
-                continue;
-            }
-
-            Location originPos = portal.getTransformations().moveToOrigin(entity.getLocation());
+        for(int i = 0; i < destinationEntities.size(); i++) {
+            Entity entity = destinationEntities.get(i);
 
-            boolean shouldBeReplicated = intersectionChecker.checkIfIntersects(originPos.toVector());
+            boolean shouldBeReplicated = visibilityChecker.isVisible(snapshot.getDestinationX(i), snapshot.getDestinationY(i), snapshot.getDestinationZ(i));
             if(!shouldBeReplicated) {continue;}
             nowReplicated.add(entity);
 
@@ -106,23 +108,6 @@ public class PlayerEntityView implements IPlayerEntityView  {
         });
     }
 
-    /**
-     * Finds if the given entity is currently vanished
-     * @param entity The entity to check if vanished
-     * @return <code>true</code> if the entity is vanished, <code>false</code> otherwise.
-     */
-    private boolean isVanished(Entity entity) {
-        // Only players can be vanished
-        if(!(entity instanceof Player)) {return false;}
-
-        // Find the vanish metadata
-        // This is used by most vanish plugins
-        for(MetadataValue value : entity.getMetadata("vanished"))   {
-            if(value.asBoolean()) {return true;}
-        }
-        return false;
-    }
-
     // Send packets to remove the entity from the player's view
     private void hide(Entity entity) {
         EntityInfo entityInfo = new EntityInfo(entity);
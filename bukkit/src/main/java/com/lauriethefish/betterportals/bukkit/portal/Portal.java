@@ -3,6 +3,7 @@ package com.lauriethefish.betterportals.bukkit.portal;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapCache;
 import com.lauriethefish.betterportals.bukkit.block.IBlockMap;
 import com.lauriethefish.betterportals.bukkit.chunk.chunkloading.PortalChunkLoader;
 import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
@@ -39,6 +40,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
 
     @Getter private final PortalTransformations transformations;
     @Getter private final IBlockMap viewableBlocks;
+    private final BlockMapCache blockMapCache;
 
     @Getter private final IPortalEntityManager entityList;
     private final PortalChunkLoader chunkLoader;
@@ -48,7 +50,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
 
     @Inject
     public Portal(IPortalManager portalManager, IPortalEntityManager.Factory entityListFactory, IBlockMap.Factory viewableBlockArrayFactory,
-                  PortalChunkLoader chunkLoader, MiscConfig miscConfig,
+                  PortalChunkLoader chunkLoader, MiscConfig miscConfig, BlockMapCache blockMapCache,
                   Logger logger, PortalTransformationsFactory transformationsFactory,
                   @Assisted("originPos") PortalPosition originPos, @Assisted("destPos") PortalPosition destPos,
                   @Assisted Vector size, @Assisted("isCustom") boolean isCustom,
@@ -64,6 +66,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
         // We do not need to get the destination entities if viewing entities through portals is disabled, or if entity support is disabled
         this.entityList = entityListFactory.create(this, !isCrossServer && miscConfig.isEntitySupportEnabled());
         this.chunkLoader = chunkLoader;
+        this.blockMapCache = blockMapCache;
         this.id = id;
         this.ownerId = ownerId;
         this.name = name;
@@ -94,6 +97,7 @@ public class Portal implements IPortal, ConfigurationSerializable {
     public void onActivate() {
         logger.finer("Portal was activated");
         chunkLoader.forceloadPortalChunks(destPos);
+        blockMapCache.onActivate(viewableBlocks);
         ticksSinceActivated = 0;
     }
 
@@ -101,7 +105,12 @@ public class Portal implements IPortal, ConfigurationSerializable {
     public void onDeactivate() {
         logger.finer("Portal was deactivated");
         chunkLoader.unforceloadPortalChunks(destPos);
-        viewableBlocks.reset();
+        // Keep the block map in case the portal is activated again soon, unless the portal has been removed
+        if(isRegistered()) {
+            blockMapCache.onDeactivate(viewableBlocks);
+        }   else    {
+            viewableBlocks.reset();
+        }
         ticksSinceActivated = -1;
     }
 
@@ -2,6 +2,7 @@ package com.lauriethefish.betterportals.bukkit.portal;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapCache;
 import com.lauriethefish.betterportals.bukkit.portal.predicate.IPortalPredicateManager;
 import com.lauriethefish.betterportals.bukkit.util.StringUtil;
 import com.lauriethefish.betterportals.shared.logging.Logger;
@@ -19,16 +20,18 @@ public class PortalManager implements IPortalManager    {
     private final Logger logger;
     private final IPortalPredicateManager predicateManager;
     private final IPortalActivityManager portalActivityManager;
+    private final BlockMapCache blockMapCache;
 
     // Multiple portals can have the same origin position
     private final Map<Location, Set<IPortal>> portals = new HashMap<>();
     private final Map<UUID, IPortal> portalsById = new HashMap<>();
 
     @Inject
-    public PortalManager(Logger logger, IPortalPredicateManager predicateManager, IPortalActivityManager portalActivityManager) {
+    public PortalManager(Logger logger, IPortalPredicateManager predicateManager, IPortalActivityManager portalActivityManager, BlockMapCache blockMapCache) {
         this.logger = logger;
         this.predicateManager = predicateManager;
         this.portalActivityManager = portalActivityManager;
+        this.blockMapCache = blockMapCache;
     }
 
     @Override
@@ -104,6 +107,7 @@ public class PortalManager implements IPortalManager    {
         // Make sure to also remove them from the ID map
         for(IPortal portal : portalsRemoved) {
             portalsById.remove(portal.getId());
+            blockMapCache.evict(portal.getViewableBlocks());
         }
 
         logger.fine("Unregistering %d portal(s) at position %s", portalsRemoved.size(), StringUtil.locationToString(originLoc));
@@ -123,6 +127,7 @@ public class PortalManager implements IPortalManager    {
             portals.remove(portal.getOriginPos().getLocation());
         }
         portalsById.remove(portal.getId());
+        blockMapCache.evict(portal.getViewableBlocks());
         return wasRemoved;
     }
 
@@ -138,5 +143,7 @@ public class PortalManager implements IPortalManager    {
     @Override
     public void onReload() {
         portalActivityManager.resetActivity();
+        // The config may have changed the size of the block maps, so the cached maps can't be reused
+        blockMapCache.clear();
     }
 }
@@ -0,0 +1,66 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs block map flood fills on a pool of worker threads, so that only taking the chunk snapshots happens on the main thread.
+ * The pool is created lazily, since the thread count comes from the config, which isn't loaded when this is injected.
+ */
+@Singleton
+public class BlockMapUpdateExecutor {
+    private final Logger logger;
+    private final RenderConfig renderConfig;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    @Inject
+    public BlockMapUpdateExecutor(Logger logger, RenderConfig renderConfig) {
+        this.logger = logger;
+        this.renderConfig = renderConfig;
+    }
+
+    /**
+     * Runs <code>task</code> on one of the worker threads.
+     * Any exceptions thrown are logged, since otherwise they would be silently discarded by the pool.
+     * @param task The task to run
+     */
+    public synchronized void submit(Runnable task) {
+        if(executor == null || executor.isShutdown()) {
+            int threads = renderConfig.getBlockMapUpdateThreads();
+            logger.fine("Starting %d block map update threads", threads);
+
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "BetterPortals Block Map Thread " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        executor.execute(() -> {
+            try {
+                task.run();
+            }   catch(RuntimeException ex) {
+                logger.severe("An error occurred while updating a portal block map asynchronously");
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Stops the worker threads. Tasks that are currently running are interrupted.
+     */
+    public synchronized void stop() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+}
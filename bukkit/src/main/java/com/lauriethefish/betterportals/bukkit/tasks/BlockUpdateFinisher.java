@@ -1,14 +1,21 @@
 package com.lauriethefish.betterportals.bukkit.tasks;
 
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Handles doing the final processing for portal block updates on another thread
  * Doing tons of raycasts to find which blocks are visible is moderately expensive, so happens on another thread
+ * Updates can be split between several queues, and each view always uses the same queue so that its updates stay in order.
+ * Each view has at most one pending update, so scheduling an update while one is pending merges them. Since views read the latest eye position when the update runs, the newest position always wins.
  */
 public abstract class BlockUpdateFinisher {
     private enum BlockViewUpdateType {
@@ -18,58 +25,149 @@ public abstract class BlockUpdateFinisher {
     }
 
     private static class BlockViewUpdateInfo {
-        PlayerBlockView blockView;
         BlockViewUpdateType type;
-        public BlockViewUpdateInfo(PlayerBlockView blockView, BlockViewUpdateType type) {
-            this.blockView = blockView;
+        long scheduledAt = System.nanoTime();
+        public BlockViewUpdateInfo(BlockViewUpdateType type) {
             this.type = type;
         }
-
-        // Equals only requires the BlockViewUpdateInfo to be equal - used to check if an update is already pending
-        @Override
-        public boolean equals(Object other) {
-            if(!(other instanceof BlockViewUpdateInfo)) {return false;}
-
-            return blockView == ((BlockViewUpdateInfo) other).blockView;
-        }
     }
 
-    private final BlockingQueue<BlockViewUpdateInfo> updateQueue = new LinkedBlockingQueue<>();
+    // Weight of the latest update in the moving average latency
+    private static final double LATENCY_AVERAGE_WEIGHT = 0.05;
+    // Refreshes are never slowed down by more than this, so that blocks the client missed are still eventually resent
+    private static final double MAX_REFRESH_STRETCH = 8.0;
+
+    // The views with a pending update in each queue. A view is only added when it has no pending update, so each view is in its queue at most once
+    private volatile List<BlockingQueue<PlayerBlockView>> updateQueues = createQueues(1);
+    private final Map<PlayerBlockView, BlockViewUpdateInfo> pendingUpdates = new ConcurrentHashMap<>();
     protected final Logger logger;
+    private final RenderConfig renderConfig;
 
     private volatile boolean hasStopped = false;
 
-    protected BlockUpdateFinisher(Logger logger) {
+    private double averageLatency = 0.0;
+    private double maxLatency = 0.0;
+
+    protected BlockUpdateFinisher(Logger logger, RenderConfig renderConfig) {
         this.logger = logger;
+        this.renderConfig = renderConfig;
+    }
+
+    private static List<BlockingQueue<PlayerBlockView>> createQueues(int queueCount) {
+        List<BlockingQueue<PlayerBlockView>> queues = new ArrayList<>(queueCount);
+        for(int i = 0; i < queueCount; i++) {
+            queues.add(new LinkedBlockingQueue<>());
+        }
+        return queues;
     }
 
-    private void processUpdate(BlockViewUpdateInfo next) {
+    /**
+     * Replaces the update queues with <code>queueCount</code> empty queues, and allows them to be processed again if previously stopped.
+     * Must only be called before the threads processing the queues are started.
+     * @param queueCount The number of queues to split the updates between
+     */
+    protected void resetQueues(int queueCount) {
+        pendingUpdates.clear();
+        updateQueues = createQueues(queueCount);
+        hasStopped = false;
+    }
+
+    // Each view always uses the same queue, so that its updates are processed in order
+    private BlockingQueue<PlayerBlockView> getQueue(PlayerBlockView blockView) {
+        List<BlockingQueue<PlayerBlockView>> queues = updateQueues;
+        return queues.get(Math.floorMod(System.identityHashCode(blockView), queues.size()));
+    }
+
+    private void processUpdate(PlayerBlockView blockView) {
+        // Taking the pending update allows another update to be scheduled while this one is running
+        BlockViewUpdateInfo next = pendingUpdates.remove(blockView);
+        if(next == null) {return;}
+
         if(next.type == BlockViewUpdateType.RESET) {
             logger.fine("Running scheduled reset");
-            next.blockView.finishReset();
+            blockView.finishReset();
         }   else    {
-            next.blockView.finishUpdate(next.type == BlockViewUpdateType.REFRESH);
+            blockView.finishUpdate(next.type == BlockViewUpdateType.REFRESH);
         }
+
+        recordLatency((System.nanoTime() - next.scheduledAt) / 1_000_000d);
     }
 
-    protected void processUpdatesContinually()  {
+    private synchronized void recordLatency(double latencyMillis) {
+        averageLatency += (latencyMillis - averageLatency) * LATENCY_AVERAGE_WEIGHT;
+        maxLatency = Math.max(maxLatency, latencyMillis);
+    }
+
+    /**
+     * Processes the updates in one of the queues until stopped.
+     * @param queueIndex Index of the queue to process
+     */
+    protected void processUpdatesContinually(int queueIndex)  {
+        BlockingQueue<PlayerBlockView> updateQueue = updateQueues.get(queueIndex);
         try {
             while (!hasStopped) {
-                BlockViewUpdateInfo next = updateQueue.take();
-                processUpdate(next);
+                PlayerBlockView next = updateQueue.take();
+                try {
+                    processUpdate(next);
+                }   catch(RuntimeException ex) {
+                    // Otherwise the thread would stop, and no more updates would be processed for the views using this queue
+                    logger.severe("An error occurred while finishing a block view update");
+                    ex.printStackTrace();
+                }
             }
         }   catch(InterruptedException ignored) { }
     }
 
     protected void finishPendingUpdates() {
-        while(true) {
-            BlockViewUpdateInfo next = updateQueue.poll();
-            if(next == null) {return;}
+        for(BlockingQueue<PlayerBlockView> updateQueue : updateQueues) {
+            while(true) {
+                PlayerBlockView next = updateQueue.poll();
+                if(next == null) {break;}
 
-            processUpdate(next);
+                processUpdate(next);
+            }
         }
     }
 
+    /**
+     * @return The number of views with an update waiting to be processed
+     */
+    public int getQueuedUpdateCount() {
+        return pendingUpdates.size();
+    }
+
+    /**
+     * @return The moving average time between an update being scheduled and finishing, in milliseconds
+     */
+    public synchronized double getAverageLatency() {
+        return averageLatency;
+    }
+
+    /**
+     * @return The longest time between an update being scheduled and finishing since the last call to this method, in milliseconds
+     */
+    public synchronized double pollMaxLatency() {
+        double result = maxLatency;
+        maxLatency = 0.0;
+        return result;
+    }
+
+    /**
+     * If the average latency goes over {@link RenderConfig#getViewUpdateLatencyTarget()}, block views are refreshed less often so that the threads can catch up.
+     * @return The amount to multiply the refresh interval by
+     */
+    public synchronized double getRefreshStretch() {
+        double target = renderConfig.getViewUpdateLatencyTarget();
+        if(target <= 0.0 || averageLatency <= target) {return 1.0;}
+
+        return Math.min(MAX_REFRESH_STRETCH, averageLatency / target);
+    }
+
+    /**
+     * @return The number of threads processing updates
+     */
+    public abstract int getThreadCount();
+
     /**
      * Starts the task/thread that is being used
      */
@@ -84,38 +182,45 @@ public abstract class BlockUpdateFinisher {
 
     /**
      * Schedules the update for <code>blockView</code> to happen on another thread.
+     * If an update is already pending for the view, it is merged with this one.
      * @param blockView The block view to be updated
      * @param refresh Whether to resend all block states regardless of if they were already sent
      */
     public void scheduleUpdate(PlayerBlockView blockView, boolean refresh) {
-        BlockViewUpdateInfo updateInfo = new BlockViewUpdateInfo(blockView, refresh ? BlockViewUpdateType.REFRESH : BlockViewUpdateType.REGULAR);
-
-        if(updateQueue.contains(updateInfo)) {
-            logger.fine("Block update was scheduled when previous update had not finished. Server is running behind!");
-            return;
-        }
-
-        try {
-            updateQueue.put(updateInfo);
-        }   catch(InterruptedException ex) {
-            ex.printStackTrace();
-        }
+        schedule(blockView, refresh ? BlockViewUpdateType.REFRESH : BlockViewUpdateType.REGULAR);
     }
 
     /**
      * Schedules a block reset which will call {@link PlayerBlockView#finishReset()} when ran.
-     * This will remove any block updates currently queued for this view
+     * This replaces any block update currently pending for this view
      * @param blockView The block view to reset
      */
     public void scheduleReset(PlayerBlockView blockView) {
-        try {
-            BlockViewUpdateInfo updateInfo = new BlockViewUpdateInfo(blockView, BlockViewUpdateType.RESET);
+        schedule(blockView, BlockViewUpdateType.RESET);
+    }
 
-            // Remove any updates pending to update the given view
-            updateQueue.remove(updateInfo);
+    private void schedule(PlayerBlockView blockView, BlockViewUpdateType type) {
+        boolean[] wasPending = new boolean[1];
+        pendingUpdates.compute(blockView, (view, pending) -> {
+            if(pending == null) {
+                return new BlockViewUpdateInfo(type);
+            }
 
-            // Now we can schedule our reset
-            updateQueue.put(updateInfo);
+            // Refreshes and resets must not be lost, but are otherwise the same as a regular update with the latest position
+            wasPending[0] = true;
+            if(type.ordinal() > pending.type.ordinal()) {
+                pending.type = type;
+            }
+            return pending;
+        });
+
+        if(wasPending[0]) {
+            logger.fine("Block update was scheduled when previous update had not finished. Server is running behind!");
+            return;
+        }
+
+        try {
+            getQueue(blockView).put(blockView);
         }   catch(InterruptedException ex) {
             ex.printStackTrace();
         }
@@ -2,7 +2,10 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.BlockMapUpdateBudget;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import com.lauriethefish.betterportals.bukkit.entity.ChunkEntityIndex;
+import com.lauriethefish.betterportals.bukkit.entity.faking.EntityPacketBatcher;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.net.ClientRequestHandler;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerData;
@@ -25,6 +28,9 @@ public class MainUpdate implements Runnable {
     private final EntityTrackingManager entityTrackingManager;
     private final ClientRequestHandler requestHandler;
     private final IExternalBlockWatcherManager blockWatcherManager;
+    private final BlockMapUpdateBudget blockMapUpdateBudget;
+    private final ChunkEntityIndex chunkEntityIndex;
+    private final EntityPacketBatcher entityPacketBatcher;
     private final Logger logger;
 
     @Inject
@@ -33,13 +39,19 @@ public class MainUpdate implements Runnable {
                       IPortalActivityManager activityManager,
                       EntityTrackingManager entityTrackingManager,
                       ClientRequestHandler requestHandler,
-                      IExternalBlockWatcherManager blockWatcherManager, Logger logger) {
+                      IExternalBlockWatcherManager blockWatcherManager,
+                      BlockMapUpdateBudget blockMapUpdateBudget,
+                      ChunkEntityIndex chunkEntityIndex,
+                      EntityPacketBatcher entityPacketBatcher, Logger logger) {
         this.pl = pl;
         this.playerDataManager = playerDataManager;
         this.activityManager = activityManager;
         this.entityTrackingManager = entityTrackingManager;
         this.requestHandler = requestHandler;
         this.blockWatcherManager = blockWatcherManager;
+        this.blockMapUpdateBudget = blockMapUpdateBudget;
+        this.chunkEntityIndex = chunkEntityIndex;
+        this.entityPacketBatcher = entityPacketBatcher;
         this.logger = logger;
     }
 
@@ -50,6 +62,8 @@ public class MainUpdate implements Runnable {
     @Override
     public void run() {
         try {
+            entityPacketBatcher.startBatching();
+
             playerDataManager.getPlayers().forEach(IPlayerData::onUpdate);
 
             // Update replicated entities
@@ -62,10 +76,18 @@ public class MainUpdate implements Runnable {
 
             blockWatcherManager.update();
 
+            blockMapUpdateBudget.onTickEnd();
+
+            // Entities are re-fetched next tick, since they may have moved between chunks
+            chunkEntityIndex.onTickEnd();
+
         }   catch(RuntimeException ex) {
             logger.severe("A critical error occurred during main update.");
             logger.severe("Please create an issue at %s to get this fixed.", ISSUES_URL);
             ex.printStackTrace();
+        }   finally {
+            // Sent even if the update failed, otherwise the packets would be held until next tick
+            entityPacketBatcher.flush();
         }
     }
 }
@@ -2,40 +2,64 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Uses a thread instead of a Bukkit task to finish block view updates
+ * Uses threads instead of a Bukkit task to finish block view updates
  * Probably less idiomatic, but does provide lower latency
+ * The number of threads, and whether they are virtual threads, comes from the config.
  */
 @Singleton
-public class ThreadedBlockUpdateFinisher extends BlockUpdateFinisher implements Runnable    {
-    private Thread thread;
+public class ThreadedBlockUpdateFinisher extends BlockUpdateFinisher {
+    private final RenderConfig renderConfig;
+    private final List<Thread> threads = new ArrayList<>();
 
     @Inject
-    public ThreadedBlockUpdateFinisher(Logger logger) {
-        super(logger);
+    public ThreadedBlockUpdateFinisher(Logger logger, RenderConfig renderConfig) {
+        super(logger, renderConfig);
+        this.renderConfig = renderConfig;
     }
 
     @Override
     public void start() {
-        thread = new Thread(this, "BetterPortals View Update Thread");
-        thread.start();
+        int threadCount = renderConfig.getViewUpdateThreads();
+        boolean virtual = renderConfig.isVirtualViewUpdateThreads();
+        logger.fine("Starting %d %s view update threads", threadCount, virtual ? "virtual" : "platform");
+
+        resetQueues(threadCount);
+        for(int i = 0; i < threadCount; i++) {
+            int queueIndex = i;
+            Runnable runnable = () -> run(queueIndex);
+            String name = "BetterPortals View Update Thread " + (i + 1);
+
+            Thread thread = virtual ? Thread.ofVirtual().name(name).unstarted(runnable) : new Thread(runnable, name);
+            threads.add(thread);
+            thread.start();
+        }
     }
 
     @Override
     public void stop() {
-        if(thread != null) {
+        for(Thread thread : threads) {
             thread.interrupt();
         }
+        threads.clear();
         super.stop();
     }
 
     @Override
-    public void run() {
+    public int getThreadCount() {
+        return threads.size();
+    }
+
+    private void run(int queueIndex) {
         logger.fine("Hello from block view update thread!");
 
-        super.processUpdatesContinually();
+        super.processUpdatesContinually(queueIndex);
 
         logger.fine("Goodbye from block view update thread!");
     }
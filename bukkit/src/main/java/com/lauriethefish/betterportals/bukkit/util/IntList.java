@@ -0,0 +1,75 @@
+package com.lauriethefish.betterportals.bukkit.util;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive integers, used to avoid boxing when storing lots of block map indices.
+ * This class is not thread safe.
+ */
+public class IntList {
+    private int[] values;
+    private int size = 0;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int initialCapacity) {
+        this.values = new int[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Appends <code>value</code> to the end of this list.
+     * @param value The value to add
+     */
+    public void add(int value) {
+        if(size == values.length) {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+
+        values[size++] = value;
+    }
+
+    /**
+     * Appends every value in <code>other</code> to the end of this list.
+     * @param other The values to add
+     * @param length The number of values to add from the start of <code>other</code>
+     */
+    public void addAll(int[] other, int length) {
+        if(size + length > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, size + length));
+        }
+
+        System.arraycopy(other, 0, values, size, length);
+        size += length;
+    }
+
+    /**
+     * @param index Index of the value in this list
+     * @return The value at <code>index</code>
+     * @throws IndexOutOfBoundsException If <code>index</code> is not less than the size of this list
+     */
+    public int get(int index) {
+        if(index >= size) {throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);}
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return A new array containing the values in this list
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
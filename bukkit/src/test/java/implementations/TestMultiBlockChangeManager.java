@@ -4,7 +4,7 @@ import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
-import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.PackedBlockStates;
 import lombok.Getter;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
@@ -22,17 +22,12 @@ public class TestMultiBlockChangeManager implements IMultiBlockChangeManager {
     }
 
     @Override
-    public void addChangeOrigin(Vector position, IViewableBlockInfo newData) {
-
-    }
-
-    @Override
-    public void addChangeDestination(Vector position, IViewableBlockInfo newData) {
+    public void addChange(Vector position, WrappedBlockData newData) {
 
     }
 
     @Override
-    public void addChange(Vector position, WrappedBlockData newData) {
+    public void addChange(PackedBlockStates blockStates, int mapIndex, boolean rendered) {
 
     }
 